@@ -0,0 +1,64 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+/** Realistic requests and channel contexts shared by the benchmarks. */
+public class BenchmarkRequests {
+    /** Create a channel context backed by an EmbeddedChannel, for constructing Request objects outside a server. */
+    public static ChannelHandlerContext newChannelContext() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelHandlerAdapter());
+        return channel.pipeline().firstContext();
+    }
+
+    /** A GET request for a static resource, with the headers a desktop browser typically sends. */
+    public static FullHttpRequest browserGET(String uri) {
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        HttpHeaders headers = req.headers();
+        headers.add(HttpHeaderNames.HOST, "www.example.com");
+        headers.add(HttpHeaderNames.CONNECTION, "keep-alive");
+        headers.add(HttpHeaderNames.ACCEPT,
+                "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8");
+        headers.add(HttpHeaderNames.USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 "
+                + "(KHTML, like Gecko) Chrome/47.0.2526.106 Safari/537.36");
+        headers.add(HttpHeaderNames.REFERER, "https://www.example.com/index.html");
+        headers.add(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate, sdch");
+        headers.add(HttpHeaderNames.ACCEPT_LANGUAGE, "en-US,en;q=0.8");
+        headers.add(HttpHeaderNames.COOKIE, "_ga=GA1.2.1176271948.1449184362; session=a8f5f167f44f4964e6c998de"
+                + "e827110c; theme=dark; _gid=GA1.2.987654321.1451606400");
+        headers.add(HttpHeaderNames.IF_MODIFIED_SINCE, "Wed, 21 Oct 2015 07:28:00 GMT");
+        return req;
+    }
+}
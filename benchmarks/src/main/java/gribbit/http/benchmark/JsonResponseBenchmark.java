@@ -0,0 +1,174 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.JsonName;
+import gribbit.http.response.JsonResponse;
+import gribbit.http.response.JsonWriter;
+import gribbit.http.response.TextResponse;
+import gribbit.http.response.exception.ResponseException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of serializing a list of records as JSON and sending it, by building a String and sending it as a
+ * TextResponse (which encodes the String to UTF-8 in a second pass), versus writing directly into a pooled direct
+ * buffer with JsonWriter and sending it as a JsonResponse. Responses are written to an EmbeddedChannel with no
+ * encoder, so this measures serialization and buffer handling, not HTTP encoding or I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonResponseBenchmark {
+    private ChannelHandlerContext ctx;
+    private EmbeddedChannel channel;
+    private Request request;
+    private User[] users;
+
+    @Param({ "1", "20", "200" })
+    public int numUsers;
+
+    private static class User {
+        final long id;
+        final String name;
+        final String email;
+        final boolean active;
+        final double score;
+
+        User(long id, String name, String email, boolean active, double score) {
+            this.id = id;
+            this.name = name;
+            this.email = email;
+            this.active = active;
+            this.score = score;
+        }
+    }
+
+    private static final JsonName ID = new JsonName("id");
+    private static final JsonName NAME = new JsonName("name");
+    private static final JsonName EMAIL = new JsonName("email");
+    private static final JsonName ACTIVE = new JsonName("active");
+    private static final JsonName SCORE = new JsonName("score");
+
+    @Setup
+    public void setup() throws ResponseException {
+        ctx = BenchmarkRequests.newChannelContext();
+        channel = (EmbeddedChannel) ctx.channel();
+        request = new Request(ctx, BenchmarkRequests.browserGET("/api/users"));
+        users = new User[numUsers];
+        for (int i = 0; i < numUsers; i++) {
+            // Every fourth name is non-ASCII, and every tenth needs escaping
+            String name = i % 4 == 3 ? "Zo\u00eb \u00c5str\u00f6m " : i % 10 == 9 ? "Bob \"The Builder\" "
+                    : "Alice Smith ";
+            name += i;
+            users[i] = new User(100000L + i, name, "user" + i + "@example.com", i % 3 != 0, i * 1.25 + 0.5);
+        }
+    }
+
+    private static void appendString(StringBuilder buf, String str) {
+        buf.append('"');
+        for (int i = 0, n = str.length(); i < n; i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    private Object drainOutbound() {
+        Object msg, last = null;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+            last = msg;
+        }
+        return last;
+    }
+
+    @Benchmark
+    public Object stringToTextResponse() throws ResponseException {
+        StringBuilder buf = new StringBuilder();
+        buf.append('[');
+        for (int i = 0; i < users.length; i++) {
+            User user = users[i];
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append("{\"id\":").append(user.id);
+            buf.append(",\"name\":");
+            appendString(buf, user.name);
+            buf.append(",\"email\":");
+            appendString(buf, user.email);
+            buf.append(",\"active\":").append(user.active);
+            buf.append(",\"score\":").append(user.score);
+            buf.append('}');
+        }
+        buf.append(']');
+        new TextResponse(request, buf.toString()).send(ctx);
+        return drainOutbound();
+    }
+
+    @Benchmark
+    public Object jsonWriterToJsonResponse() throws ResponseException {
+        JsonWriter writer = new JsonWriter();
+        writer.beginArray();
+        for (User user : users) {
+            writer.beginObject() //
+                    .field(ID, user.id) //
+                    .field(NAME, user.name) //
+                    .field(EMAIL, user.email) //
+                    .field(ACTIVE, user.active) //
+                    .field(SCORE, user.score) //
+                    .endObject();
+        }
+        writer.endArray();
+        new JsonResponse(request, writer).send(ctx);
+        return drainOutbound();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.metrics.LatencyHistogram;
+import gribbit.http.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of recording request metrics. recordRequest includes the per-thread histogram lookup, and is run with
+ * several threads to check that recording does not contend across threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private long value = 1;
+
+    private static final String ROUTE = "com.example.app.PageHandler";
+
+    @Benchmark
+    public void histogramRecordValue() {
+        // Cycle through a range of values, so that different buckets are hit
+        value = (value * 31 + 7) & 0xfffff;
+        histogram.recordValue(value);
+    }
+
+    @Benchmark
+    public void recordRequest() {
+        value = (value * 31 + 7) & 0xfffff;
+        Metrics.recordRequest(ROUTE, 200, value * 1000L);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordRequest4Threads() {
+        value = (value * 31 + 7) & 0xfffff;
+        Metrics.recordRequest(ROUTE, 200, value * 1000L);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.exception.ResponseException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of constructing a Request from a typical set of browser headers. Run with "-prof gc" to see allocation per
+ * request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBenchmark {
+    private ChannelHandlerContext ctx;
+    private FullHttpRequest staticFileReq;
+
+    @Setup
+    public void setup() {
+        ctx = BenchmarkRequests.newChannelContext();
+        staticFileReq = BenchmarkRequests.browserGET("/static/css/site.css");
+    }
+
+    /** What a static file handler pays: only the URL and If-Modified-Since are looked at. */
+    @Benchmark
+    public boolean constructForStaticFile() throws ResponseException {
+        Request request = new Request(ctx, staticFileReq);
+        return request.contentModified(1445412480L);
+    }
+
+    /** Upper bound: a handler that reads every header, the cookies and the requestor address. */
+    @Benchmark
+    public void constructAndReadAllHeaders(Blackhole bh) throws ResponseException {
+        Request request = new Request(ctx, staticFileReq);
+        bh.consume(request.getURL());
+        bh.consume(request.getCookieValue("session"));
+        bh.consume(request.contentModified(1445412480L));
+        bh.consume(request.getRequestor());
+        bh.consume(request.getHost());
+        bh.consume(request.getAccept());
+        bh.consume(request.getAcceptCharset());
+        bh.consume(request.getAcceptLanguage());
+        bh.consume(request.acceptEncodingGzip());
+        bh.consume(request.getReferer());
+        bh.consume(request.getUserAgent());
+        bh.consume(request.getOrigin());
+        bh.consume(request.getXRequestedWith());
+        bh.consume(request.getStreamId());
+        bh.consume(request.isSecure());
+    }
+}
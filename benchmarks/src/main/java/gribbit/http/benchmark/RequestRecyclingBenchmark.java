@@ -0,0 +1,87 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.exception.ResponseException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation per request with and without Request recycling. Run with "-prof gc" and compare
+ * gc.alloc.rate.norm between the two benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestRecyclingBenchmark {
+    private ChannelHandlerContext ctx;
+    private FullHttpRequest req;
+
+    @Setup
+    public void setup() {
+        ctx = BenchmarkRequests.newChannelContext();
+        req = BenchmarkRequests.browserGET("/app/page?id=42&sort=asc");
+    }
+
+    private static int touch(Request request) {
+        // Read the fields a typical handler looks at, so that the lazily-decoded state is populated
+        return request.getURL().length() + (request.getCookieValue("session") == null ? 0 : 1)
+                + request.getQueryParamInt("id", 0);
+    }
+
+    @Benchmark
+    public int allocated() throws ResponseException {
+        Request request = new Request(ctx, req);
+        int result = touch(request);
+        request.recycle();
+        return result;
+    }
+
+    @Benchmark
+    public int recycled() throws ResponseException {
+        Request request = Request.newRecycledInstance(ctx, req);
+        int result = touch(request);
+        request.recycle();
+        return result;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.response.exception.ResponseException;
+import gribbit.http.route.RequestURL;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** URL path normalization and (lazy) query param decoding. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestURLBenchmark {
+    @Param({ "/static/css/site.css", // Already normalized (fast path)
+            "/static/./css//site.css", // Needs normalizing, but no escaping
+            "/docs/caf%C3%A9/../menu%20items/", // Needs unescaping and re-escaping
+    })
+    public String path;
+
+    @Param({ "", "?q=netty+http&page=2&sort=date" })
+    public String query;
+
+    private String url;
+
+    @Setup
+    public void setup() {
+        url = path + query;
+    }
+
+    /** Normalize the path only -- query params are never looked at (e.g. for static files). */
+    @Benchmark
+    public String normalize() throws ResponseException {
+        return new RequestURL(url).getNormalizedPath();
+    }
+
+    /** Normalize the path, then look up a query param (forces the query string to be decoded). */
+    @Benchmark
+    public List<String> normalizeAndGetQueryParam() throws ResponseException {
+        RequestURL requestURL = new RequestURL(url);
+        requestURL.getNormalizedPath();
+        return requestURL.getQueryParams().get("page");
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.EmptyErrorResponse;
+import gribbit.http.response.exception.ResponseException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building and writing the response headers. The headers are written to an EmbeddedChannel with no
+ * encoder, so this measures header construction and the pipeline write, not HTTP encoding or I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+    private ChannelHandlerContext ctx;
+    private EmbeddedChannel channel;
+    private Request request;
+
+    /** Exposes sendHeaders() to the benchmark. */
+    private static class HeadersOnlyResponse extends EmptyErrorResponse {
+        public HeadersOnlyResponse(Request request) {
+            super(request, HttpResponseStatus.OK);
+        }
+
+        public void writeHeaders(ChannelHandlerContext ctx) {
+            sendHeaders(ctx);
+        }
+    }
+
+    @Setup
+    public void setup() throws ResponseException {
+        ctx = BenchmarkRequests.newChannelContext();
+        channel = (EmbeddedChannel) ctx.channel();
+        request = new Request(ctx, BenchmarkRequests.browserGET("/index.html"));
+    }
+
+    @Benchmark
+    public Object sendHeaders() {
+        HeadersOnlyResponse response = new HeadersOnlyResponse(request);
+        response.writeHeaders(ctx);
+        channel.flush();
+        Object msg = channel.readOutbound();
+        ReferenceCountUtil.release(msg);
+        return msg;
+    }
+}
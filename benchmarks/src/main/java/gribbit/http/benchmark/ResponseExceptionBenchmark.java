@@ -0,0 +1,90 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.Response;
+import gribbit.http.response.exception.InternalServerErrorException;
+import gribbit.http.response.exception.NotFoundException;
+import gribbit.http.response.exception.ResponseException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the error path: constructing the exception (with or without a stack trace) and generating the default
+ * error response for it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseExceptionBenchmark {
+    private Request request;
+    private NotFoundException notFound;
+
+    @Setup
+    public void setup() throws ResponseException {
+        request = new Request(BenchmarkRequests.newChannelContext(), BenchmarkRequests.browserGET("/missing"));
+        notFound = new NotFoundException();
+    }
+
+    /** Response generation only, for an existing exception. */
+    @Benchmark
+    public Response generateErrorResponse() {
+        Response response = notFound.generateErrorResponse(request);
+        response.close();
+        return response;
+    }
+
+    /** A 404: LightweightResponseException subclasses skip filling in the stack trace. */
+    @Benchmark
+    public Response notFound() {
+        Response response = new NotFoundException().generateErrorResponse(request);
+        response.close();
+        return response;
+    }
+
+    /** A 500: the exception captures a stack trace. */
+    @Benchmark
+    public Response internalServerError() {
+        Response response = new InternalServerErrorException().generateErrorResponse(request);
+        response.close();
+        return response;
+    }
+}
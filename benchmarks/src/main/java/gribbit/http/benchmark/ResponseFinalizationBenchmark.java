@@ -0,0 +1,90 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.EmptyErrorResponse;
+import gribbit.http.response.exception.ResponseException;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Response allocation with and without a finalize() method. Run with "-prof gc": the finalizable version
+ * shows lower throughput and higher GC counts/time, since every instance must be registered with, and processed
+ * by, the finalizer thread before it can be reclaimed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseFinalizationBenchmark {
+    private Request request;
+
+    @Setup
+    public void setup() throws ResponseException {
+        request = new Request(BenchmarkRequests.newChannelContext(), BenchmarkRequests.browserGET("/"));
+    }
+
+    /** How Response behaved before finalize() was removed. */
+    private static class FinalizableResponse extends EmptyErrorResponse {
+        public FinalizableResponse(Request request, HttpResponseStatus status) {
+            super(request, status);
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            close();
+        }
+    }
+
+    @Benchmark
+    public Object withoutFinalizer() {
+        EmptyErrorResponse response = new EmptyErrorResponse(request, HttpResponseStatus.NO_CONTENT);
+        response.close();
+        return response;
+    }
+
+    @Benchmark
+    public Object withFinalizer() {
+        EmptyErrorResponse response = new FinalizableResponse(request, HttpResponseStatus.NO_CONTENT);
+        response.close();
+        return response;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.utils.URLUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class URLUtilsBenchmark {
+    @Param({ "site.css", // Nothing to escape (the common case)
+            "menu items (new)", // A few ASCII chars to escape
+            "caf\u00e9-cr\u00e8me/\u00fcber", // Non-ASCII chars to escape
+    })
+    public String segment;
+
+    private String escaped;
+    private ByteBuf buf;
+
+    @Setup
+    public void setup() {
+        escaped = URLUtils.escapeURLSegment(segment);
+        buf = Unpooled.buffer(256);
+    }
+
+    @Benchmark
+    public String escapeURLSegment() {
+        return URLUtils.escapeURLSegment(segment);
+    }
+
+    @Benchmark
+    public int escapeURLSegmentToByteBuf() {
+        buf.clear();
+        URLUtils.escapeURLSegment(segment, buf);
+        return buf.writerIndex();
+    }
+
+    @Benchmark
+    public String unescapeURLSegment() {
+        return URLUtils.unescapeURLSegment(escaped);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.benchmark;
+
+import gribbit.http.utils.UTF8;
+import gribbit.http.utils.UTF8.UTF8Exception;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UTF8Benchmark {
+    @Param({ "ascii", "latin1", "cjk" })
+    public String charset;
+
+    @Param({ "16", "1024" })
+    public int length;
+
+    private String string;
+    private byte[] bytes;
+    private ByteBuf directBuf;
+
+    @Setup
+    public void setup() {
+        String chars = charset.equals("ascii") ? "The quick brown fox jumps over the lazy dog. "
+                : charset.equals("latin1") ? "\u00c7a \u00e9t\u00e9 tr\u00e8s agr\u00e9able, merci \u00e0 vous. "
+                        : "\u654f\u6377\u7684\u68d5\u8272\u72d0\u72f8\u8df3\u8fc7\u4e86\u61d2\u72d7\u3002";
+        StringBuilder buf = new StringBuilder(length);
+        while (buf.length() < length) {
+            buf.append(chars.charAt(buf.length() % chars.length()));
+        }
+        string = buf.toString();
+        bytes = UTF8.stringToUTF8(string);
+        directBuf = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        directBuf.release();
+    }
+
+    @Benchmark
+    public String utf8ToString() throws UTF8Exception {
+        return UTF8.utf8ToString(bytes);
+    }
+
+    /** Decoding in place from a direct buffer, e.g. the content of a WebSocket text frame. */
+    @Benchmark
+    public String utf8ToStringDirectByteBuf() throws UTF8Exception {
+        return UTF8.utf8ToString(directBuf);
+    }
+
+    @Benchmark
+    public int stringToUTF8ByteBuf() {
+        ByteBuf byteBuf = UTF8.stringToUTF8ByteBuf(string);
+        int len = byteBuf.readableBytes();
+        byteBuf.release();
+        return len;
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+import gribbit.http.metrics.LatencyHistogram;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * One client connection. Requests "arrive" at their intended start time (see LoadGenerator), and are queued until
+ * the connection can send them: HTTP/1.1 and WebSocket connections have at most one request in flight, and HTTP/2
+ * connections have at most maxInFlight streams open.
+ * 
+ * Response time is measured from the intended start time, not from when the request was actually sent, so that
+ * time spent waiting for an earlier slow response is counted (otherwise a stalled server would "coordinate" with
+ * the client to hide its own stalls, and the latency percentiles would be far too optimistic). Service time,
+ * measured from when the request was sent, is recorded separately.
+ * 
+ * All state is only accessed from the channel's event loop.
+ */
+class ClientConnection extends SimpleChannelInboundHandler<Object> {
+    private final LoadGenerator generator;
+    private final boolean http2;
+    private final int maxInFlight;
+    private final WebSocketClientHandshaker handshaker;
+
+    private final ChannelPromise ready;
+    private ChannelHandlerContext ctx;
+
+    /** The intended start times of requests that have arrived but not yet been sent. */
+    private final ArrayDeque<Long> queued = new ArrayDeque<>();
+
+    /** { intended start time, send time } of the HTTP/1.1 requests or WebSocket messages in flight, in order. */
+    private final ArrayDeque<long[]> inFlight = new ArrayDeque<>();
+
+    /** { intended start time, send time } of the HTTP/2 requests in flight, indexed by stream id. */
+    private final HashMap<Integer, long[]> inFlightStreams = new HashMap<>();
+
+    /** Requests with an intended start time before this are part of the warmup, and are not counted. */
+    private long measureStartNanos = Long.MAX_VALUE;
+
+    private int nextStreamId = 3;
+    private boolean closedLoop;
+    private boolean stopped;
+
+    // Results
+    final LatencyHistogram responseTime = new LatencyHistogram();
+    final LatencyHistogram serviceTime = new LatencyHistogram();
+    long completed;
+    long errors;
+
+    ClientConnection(LoadGenerator generator, boolean http2, int maxInFlight, WebSocketClientHandshaker handshaker,
+            ChannelPromise ready) {
+        this.generator = generator;
+        this.http2 = http2;
+        this.maxInFlight = http2 ? maxInFlight : 1;
+        this.handshaker = handshaker;
+        this.ready = ready;
+    }
+
+    /** Completes once the connection is ready to send requests. */
+    ChannelFuture getReadyFuture() {
+        return ready;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        if (ctx.channel().isActive()) {
+            // Added after the TLS handshake and protocol negotiation
+            connectionActive();
+        }
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        connectionActive();
+        super.channelActive(ctx);
+    }
+
+    private void connectionActive() {
+        if (handshaker != null) {
+            // Ready once the handshake response is received
+            handshaker.handshake(ctx.channel());
+        } else if (!http2) {
+            ready.trySuccess();
+        }
+        // HTTP/2 connections are ready once the server's SETTINGS frame is received
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // Anything not yet completed has failed
+        for (Long intended : queued) {
+            failed(intended);
+        }
+        for (long[] times : inFlight) {
+            failed(times[0]);
+        }
+        for (long[] times : inFlightStreams.values()) {
+            failed(times[0]);
+        }
+        queued.clear();
+        inFlight.clear();
+        inFlightStreams.clear();
+        ready.tryFailure(new IOException("Connection closed"));
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ready.tryFailure(cause);
+        ctx.close();
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Set the start of the measurement period. Called by the arrival thread before any requests are submitted. */
+    void setMeasureStartNanos(final long measureStartNanos) {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                ClientConnection.this.measureStartNanos = measureStartNanos;
+            }
+        });
+    }
+
+    /** A request arrives at its intended start time. Called by the arrival thread. */
+    void submit(final long intendedStartNanos) {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!stopped) {
+                    queued.add(intendedStartNanos);
+                    sendQueued();
+                }
+            }
+        });
+    }
+
+    /** Keep maxInFlight requests in flight, sending a new request as soon as each response is received. */
+    void startClosedLoop() {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                closedLoop = true;
+                long now = System.nanoTime();
+                for (int i = 0; i < maxInFlight; i++) {
+                    queued.add(now);
+                }
+                sendQueued();
+            }
+        });
+    }
+
+    /** Stop sending new requests. Requests already in flight are still completed. Called by the arrival thread. */
+    void stop() {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                stopped = true;
+                for (Long intended : queued) {
+                    failed(intended);
+                }
+                queued.clear();
+            }
+        });
+    }
+
+    /** The number of requests queued or in flight. Must be called on the event loop. */
+    int getOutstanding() {
+        return queued.size() + inFlight.size() + inFlightStreams.size();
+    }
+
+    /** Add the results of this connection to a ScenarioResult. Must be called on the event loop. */
+    void addResultsTo(ScenarioResult result) {
+        responseTime.addTo(result.responseTime);
+        serviceTime.addTo(result.serviceTime);
+        result.completed += completed;
+        result.errors += errors;
+        result.incomplete += getOutstanding();
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    private final ChannelFutureListener writeFailureListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess()) {
+                // Closing the channel fails the requests in flight
+                future.channel().close();
+            }
+        }
+    };
+
+    private void sendQueued() {
+        boolean sent = false;
+        while (!queued.isEmpty() && inFlight.size() + inFlightStreams.size() < maxInFlight
+                && ctx.channel().isActive()) {
+            long[] times = new long[] { queued.poll(), System.nanoTime() };
+            if (handshaker != null) {
+                inFlight.add(times);
+                ctx.write(new TextWebSocketFrame(generator.newWebSocketMessage())).addListener(
+                        writeFailureListener);
+            } else {
+                FullHttpRequest request = generator.newRequest();
+                if (http2) {
+                    int streamId = nextStreamId;
+                    nextStreamId += 2;
+                    request.headers().setInt(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(), streamId);
+                    request.headers().set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), "https");
+                    inFlightStreams.put(streamId, times);
+                } else {
+                    inFlight.add(times);
+                }
+                ctx.write(request).addListener(writeFailureListener);
+            }
+            sent = true;
+        }
+        if (sent) {
+            ctx.flush();
+        }
+    }
+
+    private void completed(long[] times, boolean success) {
+        long now = System.nanoTime();
+        if (times[0] >= measureStartNanos) {
+            if (success) {
+                responseTime.recordValue((now - times[0]) / 1000L);
+                serviceTime.recordValue((now - times[1]) / 1000L);
+                completed++;
+            } else {
+                errors++;
+            }
+        }
+        if (closedLoop && !stopped) {
+            queued.add(now);
+        }
+    }
+
+    private void failed(long intendedStartNanos) {
+        if (intendedStartNanos >= measureStartNanos) {
+            errors++;
+        }
+    }
+
+    @Override
+    protected void messageReceived(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof FullHttpResponse) {
+            FullHttpResponse response = (FullHttpResponse) msg;
+            if (handshaker != null && !handshaker.isHandshakeComplete()) {
+                handshaker.finishHandshake(ctx.channel(), response);
+                ready.trySuccess();
+                return;
+            }
+            boolean success = response.status().code() < 400;
+            long[] times = http2 ? inFlightStreams.remove(response.headers().getInt(
+                    HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text())) : inFlight.poll();
+            if (times != null) {
+                completed(times, success);
+            }
+        } else if (msg instanceof TextWebSocketFrame) {
+            long[] times = inFlight.poll();
+            if (times != null) {
+                completed(times, true);
+            }
+        } else if (msg instanceof CloseWebSocketFrame) {
+            ctx.close();
+            return;
+        } else if (msg instanceof Http2Settings) {
+            ready.trySuccess();
+            return;
+        }
+        sendQueued();
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+import gribbit.http.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the retained heap and direct memory per open connection, for idle connections, keep-alive connections
+ * that have served one request, and WebSocket connections. Starts a GribbitHttpServer in-process, opens the
+ * connections from a separate client process (so that client sockets are not counted), and compares the heap and
+ * direct memory in use after a full GC before and after the connections are opened.
+ * 
+ * Usage: java -cp loadtest.jar gribbit.http.loadtest.ConnectionFootprint [--connections N] [--mode
+ * idle|keepalive|websocket|all]
+ * 
+ * The number of connections is limited by the per-process file descriptor limit (ulimit -n) of both processes.
+ */
+public class ConnectionFootprint {
+    private static final String READY = "READY";
+
+    private static final List<String> MODES = Arrays.asList("idle", "keepalive", "websocket");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--client")) {
+            runClient(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), args[4]);
+            return;
+        }
+        int connections = 10000;
+        List<String> modes = MODES;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--connections")) {
+                connections = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--mode")) {
+                modes = args[i + 1].equals("all") ? MODES : Arrays.asList(args[i + 1].split(","));
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+        // Make Netty allocate direct buffers through ByteBuffer.allocateDirect(), so that they are counted by the
+        // "direct" BufferPoolMXBean
+        System.setProperty("io.netty.maxDirectMemory", "0");
+
+        LoadTestServer server = new LoadTestServer(false, 1024);
+        server.start();
+        List<String> results = new ArrayList<>();
+        try {
+            for (String mode : modes) {
+                if (!MODES.contains(mode)) {
+                    throw new IllegalArgumentException("Unknown mode: " + mode);
+                }
+                Log.info("Measuring " + connections + " " + mode + " connections");
+                results.add(measure(server.getPort(), connections, mode));
+            }
+        } finally {
+            server.stop();
+        }
+        System.out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            System.out.println("  " + results.get(i) + (i < results.size() - 1 ? "," : ""));
+        }
+        System.out.println("]");
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    private static String measure(int port, int connections, String mode) throws IOException,
+            InterruptedException {
+        long heapBefore = usedHeapAfterGC();
+        long directBefore = usedDirectMemory();
+
+        Process client = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+                System.getProperty("java.class.path"), ConnectionFootprint.class.getName(), "--client",
+                "localhost", Integer.toString(port), Integer.toString(connections), mode).redirectErrorStream(true)
+                .start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                    StandardCharsets.UTF_8));
+            for (String line; !READY.equals(line = reader.readLine());) {
+                if (line == null) {
+                    throw new IOException("Client process exited before opening all connections");
+                }
+                System.err.println("client: " + line);
+            }
+            // Give the server time to process the last connections
+            Thread.sleep(1000);
+
+            long heapPerConnection = (usedHeapAfterGC() - heapBefore) / connections;
+            long directPerConnection = (usedDirectMemory() - directBefore) / connections;
+            return String.format(Locale.ROOT, "{\"mode\": \"%s\", \"connections\": %d, "
+                    + "\"heapBytesPerConnection\": %d, \"directBytesPerConnection\": %d}", mode, connections,
+                    heapPerConnection, directPerConnection);
+        } finally {
+            client.destroy();
+            client.waitFor();
+            // Wait for the server to close the connections
+            Thread.sleep(1000);
+        }
+    }
+
+    private static long usedHeapAfterGC() throws InterruptedException {
+        // Repeat, since a single System.gc() may not collect everything that is unreachable
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirectMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0L;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Open the connections, print READY, then hold the connections open until killed. */
+    private static void runClient(String host, int port, int connections, String mode) throws Exception {
+        List<Socket> sockets = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port));
+            if (mode.equals("keepalive")) {
+                sendAndReadHeaders(socket, "GET " + Scenario.SMALL_DYNAMIC.path + " HTTP/1.1\r\nHost: " + host
+                        + "\r\nConnection: keep-alive\r\n\r\n", "HTTP/1.1 200");
+            } else if (mode.equals("websocket")) {
+                sendAndReadHeaders(socket, "GET " + Scenario.WEBSOCKET_ECHO.path + " HTTP/1.1\r\nHost: " + host
+                        + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n",
+                        "HTTP/1.1 101");
+            }
+            sockets.add(socket);
+        }
+        System.out.println(READY);
+        System.out.flush();
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /**
+     * Send a request and read the response headers, checking the status line, and skip the response body if it
+     * has a Content-Length.
+     */
+    private static void sendAndReadHeaders(Socket socket, String request, String expectedStatus)
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed while reading response headers");
+            }
+            headerBytes.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        String headers = new String(headerBytes.toByteArray(), StandardCharsets.US_ASCII);
+        if (!headers.startsWith(expectedStatus)) {
+            throw new IOException("Unexpected response: " + headers);
+        }
+        for (String line : headers.split("\r\n")) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                long remaining = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                while (remaining > 0) {
+                    long skipped = in.skip(remaining);
+                    if (skipped <= 0) {
+                        if (in.read() < 0) {
+                            throw new IOException("Connection closed while reading response body");
+                        }
+                        skipped = 1;
+                    }
+                    remaining -= skipped;
+                }
+            }
+        }
+    }
+}
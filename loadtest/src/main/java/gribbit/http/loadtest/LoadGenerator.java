@@ -0,0 +1,289 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderNames.HOST;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives one scenario against the server. Requests are generated open-loop by a single arrival thread, at the
+ * target rate regardless of how quickly the server responds, and assigned round-robin to the connections.
+ */
+class LoadGenerator {
+    private final LoadTestOptions options;
+    private final Scenario scenario;
+    private final String host;
+    private final int port;
+
+    private final byte[] uploadBody;
+    private final String uploadContentType;
+    private final byte[] webSocketMessage;
+
+    private static final String BOUNDARY = "----gribbit-loadtest-boundary";
+
+    /** Wait up to this long for outstanding requests to complete after the measurement period ends. */
+    private static final long DRAIN_TIMEOUT_MILLIS = 10000L;
+
+    /** Maximum response size (the static file may be larger than the default aggregator limit). */
+    private static final int MAX_CONTENT_LENGTH = 64 * 1024 * 1024;
+
+    LoadGenerator(LoadTestOptions options, Scenario scenario, String host, int port) {
+        this.options = options;
+        this.scenario = scenario;
+        this.host = host;
+        this.port = port;
+
+        byte[] fileContent = new byte[options.uploadBytes];
+        new Random(0).nextBytes(fileContent);
+        byte[] prefix = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"upload.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] suffix = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        uploadBody = new byte[prefix.length + fileContent.length + suffix.length];
+        System.arraycopy(prefix, 0, uploadBody, 0, prefix.length);
+        System.arraycopy(fileContent, 0, uploadBody, prefix.length, fileContent.length);
+        System.arraycopy(suffix, 0, uploadBody, prefix.length + fileContent.length, suffix.length);
+        uploadContentType = "multipart/form-data; boundary=" + BOUNDARY;
+
+        webSocketMessage = new byte[options.webSocketMessageBytes];
+        Arrays.fill(webSocketMessage, (byte) 'x');
+    }
+
+    /** Create the next request for this scenario. Called by the connections' event loops. */
+    FullHttpRequest newRequest() {
+        FullHttpRequest request;
+        if (scenario == Scenario.POST_UPLOAD) {
+            request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, scenario.path,
+                    Unpooled.wrappedBuffer(uploadBody));
+            request.headers().set(CONTENT_TYPE, uploadContentType);
+            request.headers().setInt(CONTENT_LENGTH, uploadBody.length);
+        } else {
+            request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, scenario.path);
+        }
+        request.headers().set(HOST, host + ":" + port);
+        return request;
+    }
+
+    /** Create the next WebSocket message. Called by the connections' event loops. */
+    ByteBuf newWebSocketMessage() {
+        return Unpooled.wrappedBuffer(webSocketMessage);
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    private static SslContext configureTLS() throws Exception {
+        ApplicationProtocolConfig apn = new ApplicationProtocolConfig(Protocol.ALPN,
+                SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                ApplicationProtocolNames.HTTP_2);
+        // The server uses a self-signed certificate
+        return SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(apn).build();
+    }
+
+    private ClientConnection connect(Bootstrap bootstrap, final SslContext sslCtx) throws Exception {
+        final ClientConnection[] connection = new ClientConnection[1];
+        bootstrap.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                WebSocketClientHandshaker handshaker = scenario != Scenario.WEBSOCKET_ECHO ? null
+                        : WebSocketClientHandshakerFactory.newHandshaker(new URI("ws://" + host + ":" + port
+                                + scenario.path), WebSocketVersion.V13, null, false, new DefaultHttpHeaders());
+                final ClientConnection conn = connection[0] = new ClientConnection(LoadGenerator.this,
+                        sslCtx != null, options.maxInFlight, handshaker, ch.newPromise());
+                ChannelPipeline p = ch.pipeline();
+                if (sslCtx != null) {
+                    p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
+                    p.addLast(new ApplicationProtocolNegotiationHandler("") {
+                        @Override
+                        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                            if (!ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                throw new IllegalStateException("Server did not negotiate HTTP/2: " + protocol);
+                            }
+                            DefaultHttp2Connection connection = new DefaultHttp2Connection(false);
+                            InboundHttp2ToHttpAdapter listener = new InboundHttp2ToHttpAdapter.Builder(connection)
+                                    .propagateSettings(true).maxContentLength(MAX_CONTENT_LENGTH).build();
+                            ctx.pipeline().addLast(
+                                    new HttpToHttp2ConnectionHandler.Builder().frameListener(listener).build(
+                                            connection));
+                            ctx.pipeline().addLast(conn);
+                        }
+                    });
+                } else {
+                    p.addLast(new HttpClientCodec());
+                    p.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                    p.addLast(conn);
+                }
+            }
+        });
+        Channel channel = bootstrap.connect(host, port).sync().channel();
+        ChannelFuture ready = connection[0].getReadyFuture();
+        if (!ready.await(10, TimeUnit.SECONDS) || !ready.isSuccess()) {
+            channel.close();
+            throw new IllegalStateException("Connection was not ready", ready.cause());
+        }
+        return connection[0];
+    }
+
+    /** Run on the event loop of the given connection, and wait for the result. */
+    private static <T> T onEventLoop(ClientConnection conn, Callable<T> task) throws Exception {
+        return conn.getReadyFuture().channel().eventLoop().submit(task).get();
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    ScenarioResult run() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup();
+        List<ClientConnection> connections = new ArrayList<>();
+        try {
+            SslContext sslCtx = options.isHttp2() ? configureTLS() : null;
+            Bootstrap bootstrap = new Bootstrap().group(group).channel(NioSocketChannel.class) //
+                    .option(ChannelOption.TCP_NODELAY, true);
+
+            // All connections are opened before the warmup period starts
+            for (int i = 0; i < options.connections; i++) {
+                connections.add(connect(bootstrap, sslCtx));
+            }
+            long startNanos = System.nanoTime();
+            long measureStartNanos = startNanos + (long) (options.warmupSeconds * 1.0e9);
+            long endNanos = measureStartNanos + (long) (options.durationSeconds * 1.0e9);
+            for (ClientConnection conn : connections) {
+                conn.setMeasureStartNanos(measureStartNanos);
+            }
+
+            if (options.rate > 0) {
+                // Open loop: generate arrivals at the intended times, whether or not earlier requests completed.
+                // If this thread falls behind, arrivals are still stamped with their intended time.
+                Random random = new Random(0);
+                double meanIntervalNanos = 1.0e9 / options.rate;
+                boolean poisson = options.arrival.equals("poisson");
+                double nextNanos = startNanos;
+                for (long i = 0; (long) nextNanos < endNanos; i++) {
+                    long intended = (long) nextNanos;
+                    parkUntil(intended);
+                    connections.get((int) (i % connections.size())).submit(intended);
+                    nextNanos += poisson ? -Math.log(1.0 - random.nextDouble()) * meanIntervalNanos
+                            : meanIntervalNanos;
+                }
+            } else {
+                // Closed loop: each connection sends a new request as soon as a response is received
+                for (ClientConnection conn : connections) {
+                    conn.startClosedLoop();
+                }
+                parkUntil(endNanos);
+            }
+            for (ClientConnection conn : connections) {
+                conn.stop();
+            }
+
+            // Wait for outstanding requests to complete
+            long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+            for (final ClientConnection conn : connections) {
+                while (System.currentTimeMillis() < drainDeadline && onEventLoop(conn, new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return conn.getOutstanding();
+                    }
+                }) > 0) {
+                    Thread.sleep(10);
+                }
+            }
+
+            final ScenarioResult result = new ScenarioResult(scenario);
+            result.measuredSeconds = options.durationSeconds;
+            for (final ClientConnection conn : connections) {
+                onEventLoop(conn, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        conn.addResultsTo(result);
+                        return null;
+                    }
+                });
+            }
+            return result;
+
+        } finally {
+            for (ClientConnection conn : connections) {
+                conn.getReadyFuture().channel().close();
+            }
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    private static void parkUntil(long deadlineNanos) {
+        for (long remaining; (remaining = deadlineNanos - System.nanoTime()) > 0;) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
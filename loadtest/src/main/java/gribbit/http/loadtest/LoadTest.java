@@ -0,0 +1,115 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+import gribbit.http.logging.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * End-to-end load test. Starts a GribbitHttpServer in-process on loopback, runs each scenario against it, and
+ * writes the results as JSON, so that the latency and throughput of different builds can be compared.
+ * 
+ * Since the client and server share the same machine (and JVM), results are only meaningful relative to other
+ * runs on the same hardware with the same options.
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        String startTime = Instant.now().toString();
+        LoadTestServer server = new LoadTestServer(options.isHttp2(), options.fileBytes);
+        server.start();
+        List<ScenarioResult> results = new ArrayList<>();
+        try {
+            for (Scenario scenario : options.scenarios) {
+                if (scenario == Scenario.WEBSOCKET_ECHO && options.isHttp2()) {
+                    Log.warning("Skipping scenario " + scenario.name + ": WebSockets are not supported over HTTP/2");
+                    continue;
+                }
+                Log.info("Running scenario " + scenario.name);
+                results.add(new LoadGenerator(options, scenario, "localhost", server.getPort()).run());
+            }
+        } finally {
+            server.stop();
+        }
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\n");
+        buf.append("  \"label\": \"").append(escapeJSON(options.label)).append("\",\n");
+        buf.append("  \"startTime\": \"").append(startTime).append("\",\n");
+        buf.append("  \"javaVersion\": \"").append(escapeJSON(System.getProperty("java.version"))).append("\",\n");
+        buf.append("  \"availableProcessors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        buf.append("  \"warmupSeconds\": ").append(options.warmupSeconds).append(",\n");
+        buf.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            results.get(i).appendJSON(buf, options);
+            buf.append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        buf.append("  ]\n}\n");
+
+        if (options.out == null) {
+            System.out.print(buf);
+        } else {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(options.out), StandardCharsets.UTF_8)) {
+                writer.write(buf.toString());
+            } catch (IOException e) {
+                Log.exception("Could not write report to " + options.out, e);
+                System.exit(1);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String escapeJSON(String str) {
+        StringBuilder buf = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Load test options, parsed from the commandline. */
+class LoadTestOptions {
+    List<Scenario> scenarios = Arrays.asList(Scenario.values());
+
+    /** "h1" for HTTP/1.1 over plaintext, or "h2" for HTTP/2 over TLS (negotiated with ALPN). */
+    String protocol = "h1";
+
+    /** The total request rate across all connections, per second, or 0 to run closed-loop (as fast as possible). */
+    double rate = 1000.0;
+
+    /** "constant" for evenly spaced arrivals, or "poisson" for exponentially distributed inter-arrival times. */
+    String arrival = "constant";
+
+    int connections = 16;
+
+    /** The maximum number of concurrent streams per HTTP/2 connection (HTTP/1.1 connections always send 1). */
+    int maxInFlight = 32;
+
+    double warmupSeconds = 5.0;
+    double durationSeconds = 30.0;
+
+    int fileBytes = 64 * 1024;
+    int uploadBytes = 16 * 1024;
+    int webSocketMessageBytes = 128;
+
+    /** A label for the build being tested, e.g. a version number or commit hash. */
+    String label = "";
+
+    /** The file to write the JSON report to, or null for stdout. */
+    String out = null;
+
+    static final String USAGE = "Usage: java -jar loadtest.jar [options]\n" //
+            + "  --scenario small|static|upload|websocket|all  (comma-separated, default: all)\n" //
+            + "  --protocol h1|h2            HTTP/1.1 over plaintext, or HTTP/2 over TLS (default: h1)\n" //
+            + "  --rate N                    total requests per second, or 0 for closed-loop (default: 1000)\n" //
+            + "  --arrival constant|poisson  inter-arrival time distribution (default: constant)\n" //
+            + "  --connections N             (default: 16)\n" //
+            + "  --max-inflight N            max concurrent streams per HTTP/2 connection (default: 32)\n" //
+            + "  --warmup SECONDS            (default: 5)\n" //
+            + "  --duration SECONDS          (default: 30)\n" //
+            + "  --file-bytes N              size of the static file (default: 65536)\n" //
+            + "  --upload-bytes N            size of the uploaded file (default: 16384)\n" //
+            + "  --message-bytes N           size of the WebSocket message (default: 128)\n" //
+            + "  --label LABEL               label for the build under test, included in the report\n" //
+            + "  --out FILE                  write the JSON report to FILE (default: stdout)";
+
+    static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || arg.equals("-h")) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            if (i == args.length - 1) {
+                throw new IllegalArgumentException("Missing value for " + arg + "\n" + USAGE);
+            }
+            String val = args[++i];
+            switch (arg) {
+            case "--scenario":
+                if (!val.equals("all")) {
+                    options.scenarios = new ArrayList<>();
+                    for (String name : val.split(",")) {
+                        options.scenarios.add(Scenario.forName(name));
+                    }
+                }
+                break;
+            case "--protocol":
+                if (!val.equals("h1") && !val.equals("h2")) {
+                    throw new IllegalArgumentException("Unknown protocol: " + val);
+                }
+                options.protocol = val;
+                break;
+            case "--rate":
+                options.rate = Double.parseDouble(val);
+                break;
+            case "--arrival":
+                if (!val.equals("constant") && !val.equals("poisson")) {
+                    throw new IllegalArgumentException("Unknown arrival distribution: " + val);
+                }
+                options.arrival = val;
+                break;
+            case "--connections":
+                options.connections = Integer.parseInt(val);
+                break;
+            case "--max-inflight":
+                options.maxInFlight = Integer.parseInt(val);
+                break;
+            case "--warmup":
+                options.warmupSeconds = Double.parseDouble(val);
+                break;
+            case "--duration":
+                options.durationSeconds = Double.parseDouble(val);
+                break;
+            case "--file-bytes":
+                options.fileBytes = Integer.parseInt(val);
+                break;
+            case "--upload-bytes":
+                options.uploadBytes = Integer.parseInt(val);
+                break;
+            case "--message-bytes":
+                options.webSocketMessageBytes = Integer.parseInt(val);
+                break;
+            case "--label":
+                options.label = val;
+                break;
+            case "--out":
+                options.out = val;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg + "\n" + USAGE);
+            }
+        }
+        return options;
+    }
+
+    boolean isHttp2() {
+        return protocol.equals("h2");
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+import gribbit.http.request.Request;
+import gribbit.http.request.handler.HttpRequestHandler;
+import gribbit.http.request.handler.TextWebSocketHandler;
+import gribbit.http.response.FileResponse;
+import gribbit.http.response.Response;
+import gribbit.http.response.TextResponse;
+import gribbit.http.response.exception.ResponseException;
+import gribbit.http.server.GribbitHttpServer;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Random;
+
+/** Runs a GribbitHttpServer in-process on loopback, with a handler for each Scenario. */
+class LoadTestServer {
+    private final GribbitHttpServer server;
+    private final File staticDir;
+    private final int port;
+    private Thread serverThread;
+    private volatile Throwable startupFailure;
+
+    LoadTestServer(boolean useTLS, int fileBytes) throws IOException {
+        // Pick a free port
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        // Create the file to serve for STATIC_FILE
+        staticDir = File.createTempFile("gribbit-loadtest", "");
+        if (!staticDir.delete() || !staticDir.mkdir()) {
+            throw new IOException("Could not create temp dir " + staticDir);
+        }
+        final File staticFile = new File(staticDir, "file.bin");
+        byte[] content = new byte[fileBytes];
+        new Random(0).nextBytes(content);
+        try (FileOutputStream out = new FileOutputStream(staticFile)) {
+            out.write(content);
+        }
+        staticFile.deleteOnExit();
+        staticDir.deleteOnExit();
+
+        server = new GribbitHttpServer().domain("localhost").port(port).useTLS(useTLS);
+        server.addHttpRequestHandler(new HttpRequestHandler() {
+            @Override
+            public Response handle(Request request) throws ResponseException {
+                String url = request.getURL();
+                if (url.equals(Scenario.SMALL_DYNAMIC.path)) {
+                    return new TextResponse(request, "Hello, " + request.getRequestor() + "!");
+                } else if (url.equals(Scenario.STATIC_FILE.path)) {
+                    return new FileResponse(request, staticFile.getPath());
+                } else if (url.equals(Scenario.POST_UPLOAD.path) && request.getMethod() == HttpMethod.POST) {
+                    return new TextResponse(request, "OK");
+                }
+                return null;
+            }
+        });
+        server.addWebSocketHandler(Scenario.WEBSOCKET_ECHO.path, new TextWebSocketHandler() {
+            @Override
+            public void handleTextFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+                ctx.writeAndFlush(new TextWebSocketFrame(frame.content().retain()));
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /** Start the server in a background thread (GribbitHttpServer.start() blocks until shutdown). */
+    void start() throws InterruptedException {
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                } catch (Throwable t) {
+                    startupFailure = t;
+                }
+            }
+        }, "loadtest-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (server.channel == null) {
+            if (!serverThread.isAlive()) {
+                throw new IllegalStateException("Server failed to start", startupFailure);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    void stop() throws InterruptedException {
+        server.shutdown();
+        if (serverThread != null) {
+            serverThread.join(10000);
+        }
+    }
+}
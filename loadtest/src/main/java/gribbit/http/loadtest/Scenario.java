@@ -0,0 +1,61 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+/** The load test scenarios. Each scenario has a corresponding handler in LoadTestServer. */
+public enum Scenario {
+    /** A small dynamically-generated text response. */
+    SMALL_DYNAMIC("small", "/hello"),
+
+    /** A static file served by FileResponse. */
+    STATIC_FILE("static", "/static/file.bin"),
+
+    /** A multipart/form-data POST with a file upload. */
+    POST_UPLOAD("upload", "/upload"),
+
+    /** A text message echoed back over a WebSocket. */
+    WEBSOCKET_ECHO("websocket", "/echo");
+
+    /** The name of the scenario on the commandline and in the report. */
+    public final String name;
+
+    /** The URL path of the scenario's handler. */
+    public final String path;
+
+    private Scenario(String name, String path) {
+        this.name = name;
+        this.path = path;
+    }
+
+    public static Scenario forName(String name) {
+        for (Scenario scenario : values()) {
+            if (scenario.name.equals(name)) {
+                return scenario;
+            }
+        }
+        throw new IllegalArgumentException("Unknown scenario: " + name);
+    }
+}
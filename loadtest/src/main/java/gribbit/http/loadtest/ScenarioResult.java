@@ -0,0 +1,84 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.loadtest;
+
+import gribbit.http.metrics.LatencyHistogram;
+
+/** The results of running one scenario. */
+class ScenarioResult {
+    final Scenario scenario;
+    final LatencyHistogram responseTime = new LatencyHistogram();
+    final LatencyHistogram serviceTime = new LatencyHistogram();
+
+    /** Requests completed successfully during the measurement period. */
+    long completed;
+
+    /** Requests that failed (error status, or connection closed) during the measurement period. */
+    long errors;
+
+    /** Requests still outstanding when the drain timeout expired after the measurement period. */
+    long incomplete;
+
+    double measuredSeconds;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9, 99.99, 100.0 };
+
+    ScenarioResult(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    void appendJSON(StringBuilder buf, LoadTestOptions options) {
+        buf.append("    {\n");
+        buf.append("      \"scenario\": \"").append(scenario.name).append("\",\n");
+        buf.append("      \"protocol\": \"").append(options.protocol).append("\",\n");
+        buf.append("      \"connections\": ").append(options.connections).append(",\n");
+        buf.append("      \"targetRate\": ").append(options.rate).append(",\n");
+        buf.append("      \"arrival\": \"").append(options.rate > 0 ? options.arrival : "closed-loop")
+                .append("\",\n");
+        buf.append("      \"measuredSeconds\": ").append(measuredSeconds).append(",\n");
+        buf.append("      \"completed\": ").append(completed).append(",\n");
+        buf.append("      \"errors\": ").append(errors).append(",\n");
+        buf.append("      \"incomplete\": ").append(incomplete).append(",\n");
+        buf.append("      \"achievedRate\": ").append(measuredSeconds > 0 ? completed / measuredSeconds : 0.0)
+                .append(",\n");
+        buf.append("      \"responseTimeMicros\": ");
+        appendHistogram(buf, responseTime);
+        buf.append(",\n      \"serviceTimeMicros\": ");
+        appendHistogram(buf, serviceTime);
+        buf.append("\n    }");
+    }
+
+    private static void appendHistogram(StringBuilder buf, LatencyHistogram histogram) {
+        long count = histogram.getTotalCount();
+        buf.append("{ \"mean\": ").append(count == 0 ? 0L : histogram.getSumMicros() / count);
+        for (double percentile : PERCENTILES) {
+            buf.append(", \"").append(percentile == 100.0 ? "max" : "p" + Double.toString(percentile) //
+                    .replace(".0", "").replace(".", "_"));
+            buf.append("\": ").append(histogram.getValueAtPercentile(percentile));
+        }
+        buf.append(" }");
+    }
+}
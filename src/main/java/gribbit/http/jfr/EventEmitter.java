@@ -0,0 +1,121 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.jfr;
+
+import gribbit.http.request.Request;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Creates and commits the JFR events. Only loaded if JFR is available (see LifecycleEvents). Event fields are only
+ * filled in if the event will actually be recorded, so that no strings are created when recording is disabled.
+ */
+class EventEmitter {
+    static void requestDecoded(ChannelHandlerContext ctx, Request request) {
+        RequestDecodedEvent event = new RequestDecodedEvent();
+        if (event.shouldCommit()) {
+            event.channelId = ctx.channel().id().asShortText();
+            event.method = request.getMethod().name();
+            event.url = request.getURL();
+            event.commit();
+        }
+    }
+
+    static Object handlerStarted() {
+        HandlerEvent event = new HandlerEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void handlerFinished(Object handlerEvent, ChannelHandlerContext ctx, Request request, String route,
+            int status) {
+        HandlerEvent event = (HandlerEvent) handlerEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.channelId = ctx.channel().id().asShortText();
+            event.url = request.getURL();
+            event.route = route;
+            event.status = status;
+            event.commit();
+        }
+    }
+
+    static void responseHeadersWritten(ChannelHandlerContext ctx, Request request, int status, long contentLength) {
+        ResponseHeadersEvent event = new ResponseHeadersEvent();
+        if (event.shouldCommit()) {
+            event.channelId = ctx.channel().id().asShortText();
+            event.url = request == null ? null : request.getURL();
+            event.status = status;
+            event.contentLength = contentLength;
+            event.commit();
+        }
+    }
+
+    static Object responseStarted(ChannelHandlerContext ctx, Request request) {
+        ResponseEvent event = new ResponseEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        // Read the fields now, since the Request may have been recycled by the time the response completes
+        event.channelId = ctx.channel().id().asShortText();
+        event.url = request == null ? null : request.getURL();
+        event.begin();
+        return event;
+    }
+
+    static void responseCompleted(Object responseEvent, int status, long contentLength, boolean success) {
+        ResponseEvent event = (ResponseEvent) responseEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.status = status;
+            event.contentLength = contentLength;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    static void webSocketUpgrade(ChannelHandlerContext ctx, String url, Object handler) {
+        WebSocketUpgradeEvent event = new WebSocketUpgradeEvent();
+        if (event.shouldCommit()) {
+            event.channelId = ctx.channel().id().asShortText();
+            event.url = url;
+            event.handler = handler.getClass().getName();
+            event.commit();
+        }
+    }
+
+    static void webSocketFrame(ChannelHandlerContext ctx, Object frame, long bytes) {
+        WebSocketFrameEvent event = new WebSocketFrameEvent();
+        if (event.shouldCommit()) {
+            event.channelId = ctx.channel().id().asShortText();
+            event.frameType = frame.getClass().getSimpleName();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gribbit.http.Handler")
+@Label("Request Handler")
+@Category({ "Gribbit", "HTTP" })
+@Description("An HttpRequestHandler generating a response")
+@StackTrace(false)
+class HandlerEvent extends jdk.jfr.Event {
+    @Label("Channel ID")
+    String channelId;
+
+    @Label("URL")
+    @Description("The normalized request path")
+    String url;
+
+    @Label("Route")
+    @Description("The class name of the handler")
+    String route;
+
+    @Label("Status")
+    @Description("The response status, or 0 if the handler did not handle the request")
+    int status;
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.jfr;
+
+import gribbit.http.request.Request;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Emits Java Flight Recorder events for the request lifecycle, so that GC pauses, allocation and lock contention
+ * can be correlated with specific requests. Events are only recorded while a recording with the "gribbit.http.*"
+ * events enabled is running (they are enabled in the default JFR settings), and cost close to nothing otherwise.
+ * 
+ * If JFR is not available (Java 8 before update 262), these methods do nothing.
+ */
+public class LifecycleEvents {
+    private static final boolean JFR_AVAILABLE;
+    static {
+        boolean available;
+        try {
+            Class.forName("jdk.jfr.Event");
+            available = true;
+        } catch (Throwable t) {
+            available = false;
+        }
+        JFR_AVAILABLE = available;
+    }
+
+    /** An HTTP request's headers have been decoded. */
+    public static void requestDecoded(ChannelHandlerContext ctx, Request request) {
+        if (JFR_AVAILABLE) {
+            EventEmitter.requestDecoded(ctx, request);
+        }
+    }
+
+    /** An HttpRequestHandler is about to be called. Returns a token to pass to handlerFinished(), or null. */
+    public static Object handlerStarted() {
+        return JFR_AVAILABLE ? EventEmitter.handlerStarted() : null;
+    }
+
+    /** An HttpRequestHandler has returned. status is 0 if the handler did not handle the request. */
+    public static void handlerFinished(Object token, ChannelHandlerContext ctx, Request request, String route,
+            int status) {
+        if (token != null) {
+            EventEmitter.handlerFinished(token, ctx, request, route, status);
+        }
+    }
+
+    /** The response headers have been written. */
+    public static void responseHeadersWritten(ChannelHandlerContext ctx, Request request, int status,
+            long contentLength) {
+        if (JFR_AVAILABLE) {
+            EventEmitter.responseHeadersWritten(ctx, request, status, contentLength);
+        }
+    }
+
+    /** A response is about to be sent. Returns a token to pass to responseCompleted(), or null. */
+    public static Object responseStarted(ChannelHandlerContext ctx, Request request) {
+        return JFR_AVAILABLE ? EventEmitter.responseStarted(ctx, request) : null;
+    }
+
+    /** The last byte of a response has been written (or writing failed). */
+    public static void responseCompleted(Object token, int status, long contentLength, boolean success) {
+        if (token != null) {
+            EventEmitter.responseCompleted(token, status, contentLength, success);
+        }
+    }
+
+    /** A connection has been upgraded to a WebSocket. */
+    public static void webSocketUpgrade(ChannelHandlerContext ctx, String url, Object handler) {
+        if (JFR_AVAILABLE) {
+            EventEmitter.webSocketUpgrade(ctx, url, handler);
+        }
+    }
+
+    /** A WebSocket frame has been received. */
+    public static void webSocketFrame(ChannelHandlerContext ctx, Object frame, long bytes) {
+        if (JFR_AVAILABLE) {
+            EventEmitter.webSocketFrame(ctx, frame, bytes);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.logging;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.Response;
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * A fixed-size access log record. Records are preallocated in the AsyncAccessLog ring buffer and reused, and only
+ * hold references to objects that already exist for the request, so logging a request does not allocate. Fields
+ * are only formatted (on the access log writer thread) once the record is written to an AccessLogSink.
+ */
+public class AccessLogRecord {
+    long timeEpochMillis;
+    SocketAddress remoteAddress;
+    HttpMethod method;
+    String url;
+    String protocol;
+    int status;
+    long contentLength;
+    long latencyMicros;
+
+    void set(Request request, Response response) {
+        timeEpochMillis = request.getReqReceivedTimeEpochMillis();
+        remoteAddress = request.getRemoteAddress();
+        method = request.getMethod();
+        url = (String) request.getRawURL();
+        protocol = request.getHttpVersion();
+        status = response == null ? 0 : response.getStatus().code();
+        contentLength = response == null ? -1L : response.getContentLength();
+        latencyMicros = (System.nanoTime() - request.getReqReceivedTimeNanos()) / 1000L;
+    }
+
+    /** Drop references once the record has been written, so that they can be garbage collected. */
+    void clear() {
+        remoteAddress = null;
+        method = null;
+        url = null;
+        protocol = null;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** The time the request was received. */
+    public long getTimeEpochMillis() {
+        return timeEpochMillis;
+    }
+
+    /** The remote address of the connection, or null if unknown. */
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /** The IP address of the client, or null if unknown. */
+    public String getRemoteHostAddress() {
+        if (remoteAddress instanceof InetSocketAddress) {
+            InetSocketAddress inetSocketAddress = (InetSocketAddress) remoteAddress;
+            return inetSocketAddress.getAddress() == null ? inetSocketAddress.getHostString() : inetSocketAddress
+                    .getAddress().getHostAddress();
+        }
+        return null;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    /** The raw (unnormalized) request URL. */
+    public String getURL() {
+        return url;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /** The response status code, or 0 if no response was sent. */
+    public int getStatus() {
+        return status;
+    }
+
+    /** The response content length, or -1 if unknown. */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /** The time from receiving the request until the response was handed to the channel, in microseconds. */
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.logging;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The destination for access log records. Methods are only ever called from the AsyncAccessLog writer thread, so
+ * implementations do not need to be thread safe.
+ */
+public interface AccessLogSink extends Closeable {
+    /** Write a record. The record is reused once this method returns, so must not be retained. */
+    public void write(AccessLogRecord record) throws IOException;
+
+    /** Flush any buffered records. Called whenever the ring buffer has been drained. */
+    public void flush() throws IOException;
+}
@@ -0,0 +1,259 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.logging;
+
+import gribbit.http.request.Request;
+import gribbit.http.response.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous access log. Event loop threads publish records into a bounded lock-free multi-producer,
+ * single-consumer ring buffer, and a background writer thread formats the records and writes them in batches to
+ * an AccessLogSink. Logging never blocks the event loop: if the ring buffer fills up, records are dropped (or, with
+ * OverflowPolicy.SAMPLE, sampled once the buffer is half full), and the number of lost records is reported
+ * periodically.
+ * 
+ * Each slot has a sequence number (as in Dmitry Vyukov's bounded MPMC queue): a producer can claim slot (i %
+ * capacity) for ticket i when the slot's sequence number is i, and publishes the record by setting the sequence
+ * number to i + 1. The writer frees the slot for the next lap by setting the sequence number to i + capacity.
+ */
+public class AsyncAccessLog implements Closeable {
+    /** What to do when the ring buffer fills up. */
+    public enum OverflowPolicy {
+        /** Drop new records once the ring buffer is full. */
+        DROP,
+
+        /**
+         * Once the ring buffer is more than half full, keep only one in sampleRate records, so that the log still
+         * covers the whole period of overload. Drop records if the buffer fills up anyway.
+         */
+        SAMPLE;
+    }
+
+    private final AccessLogSink sink;
+    private final OverflowPolicy overflowPolicy;
+    private final int sampleRate;
+
+    private final AccessLogRecord[] slots;
+    private final AtomicLongArray sequences;
+    private final int capacity;
+    private final int mask;
+
+    /** The next ticket to be claimed by a producer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The next ticket to be consumed by the writer. Only written by the writer thread. */
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong numDropped = new AtomicLong();
+    private final AtomicLong numSampledOut = new AtomicLong();
+
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+
+    /** Minimum interval between reports of dropped records. */
+    private static final long DROP_REPORT_INTERVAL_MILLIS = 10000L;
+
+    /** How long the writer sleeps for when the ring buffer is empty. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * @param sink
+     *            The destination for log records.
+     * @param capacity
+     *            The number of slots in the ring buffer (rounded up to a power of two).
+     * @param overflowPolicy
+     *            What to do when the ring buffer fills up.
+     * @param sampleRate
+     *            For OverflowPolicy.SAMPLE, keep one in sampleRate records once the buffer is half full.
+     */
+    public AsyncAccessLog(AccessLogSink sink, int capacity, OverflowPolicy overflowPolicy, int sampleRate) {
+        if (capacity < 2 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+        }
+        this.sink = sink;
+        this.overflowPolicy = overflowPolicy;
+        this.sampleRate = sampleRate;
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new AccessLogRecord[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            slots[i] = new AccessLogRecord();
+            sequences.set(i, i);
+        }
+
+        writerThread = new Thread(AsyncAccessLog.class.getSimpleName() + "-writer") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public AsyncAccessLog(AccessLogSink sink) {
+        this(sink, DEFAULT_CAPACITY, OverflowPolicy.DROP, DEFAULT_SAMPLE_RATE);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Publish an access log record for a request. Never blocks. Returns false if the record was dropped or sampled
+     * out.
+     */
+    public boolean log(Request request, Response response) {
+        if (closed) {
+            return false;
+        }
+        long ticket;
+        int idx;
+        for (;;) {
+            ticket = tail.get();
+            idx = (int) ticket & mask;
+            long seq = sequences.get(idx);
+            if (seq == ticket) {
+                if (overflowPolicy == OverflowPolicy.SAMPLE && ticket - head.get() > capacity / 2
+                        && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+                    numSampledOut.incrementAndGet();
+                    return false;
+                }
+                if (tail.compareAndSet(ticket, ticket + 1)) {
+                    break;
+                }
+                // Lost the race for this slot to another producer -- retry
+            } else if (seq < ticket) {
+                // The writer has not yet freed this slot from the previous lap, i.e. the ring buffer is full
+                numDropped.incrementAndGet();
+                return false;
+            }
+            // Otherwise another producer claimed this ticket and published its record -- retry with a new ticket
+        }
+        slots[idx].set(request, response);
+        sequences.lazySet(idx, ticket + 1);
+        return true;
+    }
+
+    /** The number of records dropped because the ring buffer was full. */
+    public long getNumDropped() {
+        return numDropped.get();
+    }
+
+    /** The number of records discarded by OverflowPolicy.SAMPLE. */
+    public long getNumSampledOut() {
+        return numSampledOut.get();
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** The writer thread loop. */
+    private void drain() {
+        long nextTicket = head.get();
+        int numUnflushed = 0;
+        boolean sinkFailed = false;
+        long lastDropReportTime = 0L;
+        long reportedDropped = 0L, reportedSampledOut = 0L;
+        for (;;) {
+            int idx = (int) nextTicket & mask;
+            if (sequences.get(idx) == nextTicket + 1) {
+                // Slot has been published
+                AccessLogRecord record = slots[idx];
+                if (!sinkFailed) {
+                    try {
+                        sink.write(record);
+                        numUnflushed++;
+                    } catch (IOException e) {
+                        Log.exceptionWithoutCallerRef("Could not write to access log, disabling it", e);
+                        sinkFailed = true;
+                    }
+                }
+                record.clear();
+                // Free the slot for the next lap around the ring buffer
+                sequences.lazySet(idx, nextTicket + capacity);
+                head.lazySet(++nextTicket);
+
+            } else if (nextTicket != tail.get()) {
+                // A producer has claimed the next slot, but has not yet published its record
+                Thread.yield();
+
+            } else {
+                // Ring buffer is empty
+                if (numUnflushed > 0 && !sinkFailed) {
+                    try {
+                        sink.flush();
+                    } catch (IOException e) {
+                        Log.exceptionWithoutCallerRef("Could not write to access log, disabling it", e);
+                        sinkFailed = true;
+                    }
+                    numUnflushed = 0;
+                }
+                long dropped = numDropped.get(), sampledOut = numSampledOut.get();
+                if (dropped != reportedDropped || sampledOut != reportedSampledOut) {
+                    long now = System.currentTimeMillis();
+                    if (now - lastDropReportTime >= DROP_REPORT_INTERVAL_MILLIS) {
+                        Log.warningWithoutCallerRef("Access log overloaded: dropped " + (dropped - reportedDropped)
+                                + " records, sampled out " + (sampledOut - reportedSampledOut) + " records");
+                        reportedDropped = dropped;
+                        reportedSampledOut = sampledOut;
+                        lastDropReportTime = now;
+                    }
+                }
+                if (closed && nextTicket == tail.get()) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /** Write out any remaining records, then close the sink. */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.logging;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Decodes segment files written by BinaryAccessLogSink. Can be run from the command line to convert segments to
+ * Common Log Format or JSON:
+ * 
+ * <pre>
+ * java gribbit.http.logging.BinaryAccessLogDecoder [--json] (segment.bal | pathPrefix) ...
+ * </pre>
+ * 
+ * If a path prefix is given rather than a segment file, all segments with that prefix are decoded in order.
+ */
+public class BinaryAccessLogDecoder {
+    private final ByteBuffer buf;
+
+    private BinaryAccessLogDecoder(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    private long readVarint() throws IOException {
+        long val = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            val |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return val;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private String readString() throws IOException {
+        int len = (int) readVarint();
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Decode the entries in a segment, calling the consumer for each request. The record is reused. */
+    private void decode(Consumer<AccessLogRecord> consumer) throws IOException {
+        if (buf.remaining() < BinaryAccessLogSink.HEADER_SIZE || buf.getInt() != BinaryAccessLogSink.MAGIC) {
+            throw new IOException("Not a binary access log segment");
+        }
+        byte version = buf.get();
+        if (version != BinaryAccessLogSink.VERSION) {
+            throw new IOException("Unsupported binary access log version " + version);
+        }
+        long timeEpochMillis = buf.getLong();
+        ArrayList<String> urls = new ArrayList<>();
+        urls.add(null);
+        AccessLogRecord record = new AccessLogRecord();
+        while (buf.hasRemaining()) {
+            byte entryType = buf.get();
+            if (entryType == BinaryAccessLogSink.ENTRY_END) {
+                break;
+            } else if (entryType == BinaryAccessLogSink.ENTRY_URL) {
+                int urlId = (int) readVarint();
+                if (urlId != urls.size()) {
+                    throw new IOException("URL ids out of order");
+                }
+                urls.add(readString());
+            } else if (entryType == BinaryAccessLogSink.ENTRY_REQUEST) {
+                long zigzag = readVarint();
+                timeEpochMillis += (zigzag >>> 1) ^ -(zigzag & 1);
+                record.timeEpochMillis = timeEpochMillis;
+                int methodId = buf.get() & 0xff;
+                record.method = methodId == 0 ? HttpMethod.valueOf(readString())
+                        : BinaryAccessLogSink.METHODS[methodId];
+                int protocolId = buf.get() & 0xff;
+                record.protocol = protocolId < BinaryAccessLogSink.PROTOCOLS.length
+                        ? BinaryAccessLogSink.PROTOCOLS[protocolId] : null;
+                record.status = (int) readVarint();
+                record.contentLength = readVarint() - 1;
+                record.latencyMicros = readVarint();
+                int urlId = (int) readVarint();
+                record.url = urlId == 0 ? readString() : urls.get(urlId);
+                int addrLen = buf.get() & 0xff;
+                if (addrLen == 0) {
+                    record.remoteAddress = null;
+                } else {
+                    byte[] addr = new byte[addrLen];
+                    buf.get(addr);
+                    record.remoteAddress = new InetSocketAddress(InetAddress.getByAddress(addr), 0);
+                }
+                consumer.accept(record);
+            } else {
+                throw new IOException("Unknown entry type " + entryType + " at offset " + (buf.position() - 1));
+            }
+        }
+    }
+
+    /** Decode a segment file, calling the consumer for each request. The record passed to the consumer is reused. */
+    public static void decode(Path segment, Consumer<AccessLogRecord> consumer) throws IOException {
+        new BinaryAccessLogDecoder(ByteBuffer.wrap(Files.readAllBytes(segment))).decode(consumer);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private static void appendJSONString(StringBuilder buf, String str) {
+        if (str == null) {
+            buf.append("null");
+            return;
+        }
+        buf.append('"');
+        for (int i = 0, n = str.length(); i < n; i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    /** Append a record as a single-line JSON object. */
+    public static void appendJSON(StringBuilder buf, AccessLogRecord record) {
+        buf.append("{\"time\":\"").append(Instant.ofEpochMilli(record.timeEpochMillis)).append('"');
+        buf.append(",\"remoteAddr\":");
+        appendJSONString(buf, record.getRemoteHostAddress());
+        buf.append(",\"method\":");
+        appendJSONString(buf, record.method == null ? null : record.method.name());
+        buf.append(",\"url\":");
+        appendJSONString(buf, record.url);
+        buf.append(",\"protocol\":");
+        appendJSONString(buf, record.protocol);
+        buf.append(",\"status\":").append(record.status);
+        buf.append(",\"contentLength\":").append(record.contentLength);
+        buf.append(",\"latencyMicros\":").append(record.latencyMicros);
+        buf.append('}');
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean json = false;
+        ArrayList<Path> segments = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--json")) {
+                json = true;
+            } else if (Files.isRegularFile(Paths.get(arg))) {
+                segments.add(Paths.get(arg));
+            } else {
+                segments.addAll(BinaryAccessLogSink.listSegments(arg));
+            }
+        }
+        if (segments.isEmpty()) {
+            System.err.println("Usage: java " + BinaryAccessLogDecoder.class.getName()
+                    + " [--json] (segment.bal | pathPrefix) ...");
+            System.exit(1);
+        }
+        final boolean outputJSON = json;
+        final CommonLogFormat commonLogFormat = new CommonLogFormat();
+        final StringBuilder line = new StringBuilder();
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+            for (Path segment : segments) {
+                decode(segment, new Consumer<AccessLogRecord>() {
+                    @Override
+                    public void accept(AccessLogRecord record) {
+                        line.setLength(0);
+                        if (outputJSON) {
+                            appendJSON(line, record);
+                        } else {
+                            commonLogFormat.append(line, record);
+                        }
+                        line.append('\n');
+                        try {
+                            out.write(line.toString());
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.logging;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Writes access log records in a compact binary format to memory-mapped segment files, so that full-fidelity logs
+ * can be kept at high request rates without paying for text formatting. Use BinaryAccessLogDecoder to convert
+ * segments to Common Log Format or JSON.
+ * 
+ * Segments are named PREFIX-000001.bal, PREFIX-000002.bal, etc. Each segment is self-contained, and consists of a
+ * header followed by a sequence of entries, terminated by a zero byte (or the end of the file):
+ * 
+ * <pre>
+ * header:  int magic ('GBAL'), byte version, long baseTimeEpochMillis
+ * entry:   byte ENTRY_URL, varint urlId, varint len, byte[len] utf8
+ *        | byte ENTRY_REQUEST, zigzag-varint timeDeltaMillis (from previous request, or from the base time),
+ *          byte methodId, [varint len, byte[len] utf8 (if methodId == 0)], byte protocolId, varint status,
+ *          varint (contentLength + 1), varint latencyMicros, varint urlId,
+ *          [varint len, byte[len] utf8 (if urlId == 0)], byte addrLen, byte[addrLen] addr
+ * </pre>
+ * 
+ * URLs are interned in a per-segment dictionary, up to a maximum number of entries, after which new URLs are
+ * written inline (urlId 0). Varints are unsigned LEB128.
+ */
+public class BinaryAccessLogSink implements AccessLogSink {
+    static final int MAGIC = ('G' << 24) | ('B' << 16) | ('A' << 8) | 'L';
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 4 + 1 + 8;
+
+    static final byte ENTRY_END = 0;
+    static final byte ENTRY_URL = 1;
+    static final byte ENTRY_REQUEST = 2;
+
+    static final String SEGMENT_SUFFIX = ".bal";
+
+    /** Method ids. Id 0 is used for methods that are not in this table, which are written inline. */
+    static final HttpMethod[] METHODS = { null, HttpMethod.GET, HttpMethod.HEAD, HttpMethod.POST, HttpMethod.PUT,
+            HttpMethod.DELETE, HttpMethod.OPTIONS, HttpMethod.PATCH, HttpMethod.TRACE, HttpMethod.CONNECT };
+
+    /** Protocol ids. Id 0 is used for unknown protocols. */
+    static final String[] PROTOCOLS = { null, "HTTP/1.0", "HTTP/1.1", "HTTP/2.0" };
+
+    private final String pathPrefix;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int maxURLDictionarySize;
+
+    private int segmentIdx;
+    private Path segmentPath;
+    private FileChannel fileChannel;
+    private MappedByteBuffer buf;
+    private long prevTimeEpochMillis;
+    private final HashMap<String, Integer> urlToId = new HashMap<>();
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 100;
+    public static final int DEFAULT_MAX_URL_DICTIONARY_SIZE = 64 * 1024;
+
+    /** Space to reserve for an entry, not counting the URL and method name. */
+    private static final int MAX_ENTRY_OVERHEAD = 128;
+
+    /**
+     * @param pathPrefix
+     *            The path of the segment files, without the "-000001.bal" suffix.
+     * @param segmentBytes
+     *            The size of each segment file.
+     * @param maxSegments
+     *            The number of segment files to keep. The oldest segment is deleted when a new segment is started.
+     * @param maxURLDictionarySize
+     *            The maximum number of URLs to intern per segment.
+     */
+    public BinaryAccessLogSink(String pathPrefix, int segmentBytes, int maxSegments, int maxURLDictionarySize)
+            throws IOException {
+        if (segmentBytes < 1024 * 1024) {
+            throw new IllegalArgumentException("Segments must be at least 1MB");
+        }
+        this.pathPrefix = pathPrefix;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.maxURLDictionarySize = maxURLDictionarySize;
+        ArrayList<Path> existingSegments = listSegments(pathPrefix);
+        this.segmentIdx = existingSegments.isEmpty() ? 0 : segmentIndex(existingSegments
+                .get(existingSegments.size() - 1));
+    }
+
+    public BinaryAccessLogSink(String pathPrefix) throws IOException {
+        this(pathPrefix, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS, DEFAULT_MAX_URL_DICTIONARY_SIZE);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private static int segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(name.length() - SEGMENT_SUFFIX.length() - 6, name.length()
+                - SEGMENT_SUFFIX.length()));
+    }
+
+    /** List the segment files with the given path prefix, in order. */
+    static ArrayList<Path> listSegments(String pathPrefix) throws IOException {
+        Path prefixPath = Paths.get(pathPrefix).toAbsolutePath();
+        String prefixName = prefixPath.getFileName().toString() + "-";
+        ArrayList<Path> segments = new ArrayList<>();
+        if (Files.isDirectory(prefixPath.getParent())) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(prefixPath.getParent())) {
+                for (Path path : dir) {
+                    String name = path.getFileName().toString();
+                    if (name.startsWith(prefixName) && name.endsWith(SEGMENT_SUFFIX)
+                            && name.length() == prefixName.length() + 6 + SEGMENT_SUFFIX.length()) {
+                        segments.add(path);
+                    }
+                }
+            }
+        }
+        // Segment indices are zero-padded, so lexicographic order is numeric order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void openSegment(long baseTimeEpochMillis) throws IOException {
+        ArrayList<Path> existingSegments = listSegments(pathPrefix);
+        for (int i = 0, n = existingSegments.size() - maxSegments + 1; i < n; i++) {
+            Files.deleteIfExists(existingSegments.get(i));
+        }
+        segmentPath = Paths.get(String.format("%s-%06d%s", pathPrefix, ++segmentIdx, SEGMENT_SUFFIX));
+        fileChannel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buf = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        buf.putInt(MAGIC);
+        buf.put(VERSION);
+        buf.putLong(baseTimeEpochMillis);
+        prevTimeEpochMillis = baseTimeEpochMillis;
+        urlToId.clear();
+    }
+
+    /** Truncate the segment to the length of its content and close it. */
+    private void closeSegment() throws IOException {
+        if (fileChannel != null) {
+            int len = buf.position();
+            if (buf.hasRemaining()) {
+                buf.put(ENTRY_END);
+            }
+            buf = null;
+            // The mapping is released once the buffer is garbage collected. Truncation may fail on some platforms
+            // while the file is still mapped, in which case the remainder of the file is left zeroed.
+            try {
+                fileChannel.truncate(len);
+            } catch (IOException e) {
+            }
+            fileChannel.close();
+            fileChannel = null;
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private void writeVarint(long val) {
+        while ((val & ~0x7fL) != 0) {
+            buf.put((byte) ((val & 0x7f) | 0x80));
+            val >>>= 7;
+        }
+        buf.put((byte) val);
+    }
+
+    private void writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        buf.put(bytes);
+    }
+
+    private static int methodId(HttpMethod method) {
+        for (int i = 1; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static int protocolId(String protocol) {
+        for (int i = 1; i < PROTOCOLS.length; i++) {
+            if (PROTOCOLS[i].equals(protocol)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void write(AccessLogRecord record) throws IOException {
+        String url = record.url == null ? "" : record.url;
+        int methodId = record.method == null ? 0 : methodId(record.method);
+        String methodName = methodId != 0 ? null : record.method == null ? "-" : record.method.name();
+
+        // Make sure the whole entry (and the URL dictionary entry) fits in the current segment. UTF-8 needs at
+        // most 3 bytes per UTF-16 char, and the URL may be written twice if it is not yet in the dictionary.
+        int maxEntryLen = MAX_ENTRY_OVERHEAD + 6 * url.length() + (methodName == null ? 0 : 3 * methodName.length());
+        if (fileChannel == null || buf.remaining() < maxEntryLen + 1) {
+            closeSegment();
+            openSegment(record.timeEpochMillis);
+            if (buf.remaining() < maxEntryLen + 1) {
+                throw new IOException("Access log entry is larger than segment size");
+            }
+        }
+
+        // Look up or assign URL id
+        Integer urlId = urlToId.get(url);
+        byte[] inlineURL = null;
+        if (urlId == null) {
+            byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+            if (urlToId.size() < maxURLDictionarySize) {
+                urlId = urlToId.size() + 1;
+                urlToId.put(url, urlId);
+                buf.put(ENTRY_URL);
+                writeVarint(urlId);
+                writeBytes(urlBytes);
+            } else {
+                // Dictionary is full, write URL inline
+                urlId = 0;
+                inlineURL = urlBytes;
+            }
+        }
+
+        buf.put(ENTRY_REQUEST);
+        long timeDelta = record.timeEpochMillis - prevTimeEpochMillis;
+        prevTimeEpochMillis = record.timeEpochMillis;
+        // Records from different event loops may be slightly out of order, so the delta may be negative
+        writeVarint((timeDelta << 1) ^ (timeDelta >> 63));
+        buf.put((byte) methodId);
+        if (methodId == 0) {
+            writeBytes(methodName.getBytes(StandardCharsets.UTF_8));
+        }
+        buf.put((byte) protocolId(record.protocol));
+        writeVarint(record.status);
+        writeVarint(record.contentLength + 1);
+        writeVarint(Math.max(0L, record.latencyMicros));
+        writeVarint(urlId);
+        if (urlId == 0) {
+            writeBytes(inlineURL);
+        }
+        SocketAddress remoteAddress = record.remoteAddress;
+        InetAddress inetAddress = remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress)
+                .getAddress() : null;
+        if (inetAddress == null) {
+            buf.put((byte) 0);
+        } else {
+            byte[] addr = inetAddress.getAddress();
+            buf.put((byte) addr.length);
+            buf.put(addr);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Written data is visible in the page cache as soon as it is written to the mapped buffer, and is written
+        // to disk by the OS.
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.logging;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Formats access log records in Common Log Format -- https://en.wikipedia.org/wiki/Common_Log_Format
+ * 
+ * Not thread safe, since the formatted timestamp is cached between calls (it only changes once per second).
+ */
+public class CommonLogFormat {
+    private static final DateTimeFormatter LOG_TIME_FORMATTER = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private long cachedEpochSecond = Long.MIN_VALUE;
+    private String cachedTime;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Append a string, escaping quotes, backslashes and non-printable characters as Apache does. */
+    private static void appendEscaped(StringBuilder buf, String str) {
+        for (int i = 0, n = str.length(); i < n; i++) {
+            char c = str.charAt(i);
+            if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+                buf.append(c);
+            } else if (c < 0x100) {
+                buf.append("\\x").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                buf.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf])
+                        .append(HEX[c & 0xf]);
+            }
+        }
+    }
+
+    /** Append a log line for the record (without a trailing newline). */
+    public void append(StringBuilder buf, AccessLogRecord record) {
+        String remoteHost = record.getRemoteHostAddress();
+        buf.append(remoteHost == null ? "-" : remoteHost);
+        buf.append(" - - [");
+        long epochSecond = record.timeEpochMillis / 1000L;
+        if (epochSecond != cachedEpochSecond) {
+            cachedEpochSecond = epochSecond;
+            cachedTime = LOG_TIME_FORMATTER.format(Instant.ofEpochSecond(epochSecond));
+        }
+        buf.append(cachedTime);
+        buf.append("] \"");
+        buf.append(record.method == null ? "-" : record.method.name());
+        buf.append(' ');
+        if (record.url == null) {
+            buf.append('-');
+        } else {
+            appendEscaped(buf, record.url);
+        }
+        buf.append(' ');
+        buf.append(record.protocol == null ? "-" : record.protocol);
+        buf.append("\" ");
+        if (record.status == 0) {
+            buf.append('-');
+        } else {
+            buf.append(record.status);
+        }
+        buf.append(' ');
+        if (record.contentLength < 0) {
+            buf.append('-');
+        } else {
+            buf.append(record.contentLength);
+        }
+    }
+}
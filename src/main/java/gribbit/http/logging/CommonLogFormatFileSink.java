@@ -0,0 +1,151 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes access log records to a file in Common Log Format, batching writes through a direct buffer. The file is
+ * rotated once it reaches a maximum size: "access.log" is renamed to "access.log.1", "access.log.1" to
+ * "access.log.2", and so on, and the oldest file is deleted.
+ * 
+ * The file is reopened if the sink is written to after being closed, so that the sink can be reused if the server
+ * is restarted.
+ */
+public class CommonLogFormatFileSink implements AccessLogSink {
+    private final Path path;
+    private final long maxFileBytes;
+    private final int maxBackups;
+
+    private FileChannel fileChannel;
+    private long fileBytes;
+
+    private final CommonLogFormat commonLogFormat = new CommonLogFormat();
+    private final StringBuilder line = new StringBuilder(256);
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 100L * 1024 * 1024;
+    public static final int DEFAULT_MAX_BACKUPS = 10;
+
+    /**
+     * @param path
+     *            The path of the log file.
+     * @param maxFileBytes
+     *            The size at which the log file is rotated.
+     * @param maxBackups
+     *            The number of rotated log files to keep.
+     */
+    public CommonLogFormatFileSink(String path, long maxFileBytes, int maxBackups) throws IOException {
+        this.path = Paths.get(path);
+        this.maxFileBytes = maxFileBytes;
+        this.maxBackups = maxBackups;
+        open();
+    }
+
+    public CommonLogFormatFileSink(String path) throws IOException {
+        this(path, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_BACKUPS);
+    }
+
+    private void open() throws IOException {
+        fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileBytes = fileChannel.size();
+    }
+
+    private Path backupPath(int idx) {
+        return Paths.get(path.toString() + "." + idx);
+    }
+
+    private void rotate() throws IOException {
+        fileChannel.close();
+        Files.deleteIfExists(backupPath(maxBackups));
+        for (int i = maxBackups - 1; i >= 1; --i) {
+            Path backup = backupPath(i);
+            if (Files.exists(backup)) {
+                Files.move(backup, backupPath(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxBackups > 0) {
+            Files.move(path, backupPath(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+        open();
+    }
+
+    @Override
+    public void write(AccessLogRecord record) throws IOException {
+        if (fileChannel == null) {
+            open();
+        }
+        line.setLength(0);
+        commonLogFormat.append(line, record);
+        line.append('\n');
+        // Lines only contain ASCII characters, since all other characters are escaped
+        int len = line.length();
+        if (buf.remaining() < len) {
+            flush();
+        }
+        for (int i = 0; i < len; i++) {
+            if (!buf.hasRemaining()) {
+                // Line is longer than the buffer
+                flush();
+            }
+            buf.put((byte) line.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileChannel == null) {
+            return;
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            fileBytes += fileChannel.write(buf);
+        }
+        buf.clear();
+        if (fileBytes >= maxFileBytes) {
+            rotate();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (fileChannel != null) {
+            fileChannel.close();
+            fileChannel = null;
+        }
+    }
+}
@@ -36,13 +36,16 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 public class Log {
 
@@ -127,60 +130,126 @@ public class Log {
         return level.intValue();
     }
 
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * The levels at which the caller's class, method and line number are appended to log messages. Finding the
+     * caller requires capturing a stack trace (StackWalker is not available in Java 8), so this is only done for
+     * warnings and errors by default.
+     */
+    private static final Set<Level> callerRefLevels = new CopyOnWriteArraySet<>(Arrays.asList(Level.WARNING,
+            Level.SEVERE));
+
+    /** Enable or disable appending the caller's class, method and line number to log messages at a given level. */
+    public static void setCallerRefEnabled(Level level, boolean enabled) {
+        if (enabled) {
+            callerRefLevels.add(level);
+        } else {
+            callerRefLevels.remove(level);
+        }
+    }
+
+    /**
+     * Returns true if messages at the given level will be logged. Use this to guard logging calls that are
+     * expensive to construct, e.g. if (Log.isLoggable(Level.FINE)) { Log.fine("..." + x); }
+     */
+    public static boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
+    private static void log(Level level, String msg, Throwable cause, boolean withCallerRef) {
+        if (logger.isLoggable(level)) {
+            logger.log(level, withCallerRef && callerRefLevels.contains(level) ? msg + "\t " + callerRef() : msg,
+                    cause);
+        }
+    }
+
+    private static void log(Level level, Supplier<String> msgSupplier, boolean withCallerRef) {
+        if (logger.isLoggable(level)) {
+            log(level, msgSupplier.get(), null, withCallerRef);
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
     public static void fine(String msg) {
-        logger.log(Level.FINE, msg);
+        log(Level.FINE, msg, null, true);
+    }
+
+    /** Log a message, only calling the supplier to construct the message if FINE-level logging is enabled. */
+    public static void fine(Supplier<String> msgSupplier) {
+        log(Level.FINE, msgSupplier, true);
     }
 
     public static void info(String msg) {
-        logger.log(Level.INFO, msg);
+        log(Level.INFO, msg, null, true);
+    }
+
+    /** Log a message, only calling the supplier to construct the message if INFO-level logging is enabled. */
+    public static void info(Supplier<String> msgSupplier) {
+        log(Level.INFO, msgSupplier, true);
     }
 
     public static void warning(String msg) {
-        logger.log(Level.WARNING, msg + "\t " + callerRef());
+        log(Level.WARNING, msg, null, true);
+    }
+
+    /** Log a message, only calling the supplier to construct the message if WARNING-level logging is enabled. */
+    public static void warning(Supplier<String> msgSupplier) {
+        log(Level.WARNING, msgSupplier, true);
     }
 
     public static void warningWithoutCallerRef(String msg) {
-        logger.log(Level.WARNING, msg);
+        log(Level.WARNING, msg, null, false);
     }
 
     public static void error(String msg) {
-        logger.log(Level.SEVERE, msg + "\t " + callerRef());
+        log(Level.SEVERE, msg, null, true);
+    }
+
+    /** Log a message, only calling the supplier to construct the message if SEVERE-level logging is enabled. */
+    public static void error(Supplier<String> msgSupplier) {
+        log(Level.SEVERE, msgSupplier, true);
     }
 
     public static void exception(String msg, Throwable cause) {
-        logger.log(Level.SEVERE, msg + "\t " + callerRef(), cause);
+        log(Level.SEVERE, msg, cause, true);
     }
 
     public static void exceptionWithoutCallerRef(String msg, Throwable cause) {
-        logger.log(Level.SEVERE, msg, cause);
+        log(Level.SEVERE, msg, cause, false);
     }
 
-    private static final Pattern FAVICON_PATTERN = Pattern.compile("^(.*/)?favicon\\.(ico|png|gif|jpeg|jpg|apng)$");
+    private static final String[] FAVICON_EXTENSIONS = { "ico", "png", "gif", "jpeg", "jpg", "apng" };
 
-    private static DateTimeFormatter LOG_TIME_FORMATTER = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z");
+    /** Returns true if the last path segment of the URL is "favicon.{ico,png,gif,jpeg,jpg,apng}". */
+    private static boolean isFavicon(String url) {
+        int leafStart = url.lastIndexOf('/') + 1;
+        if (!url.startsWith("favicon.", leafStart)) {
+            return false;
+        }
+        int extStart = leafStart + 8;
+        int extLen = url.length() - extStart;
+        for (String ext : FAVICON_EXTENSIONS) {
+            if (ext.length() == extLen && url.startsWith(ext, extStart)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     /** Produce log line in Common Log Format -- https://en.wikipedia.org/wiki/Common_Log_Format */
     private static String produceLogLine(Request request, Response response) {
+        AccessLogRecord record = new AccessLogRecord();
+        record.set(request, response);
         StringBuilder buf = new StringBuilder();
-        buf.append(request == null ? "-" : request.getOrigin());
-        buf.append(" - - [");
-        buf.append(ZonedDateTime.now().format(LOG_TIME_FORMATTER));
-        buf.append("] \"");
-        buf.append(request == null ? "-" : request.getMethod().toString());
-        buf.append(' ');
-        buf.append(request == null ? "-" : request.getRawURL());
-        buf.append(' ');
-        buf.append(request == null ? "-" : request.getHttpVersion());
-        buf.append("\" ");
-        buf.append(response == null ? "-" : Integer.toString(response.getStatus().code()));
-        buf.append(' ');
-        buf.append(response == null ? "-" : Long.toString(response.getContentLength()));
+        new CommonLogFormat().append(buf, record);
         return buf.toString();
     }
 
     public static void request(Request request, Response response) {
         // Don't log favicon requests
-        if (!FAVICON_PATTERN.matcher(request.getRawURL().toString()).matches()) {
+        if (!isFavicon((String) request.getRawURL())) {
             String msg = produceLogLine(request, response);
             logger.log(Level.INFO, msg);
         }
@@ -188,7 +257,7 @@ public class Log {
 
     public static void request(Request request, Response response, Exception exception) {
         // Don't log favicon requests
-        if (!FAVICON_PATTERN.matcher(request.getRawURL().toString()).matches()) {
+        if (!isFavicon((String) request.getRawURL())) {
             String msg = produceLogLine(request, response);
             logger.log(Level.INFO, msg, exception);
         }
@@ -196,7 +265,7 @@ public class Log {
 
     public static void request(Request request, Exception exception) {
         // Don't log favicon requests
-        if (!FAVICON_PATTERN.matcher(request.getRawURL().toString()).matches()) {
+        if (!isFavicon((String) request.getRawURL())) {
             String msg = produceLogLine(request, null);
             logger.log(Level.INFO, msg, exception);
         }
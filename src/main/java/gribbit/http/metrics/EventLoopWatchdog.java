@@ -0,0 +1,264 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.metrics;
+
+import gribbit.http.logging.Log;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects stalled event loops. Periodically schedules a probe task on each monitored event loop, and records the
+ * delay before the task runs (the scheduling lag) in a histogram per event loop thread, which is exported through
+ * Metrics. Also checks whether any HttpRequestHandler has been running for longer than a threshold, and if so,
+ * logs a stack sample of the blocked thread, together with the request URL and the handler's route label.
+ * 
+ * Event loops are registered as they are first seen by a channel (see monitor()), so idle event loops are not
+ * probed.
+ */
+public class EventLoopWatchdog implements Closeable {
+    private final long blockedThresholdNanos;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentHashMap<EventExecutor, LoopProbe> probes = new ConcurrentHashMap<>();
+
+    /** Whether handler activity is being tracked by any watchdog. */
+    private static volatile boolean trackHandlers;
+
+    /** The most recent blocked handler samples. */
+    private final ConcurrentLinkedDeque<BlockedHandlerSample> recentSamples = new ConcurrentLinkedDeque<>();
+    private static final int MAX_RECENT_SAMPLES = 100;
+
+    /**
+     * @param probeIntervalMillis
+     *            How often to probe each event loop and check for blocked handlers.
+     * @param blockedThresholdMillis
+     *            How long a handler may run before a stack sample is taken.
+     */
+    public EventLoopWatchdog(long probeIntervalMillis, long blockedThresholdMillis) {
+        this.blockedThresholdNanos = TimeUnit.MILLISECONDS.toNanos(blockedThresholdMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, EventLoopWatchdog.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        trackHandlers = true;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable t) {
+                    Log.exceptionWithoutCallerRef("Exception in " + EventLoopWatchdog.class.getSimpleName(), t);
+                }
+            }
+        }, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Measures scheduling lag on one event loop. */
+    private static class LoopProbe implements Runnable {
+        private final EventExecutor executor;
+        private LatencyHistogram lagHistogram;
+        private volatile long submitTimeNanos;
+        private volatile boolean outstanding;
+
+        LoopProbe(EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        void submit() {
+            if (outstanding) {
+                // The previous probe has not run yet -- don't pile up probes on a stalled loop
+                return;
+            }
+            outstanding = true;
+            submitTimeNanos = System.nanoTime();
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Event loop is shutting down
+            }
+        }
+
+        @Override
+        public void run() {
+            long lagNanos = System.nanoTime() - submitTimeNanos;
+            if (lagHistogram == null) {
+                // Only ever called on the event loop thread, which is the single writer for the histogram
+                lagHistogram = new LatencyHistogram();
+                Metrics.registerEventLoopLagHistogram(Thread.currentThread().getName(), lagHistogram);
+            }
+            lagHistogram.recordValue(lagNanos / 1000L);
+            outstanding = false;
+        }
+    }
+
+    /** Start monitoring an event loop, if it is not already being monitored. */
+    public void monitor(EventExecutor executor) {
+        if (!probes.containsKey(executor)) {
+            probes.putIfAbsent(executor, new LoopProbe(executor));
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** The handler currently running on a thread, if any. */
+    private static class HandlerActivity {
+        final Thread thread = Thread.currentThread();
+        volatile long startNanos;
+        volatile String route;
+        volatile String url;
+        long reportedStartNanos;
+    }
+
+    private static final CopyOnWriteArrayList<HandlerActivity> handlerActivities = new CopyOnWriteArrayList<>();
+
+    private static final FastThreadLocal<HandlerActivity> handlerActivity = new FastThreadLocal<HandlerActivity>() {
+        @Override
+        protected HandlerActivity initialValue() {
+            HandlerActivity activity = new HandlerActivity();
+            handlerActivities.add(activity);
+            return activity;
+        }
+    };
+
+    /** Called by the request decoder before calling an HttpRequestHandler. */
+    public static void handlerStarted(String route, String url) {
+        if (trackHandlers) {
+            HandlerActivity activity = handlerActivity.get();
+            activity.route = route;
+            activity.url = url;
+            // Written last, so that route and url are visible once startNanos is non-zero
+            activity.startNanos = System.nanoTime();
+        }
+    }
+
+    /** Called by the request decoder once an HttpRequestHandler has returned. */
+    public static void handlerFinished() {
+        if (trackHandlers) {
+            handlerActivity.get().startNanos = 0L;
+        }
+    }
+
+    /** A stack sample of a handler that blocked an event loop. */
+    public static class BlockedHandlerSample {
+        public final String threadName;
+        public final String route;
+        public final String url;
+        public final long blockedMillis;
+        public final StackTraceElement[] stackTrace;
+
+        BlockedHandlerSample(String threadName, String route, String url, long blockedMillis,
+                StackTraceElement[] stackTrace) {
+            this.threadName = threadName;
+            this.route = route;
+            this.url = url;
+            this.blockedMillis = blockedMillis;
+            this.stackTrace = stackTrace;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append("Handler ").append(route).append(" blocked event loop thread ").append(threadName)
+                    .append(" for ").append(blockedMillis).append(" ms handling ").append(url);
+            for (StackTraceElement elt : stackTrace) {
+                buf.append("\n\tat ").append(elt);
+            }
+            return buf.toString();
+        }
+    }
+
+    /** Get the most recent blocked handler samples, oldest first. */
+    public ArrayList<BlockedHandlerSample> getRecentBlockedHandlerSamples() {
+        return new ArrayList<>(recentSamples);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private void tick() {
+        for (LoopProbe probe : probes.values()) {
+            if (probe.executor.isShuttingDown()) {
+                probes.remove(probe.executor);
+            } else {
+                probe.submit();
+            }
+        }
+
+        long now = System.nanoTime();
+        for (Iterator<HandlerActivity> iter = handlerActivities.iterator(); iter.hasNext();) {
+            HandlerActivity activity = iter.next();
+            if (!activity.thread.isAlive()) {
+                handlerActivities.remove(activity);
+                continue;
+            }
+            long startNanos = activity.startNanos;
+            if (startNanos != 0L && now - startNanos > blockedThresholdNanos
+                    && activity.reportedStartNanos != startNanos) {
+                // Take only one sample per handler invocation
+                activity.reportedStartNanos = startNanos;
+                String route = activity.route, url = activity.url;
+                StackTraceElement[] stackTrace = activity.thread.getStackTrace();
+                if (activity.startNanos != startNanos) {
+                    // Handler returned while the stack was being sampled
+                    continue;
+                }
+                BlockedHandlerSample sample = new BlockedHandlerSample(activity.thread.getName(), route, url,
+                        TimeUnit.NANOSECONDS.toMillis(now - startNanos), stackTrace);
+                recentSamples.addLast(sample);
+                while (recentSamples.size() > MAX_RECENT_SAMPLES) {
+                    recentSamples.pollFirst();
+                }
+                Metrics.blockedHandlerDetected();
+                Log.warningWithoutCallerRef(sample.toString());
+            }
+        }
+    }
+
+    /** Stop the watchdog. */
+    @Override
+    public void close() {
+        trackHandlers = false;
+        scheduler.shutdownNow();
+        probes.clear();
+    }
+}
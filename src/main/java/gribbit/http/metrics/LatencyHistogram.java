@@ -0,0 +1,132 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear latency histogram (in the style of HdrHistogram), recording values in microseconds. Each power of
+ * two range is split into 16 linear sub-buckets, giving a relative error of at most 1/16, over a range of 0 to
+ * 2^37 microseconds (about 38 hours). Larger values are recorded in the last bucket.
+ * 
+ * Recording is lock-free but not thread safe: each histogram must only be recorded into by a single thread (see
+ * Metrics, which keeps one histogram per event loop thread). Any thread can read a histogram at any time, although
+ * the counts may be slightly inconsistent with each other while values are being recorded.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+
+    static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    static int bucketIndex(long valueMicros) {
+        if (valueMicros < SUB_BUCKETS) {
+            return valueMicros < 0 ? 0 : (int) valueMicros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(valueMicros);
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int subBucket = (int) (valueMicros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** The largest value that is recorded in the given bucket. */
+    static long bucketUpperBound(int bucketIdx) {
+        if (bucketIdx < SUB_BUCKETS) {
+            return bucketIdx;
+        }
+        int shift = bucketIdx / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucketIdx % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Record a value. Must only be called by the thread that owns this histogram. */
+    public void recordValue(long valueMicros) {
+        int idx = bucketIndex(valueMicros);
+        // Single writer, so a read followed by an ordered write is sufficient (no CAS needed)
+        counts.lazySet(idx, counts.get(idx) + 1);
+        sumMicros.lazySet(sumMicros.get() + Math.max(0L, valueMicros));
+        totalCount.lazySet(totalCount.get() + 1);
+    }
+
+    /** Add the counts of this histogram to another histogram. Not thread safe with respect to the other histogram. */
+    public void addTo(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                other.counts.lazySet(i, other.counts.get(i) + count);
+            }
+        }
+        other.sumMicros.lazySet(other.sumMicros.get() + sumMicros.get());
+        other.totalCount.lazySet(other.totalCount.get() + totalCount.get());
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getSumMicros() {
+        return sumMicros.get();
+    }
+
+    /** Get the number of recorded values that are less than or equal to the given value (to within 1/16). */
+    public long getCountAtOrBelow(long valueMicros) {
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS && bucketUpperBound(i) <= valueMicros; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /** Get the value at the given percentile (0.0 to 100.0), to within 1/16, or 0 if no values were recorded. */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            total += snapshot[i] = counts.get(i);
+        }
+        long target = Math.max(1L, (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            count += snapshot[i];
+            if (count >= target) {
+                return bucketUpperBound(i);
+            }
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.metrics;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server metrics: per-route and per-status latency histograms, bytes received and sent, and the number of active
+ * connections and WebSockets.
+ * 
+ * Latencies are recorded into histograms owned by the recording thread (i.e. the event loop), so recording does
+ * not contend across threads. The per-thread histograms are merged when the metrics are collected.
+ */
+public class Metrics {
+    private static volatile boolean enabled;
+
+    /** Route label for requests that were not handled by any HttpRequestHandler. */
+    public static final String UNMATCHED_ROUTE = "unmatched";
+
+    private static final int MAX_STATUS = 600;
+
+    /** The histograms recorded into by one thread. */
+    private static class ThreadRecorder {
+        /** Map from route label to histograms indexed by status code. Only written by the owning thread. */
+        final ConcurrentHashMap<String, AtomicReferenceArray<LatencyHistogram>> routeToStatusHistograms = //
+        new ConcurrentHashMap<>();
+
+        LatencyHistogram histogram(String route, int status) {
+            AtomicReferenceArray<LatencyHistogram> statusHistograms = routeToStatusHistograms.get(route);
+            if (statusHistograms == null) {
+                statusHistograms = new AtomicReferenceArray<>(MAX_STATUS);
+                routeToStatusHistograms.put(route, statusHistograms);
+            }
+            int statusIdx = status > 0 && status < MAX_STATUS ? status : 0;
+            LatencyHistogram histogram = statusHistograms.get(statusIdx);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                statusHistograms.set(statusIdx, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    private static final CopyOnWriteArrayList<ThreadRecorder> threadRecorders = new CopyOnWriteArrayList<>();
+
+    private static final FastThreadLocal<ThreadRecorder> threadRecorder = new FastThreadLocal<ThreadRecorder>() {
+        @Override
+        protected ThreadRecorder initialValue() {
+            ThreadRecorder recorder = new ThreadRecorder();
+            threadRecorders.add(recorder);
+            return recorder;
+        }
+    };
+
+    private static final LongAdder bytesReceived = new LongAdder();
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final AtomicLong activeConnections = new AtomicLong();
+    private static final LongAdder totalConnections = new LongAdder();
+    private static final AtomicLong activeWebSockets = new AtomicLong();
+    private static final LongAdder totalWebSockets = new LongAdder();
+    private static final LongAdder webSocketFramesDropped = new LongAdder();
+    private static final LongAdder slowConsumerDisconnects = new LongAdder();
+    private static final LongAdder webSocketPingsSent = new LongAdder();
+    private static final LongAdder webSocketsIdleClosed = new LongAdder();
+
+    /** Map from event loop thread name to scheduling lag histogram (see EventLoopWatchdog). */
+    private static final ConcurrentHashMap<String, LatencyHistogram> eventLoopLagHistograms = //
+    new ConcurrentHashMap<>();
+    private static final LongAdder blockedHandlers = new LongAdder();
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Enable or disable recording of request latencies. */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Record the latency of a request. */
+    public static void recordRequest(String route, int status, long latencyNanos) {
+        threadRecorder.get().histogram(route, status).recordValue(latencyNanos / 1000L);
+    }
+
+    /**
+     * Record the latency of a request once the last byte of the response has been written, measured from
+     * reqReceivedTimeNanos (a System.nanoTime() value).
+     */
+    public static void recordOnCompletion(ChannelFuture lastWriteFuture, final String route, final int status,
+            final long reqReceivedTimeNanos) {
+        lastWriteFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                // Recorded into the histogram of whichever thread notifies the listener (the channel's event loop)
+                recordRequest(route, status, System.nanoTime() - reqReceivedTimeNanos);
+            }
+        });
+    }
+
+    public static void bytesReceived(long numBytes) {
+        bytesReceived.add(numBytes);
+    }
+
+    public static void bytesSent(long numBytes) {
+        bytesSent.add(numBytes);
+    }
+
+    public static void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    public static void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public static void webSocketOpened() {
+        activeWebSockets.incrementAndGet();
+        totalWebSockets.increment();
+    }
+
+    public static void webSocketClosed() {
+        activeWebSockets.decrementAndGet();
+    }
+
+    public static void webSocketFrameDropped() {
+        webSocketFramesDropped.increment();
+    }
+
+    public static void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    public static void webSocketPingSent() {
+        webSocketPingsSent.increment();
+    }
+
+    public static void webSocketIdleClosed() {
+        webSocketsIdleClosed.increment();
+    }
+
+    /** Register the scheduling lag histogram for an event loop thread. */
+    static void registerEventLoopLagHistogram(String threadName, LatencyHistogram histogram) {
+        eventLoopLagHistograms.put(threadName, histogram);
+    }
+
+    static void blockedHandlerDetected() {
+        blockedHandlers.increment();
+    }
+
+    public static long getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public static long getActiveWebSockets() {
+        return activeWebSockets.get();
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Merge the histograms of all threads, returning a map from route to status code to histogram. */
+    public static TreeMap<String, TreeMap<Integer, LatencyHistogram>> collectLatencyHistograms() {
+        TreeMap<String, TreeMap<Integer, LatencyHistogram>> merged = new TreeMap<>();
+        for (ThreadRecorder recorder : threadRecorders) {
+            for (Entry<String, AtomicReferenceArray<LatencyHistogram>> ent : recorder.routeToStatusHistograms
+                    .entrySet()) {
+                TreeMap<Integer, LatencyHistogram> statusToHistogram = merged.get(ent.getKey());
+                if (statusToHistogram == null) {
+                    merged.put(ent.getKey(), statusToHistogram = new TreeMap<>());
+                }
+                AtomicReferenceArray<LatencyHistogram> statusHistograms = ent.getValue();
+                for (int status = 0; status < MAX_STATUS; status++) {
+                    LatencyHistogram histogram = statusHistograms.get(status);
+                    if (histogram != null) {
+                        LatencyHistogram mergedHistogram = statusToHistogram.get(status);
+                        if (mergedHistogram == null) {
+                            statusToHistogram.put(status, mergedHistogram = new LatencyHistogram());
+                        }
+                        histogram.addTo(mergedHistogram);
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Histogram bucket boundaries for Prometheus, in seconds. */
+    private static final String[] BUCKET_LABELS = { "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+
+    private static final long[] BUCKET_MICROS = { 500L, 1000L, 2500L, 5000L, 10000L, 25000L, 50000L, 100000L,
+            250000L, 500000L, 1000000L, 2500000L, 5000000L, 10000000L };
+
+    private static void appendLabelValue(StringBuilder buf, String value) {
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                buf.append('\\').append(c);
+            } else if (c == '\n') {
+                buf.append("\\n");
+            } else {
+                buf.append(c);
+            }
+        }
+    }
+
+    private static void appendMetric(StringBuilder buf, String name, String type, String help, long value) {
+        buf.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        buf.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        buf.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** Append a histogram. labels should be of the form {name="value",name="value" (without the closing brace). */
+    private static void appendHistogram(StringBuilder buf, String name, String labels, LatencyHistogram histogram) {
+        for (int i = 0; i < BUCKET_MICROS.length; i++) {
+            buf.append(name).append("_bucket").append(labels).append(",le=\"").append(BUCKET_LABELS[i])
+                    .append("\"} ").append(histogram.getCountAtOrBelow(BUCKET_MICROS[i])).append('\n');
+        }
+        long count = histogram.getTotalCount();
+        buf.append(name).append("_bucket").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+        buf.append(name).append("_sum").append(labels).append("} ").append(histogram.getSumMicros() / 1e6)
+                .append('\n');
+        buf.append(name).append("_count").append(labels).append("} ").append(count).append('\n');
+    }
+
+    /** Write all metrics in the Prometheus text exposition format. */
+    public static void writePrometheus(StringBuilder buf) {
+        String name = "gribbit_http_request_duration_seconds";
+        buf.append("# HELP ").append(name)
+                .append(" Time from receiving a request until the last byte of the response was written.\n");
+        buf.append("# TYPE ").append(name).append(" histogram\n");
+        for (Entry<String, TreeMap<Integer, LatencyHistogram>> routeEnt : collectLatencyHistograms().entrySet()) {
+            for (Entry<Integer, LatencyHistogram> statusEnt : routeEnt.getValue().entrySet()) {
+                int labelsStart = buf.length();
+                buf.append("{route=\"");
+                appendLabelValue(buf, routeEnt.getKey());
+                buf.append("\",status=\"").append(statusEnt.getKey()).append('"');
+                String labels = buf.substring(labelsStart);
+                buf.setLength(labelsStart);
+                appendHistogram(buf, name, labels, statusEnt.getValue());
+            }
+        }
+        if (!eventLoopLagHistograms.isEmpty()) {
+            name = "gribbit_event_loop_lag_seconds";
+            buf.append("# HELP ").append(name)
+                    .append(" Delay between scheduling a probe task on an event loop and the task running.\n");
+            buf.append("# TYPE ").append(name).append(" histogram\n");
+            for (Entry<String, LatencyHistogram> ent : new TreeMap<>(eventLoopLagHistograms).entrySet()) {
+                int labelsStart = buf.length();
+                buf.append("{thread=\"");
+                appendLabelValue(buf, ent.getKey());
+                buf.append('"');
+                String labels = buf.substring(labelsStart);
+                buf.setLength(labelsStart);
+                appendHistogram(buf, name, labels, ent.getValue());
+            }
+            appendMetric(buf, "gribbit_http_blocked_handlers_total", "counter",
+                    "Handlers that blocked an event loop for longer than the watchdog threshold.",
+                    blockedHandlers.sum());
+        }
+        appendMetric(buf, "gribbit_http_received_bytes_total", "counter", "Bytes received.", bytesReceived.sum());
+        appendMetric(buf, "gribbit_http_sent_bytes_total", "counter", "Bytes sent.", bytesSent.sum());
+        appendMetric(buf, "gribbit_http_connections_active", "gauge", "Open connections.", activeConnections.get());
+        appendMetric(buf, "gribbit_http_connections_total", "counter", "Connections accepted.",
+                totalConnections.sum());
+        appendMetric(buf, "gribbit_http_websockets_active", "gauge", "Open WebSocket connections.",
+                activeWebSockets.get());
+        appendMetric(buf, "gribbit_http_websockets_total", "counter", "WebSocket connections accepted.",
+                totalWebSockets.sum());
+        appendMetric(buf, "gribbit_http_websocket_frames_dropped_total", "counter",
+                "WebSocket frames dropped or superseded because the client was not reading fast enough.",
+                webSocketFramesDropped.sum());
+        appendMetric(buf, "gribbit_http_websocket_slow_consumer_disconnects_total", "counter",
+                "WebSocket connections closed because the client was not reading fast enough.",
+                slowConsumerDisconnects.sum());
+        appendMetric(buf, "gribbit_http_websocket_pings_total", "counter", "Keepalive pings sent to idle WebSockets.",
+                webSocketPingsSent.sum());
+        appendMetric(buf, "gribbit_http_websocket_idle_closed_total", "counter",
+                "WebSocket connections closed because the peer stopped responding to keepalive pings.",
+                webSocketsIdleClosed.sum());
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.metrics;
+
+import gribbit.http.request.Request;
+import gribbit.http.request.handler.HttpRequestHandler;
+import gribbit.http.response.ByteBufResponse;
+import gribbit.http.response.Response;
+import gribbit.http.utils.UTF8;
+
+/**
+ * Serves the server metrics in the Prometheus text exposition format at a given path (e.g. "/metrics").
+ */
+public class PrometheusMetricsHandler implements HttpRequestHandler {
+    private final String path;
+
+    public PrometheusMetricsHandler(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public Response handle(Request request) {
+        if (!request.getURL().equals(path)) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder(4096);
+        Metrics.writePrometheus(buf);
+        Response response = new ByteBufResponse(request, UTF8.stringToUTF8ByteBuf(buf.toString()),
+                "text/plain; version=0.0.4; charset=utf-8");
+        response.doNotCache();
+        return response;
+    }
+}
@@ -38,65 +38,80 @@ import static io.netty.handler.codec.http.HttpHeaderNames.USER_AGENT;
 import gribbit.http.response.exception.BadRequestException;
 import gribbit.http.response.exception.ResponseException;
 import gribbit.http.route.RequestURL;
+import gribbit.http.utils.ParamParser;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpUtil;
-import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.multipart.FileUpload;
 import io.netty.handler.codec.http2.HttpConversionUtil;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 public class Request {
+    private final Handle<Request> recyclerHandle;
+
+    private ChannelHandlerContext ctx;
     private String rawURL;
-    private String normalizedURL;
+    private RequestURL requestURL;
     private HttpRequest httpRequest;
-    private String streamId;
+    private HttpHeaders headers;
 
-    private String httpVersion;
     private long reqReceivedTimeEpochMillis;
+    private long reqReceivedTimeNanos;
     private HttpMethod method;
-    private boolean isSecure;
     private boolean isHEADRequest;
     private boolean isKeepAlive;
-    private String requestor;
-    private String host;
 
     //    private Route authorizedRoute;
 
     //    private String urlHashKey;
 
-    private CharSequence accept;
-    private CharSequence acceptCharset;
-    private CharSequence acceptLanguage;
+    // The following fields are decoded from the request headers or channel on first access, since most handlers
+    // (and in particular static file handlers) only ever look at a few of them.
+
+    private String streamId;
+    private boolean streamIdDecoded;
+
+    private boolean isSecure;
+    private boolean isSecureDecoded;
+
+    private String requestor;
+    private boolean requestorDecoded;
+
     private boolean acceptEncodingGzip;
-    private CharSequence referer;
-    private CharSequence userAgent;
+    private boolean acceptEncodingGzipDecoded;
 
-    private CharSequence ifModifiedSince;
     private long ifModifiedSinceEpochSecond;
+    private boolean ifModifiedSinceDecoded;
 
     private HashMap<String, ArrayList<Cookie>> cookieNameToCookies;
+    private boolean cookiesDecoded;
+
     private HashMap<String, String> postParamToValue;
     private HashMap<String, FileUpload> postParamToFileUpload;
-    private Map<String, List<String>> queryParamToVals;
+
+    /** Temporary buffers allocated for the duration of the request, released once the request is complete. */
+    private ArrayList<ByteBuf> tempBuffers;
 
     //    /**
     //     * The logged-in user, if the user is logged in (has a valid session cookie) and this request is for a route
@@ -105,24 +120,6 @@ public class Request {
     //     */
     //    private User user;
 
-    /**
-     * Header for CORS, and for protecting against CSWSH. See:
-     * 
-     * http://en.wikipedia.org/wiki/Cross-origin_resource_sharing
-     * 
-     * http://www.christian-schneider.net/CrossSiteWebSocketHijacking.html
-     * 
-     * FIXME: make use of this field when setting up websockets
-     **/
-    private CharSequence origin;
-
-    /**
-     * Header for CSRF protection of AJAX requests (regular GETs and POSTs don't allow for header manipulation.)
-     * 
-     * See https://nealpoole.com/blog/2010/11/preventing-csrf-attacks-with-ajax-and-http-headers/
-     */
-    private CharSequence xRequestedWith;
-
     //    /**
     //     * If set to true by appending "?_getmodel=1" to the URL, then return the data model backing an HTML page, not
     //     * the rendered page itself.
@@ -135,10 +132,49 @@ public class Request {
     // -----------------------------------------------------------------------------------------------------
 
     public Request(ChannelHandlerContext ctx, HttpRequest httpReq) throws ResponseException {
+        this.recyclerHandle = null;
+        init(ctx, httpReq);
+    }
+
+    private Request(Handle<Request> recyclerHandle) {
+        this.recyclerHandle = recyclerHandle;
+    }
+
+    /**
+     * Recycles Request objects, so that a busy server does not need to allocate a new Request (and its HashMaps)
+     * for every request. Recycler keeps a pool per thread, i.e. per event loop.
+     */
+    private static final Recycler<Request> RECYCLER = new Recycler<Request>() {
+        @Override
+        protected Request newObject(Handle<Request> handle) {
+            return new Request(handle);
+        }
+    };
+
+    /**
+     * Get a recycled Request object from the pool for the current thread (or a new Request object, if the pool is
+     * empty). The caller must call recycle() once the request is complete, and must not hold on to the Request
+     * object after that.
+     */
+    public static Request newRecycledInstance(ChannelHandlerContext ctx, HttpRequest httpReq)
+            throws ResponseException {
+        Request request = RECYCLER.get();
+        try {
+            request.init(ctx, httpReq);
+        } catch (ResponseException e) {
+            request.recycle();
+            throw e;
+        }
+        return request;
+    }
+
+    private void init(ChannelHandlerContext ctx, HttpRequest httpReq) throws ResponseException {
         this.reqReceivedTimeEpochMillis = System.currentTimeMillis();
+        this.reqReceivedTimeNanos = System.nanoTime();
 
+        this.ctx = ctx;
         this.httpRequest = httpReq;
-        HttpHeaders headers = httpReq.headers();
+        this.headers = httpReq.headers();
 
         // Netty changes the URI of the request to "/bad-request" if the HTTP request was malformed
         this.rawURL = httpReq.uri();
@@ -148,99 +184,118 @@ public class Request {
             rawURL = "/";
         }
 
-        // Decode the URL
-        RequestURL requestURL = new RequestURL(rawURL);
-        this.normalizedURL = requestURL.getNormalizedPath();
-        this.queryParamToVals = requestURL.getQueryParams();
+        // Normalize the URL path (query params are decoded lazily)
+        this.requestURL = new RequestURL(rawURL);
 
-        // TODO: figure out how to detect HTTP/2 connections
-        this.httpVersion = httpReq.protocolVersion().toString();
+        this.method = httpReq.method();
 
-        // Get HTTP2 stream ID
-        this.streamId = headers.getAsString(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+        // Force the GET method if HEAD is requested
+        this.isHEADRequest = this.method == HttpMethod.HEAD;
+        if (this.isHEADRequest) {
+            this.method = HttpMethod.GET;
+        }
 
-        this.isSecure = ctx.pipeline().get(SslHandler.class) != null; // TODO: is this correct for HTTP2?
+        // HttpUtil.isKeepAlive() handles both HTTP/1.1 (keep-alive unless "Connection: close") and HTTP/1.0
+        // (only if "Connection: keep-alive")
+        this.isKeepAlive = HttpUtil.isKeepAlive(httpReq);
 
-        // Decode cookies
+        //        // If this is a hash URL, look up original URL whose served resource was hashed to give this hash URL.
+        //        // We only need to serve the resource at a hash URL once per resource per client, since resources served
+        //        // from hash URLs are indefinitely cached in the browser.
+        //        // TODO: Move cache-busting out of http package
+        //        this.urlHashKey = CacheExtension.getHashKey(this.urlPath);
+        //        this.urlPathUnhashed = this.urlHashKey != null ? CacheExtension.getOrigURL(this.urlPath) : this.urlPath;
+
+        //        // Get flash messages from cookie, if any
+        //        this.flashMessages = FlashMessage.fromCookieString(getCookieValue(Cookie.FLASH_COOKIE_NAME));
+    }
+
+    /**
+     * Free the resources held by this request, and if this Request was obtained from newRecycledInstance(), return
+     * it to the pool. The HashMaps used by the request are cleared rather than discarded, so that they can be
+     * reused by the next request.
+     */
+    public void recycle() {
+        releasePostFileUploadParams();
+        releaseTempBuffers();
+        if (recyclerHandle == null) {
+            return;
+        }
+        ctx = null;
+        rawURL = null;
+        requestURL = null;
+        httpRequest = null;
+        headers = null;
+        reqReceivedTimeEpochMillis = 0L;
+        reqReceivedTimeNanos = 0L;
+        method = null;
+        isHEADRequest = false;
+        isKeepAlive = false;
+        streamId = null;
+        streamIdDecoded = false;
+        isSecure = false;
+        isSecureDecoded = false;
+        requestor = null;
+        requestorDecoded = false;
+        acceptEncodingGzip = false;
+        acceptEncodingGzipDecoded = false;
+        ifModifiedSinceEpochSecond = 0L;
+        ifModifiedSinceDecoded = false;
+        if (cookieNameToCookies != null) {
+            cookieNameToCookies.clear();
+        }
+        cookiesDecoded = false;
+        if (postParamToValue != null) {
+            postParamToValue.clear();
+        }
+        recyclerHandle.recycle(this);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Decode the cookies in the request the first time they are needed. Malformed cookie headers are ignored (they
+     * cause ServerCookieDecoder to throw IllegalArgumentException), since by the time cookies are looked up, the
+     * request is already being handled.
+     */
+    private void decodeCookies() {
+        cookiesDecoded = true;
+        // Reuse the map from a previous request if this Request object was recycled
+        HashMap<String, ArrayList<Cookie>> cookieMap = cookieNameToCookies;
         try {
             for (CharSequence cookieHeader : headers.getAll(COOKIE)) {
                 for (Cookie cookie : ServerCookieDecoder.STRICT.decode(cookieHeader.toString())) {
-                    // Log.fine("Cookie in request: " + nettyCookie);
-                    if (cookieNameToCookies == null) {
-                        cookieNameToCookies = new HashMap<>();
+                    if (cookieMap == null) {
+                        cookieMap = new HashMap<>();
                     }
                     String cookieName = cookie.name();
 
                     // Multiple cookies may be present in the request with the same name but with different paths
-                    ArrayList<Cookie> cookiesWithThisName = cookieNameToCookies.get(cookieName);
+                    ArrayList<Cookie> cookiesWithThisName = cookieMap.get(cookieName);
                     if (cookiesWithThisName == null) {
-                        cookieNameToCookies.put(cookieName, cookiesWithThisName = new ArrayList<>());
+                        cookieMap.put(cookieName, cookiesWithThisName = new ArrayList<>());
                     }
                     cookiesWithThisName.add(cookie);
                 }
             }
         } catch (IllegalArgumentException e) {
-            // Malformed cookies cause ServerCookieDecoder to throw IllegalArgumentException
-            // Log.info("Malformed cookie in request");
-            throw new BadRequestException();
+            // Malformed cookie in request
+            if (cookieMap != null) {
+                cookieMap.clear();
+            }
+            return;
         }
         // Sort cookies into decreasing order of path length, in case client doesn't conform to RFC6295,
         // delivering the cookies in this order itself. This allows us to get the most likely single
         // cookie for a given cookie name by reading the first cookie in a list for a given name.
-        if (cookieNameToCookies != null) {
-            for (Entry<String, ArrayList<Cookie>> ent : cookieNameToCookies.entrySet()) {
-                Collections.sort(ent.getValue(), COOKIE_COMPARATOR);
-            }
-        }
-
-        this.method = httpReq.method();
-
-        // Force the GET method if HEAD is requested
-        this.isHEADRequest = this.method == HttpMethod.HEAD;
-        if (this.isHEADRequest) {
-            this.method = HttpMethod.GET;
-        }
-
-        this.isKeepAlive = HttpUtil.isKeepAlive(httpReq) && httpReq.protocolVersion().equals(HttpVersion.HTTP_1_0);
-
-        CharSequence host = headers.get(HOST);
-        this.host = host == null ? null : host.toString();
-
-        this.xRequestedWith = headers.get("X-Requested-With");
-        this.accept = headers.get(ACCEPT);
-        this.acceptCharset = headers.get(ACCEPT_CHARSET);
-        this.acceptLanguage = headers.get(ACCEPT_LANGUAGE);
-        this.origin = headers.get(ORIGIN);
-        this.referer = headers.get(REFERER);
-        this.userAgent = headers.get(USER_AGENT);
-
-        InetSocketAddress requestorSocketAddr = (InetSocketAddress) ctx.channel().remoteAddress();
-        if (requestorSocketAddr != null) {
-            InetAddress address = requestorSocketAddr.getAddress();
-            if (address != null) {
-                this.requestor = address.getHostAddress();
+        if (cookieMap != null) {
+            for (ArrayList<Cookie> cookieList : cookieMap.values()) {
+                if (cookieList.size() > 1) {
+                    Collections.sort(cookieList, COOKIE_COMPARATOR);
+                }
             }
         }
-
-        CharSequence acceptEncoding = headers.get(ACCEPT_ENCODING);
-        this.acceptEncodingGzip = acceptEncoding != null
-                && acceptEncoding.toString().toLowerCase().contains("gzip");
-
-        this.ifModifiedSince = headers.get(IF_MODIFIED_SINCE);
-        if (this.ifModifiedSince != null && this.ifModifiedSince.length() > 0) {
-            this.ifModifiedSinceEpochSecond = ZonedDateTime.parse(this.ifModifiedSince,
-                    DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
-        }
-
-        //        // If this is a hash URL, look up original URL whose served resource was hashed to give this hash URL.
-        //        // We only need to serve the resource at a hash URL once per resource per client, since resources served
-        //        // from hash URLs are indefinitely cached in the browser.
-        //        // TODO: Move cache-busting out of http package
-        //        this.urlHashKey = CacheExtension.getHashKey(this.urlPath);
-        //        this.urlPathUnhashed = this.urlHashKey != null ? CacheExtension.getOrigURL(this.urlPath) : this.urlPath;
-
-        //        // Get flash messages from cookie, if any
-        //        this.flashMessages = FlashMessage.fromCookieString(getCookieValue(Cookie.FLASH_COOKIE_NAME));
+        cookieNameToCookies = cookieMap;
     }
 
     // -----------------------------------------------------------------------------------------------------------------
@@ -361,7 +416,7 @@ public class Request {
 
     /** Get the URL, normalized to handle ".." and ".". */
     public String getURL() {
-        return normalizedURL;
+        return requestURL.getNormalizedPath();
     }
 
     public String getPostParam(String paramName) {
@@ -380,7 +435,7 @@ public class Request {
     }
 
     public Set<String> getPostParamNames() {
-        if (postParamToValue == null) {
+        if (postParamToValue == null || postParamToValue.isEmpty()) {
             return null;
         } else {
             return postParamToValue.keySet();
@@ -411,7 +466,35 @@ public class Request {
             for (FileUpload fileUpload : postParamToFileUpload.values()) {
                 fileUpload.release();
             }
-            postParamToFileUpload = null;
+            postParamToFileUpload.clear();
+        }
+    }
+
+    /**
+     * Allocate a temporary buffer from the channel's allocator (usually pooled), for use while handling this
+     * request. The buffer is owned by the request, and is released automatically once the request is complete, so
+     * the caller should not release it. Temporary buffers must not be written to the channel -- use
+     * ctx.alloc().buffer() (or retain() the buffer) for response content.
+     */
+    public ByteBuf allocTempBuffer(int initialCapacity) {
+        ByteBuf buf = ctx.alloc().buffer(initialCapacity);
+        if (tempBuffers == null) {
+            tempBuffers = new ArrayList<>();
+        }
+        tempBuffers.add(buf);
+        return buf;
+    }
+
+    /** Release any temporary buffers allocated by allocTempBuffer(). */
+    public void releaseTempBuffers() {
+        if (tempBuffers != null) {
+            for (int i = 0, n = tempBuffers.size(); i < n; i++) {
+                ByteBuf buf = tempBuffers.get(i);
+                if (buf.refCnt() > 0) {
+                    buf.release();
+                }
+            }
+            tempBuffers.clear();
         }
     }
 
@@ -419,14 +502,44 @@ public class Request {
         this.postParamToValue = postParamToValue;
     }
 
+    /** Return the named POST param parsed as an int, or defaultValue if missing or not a valid int. */
+    public int getPostParamInt(String paramName, int defaultValue) {
+        String val = getPostParam(paramName);
+        return val == null ? defaultValue : ParamParser.parseInt(val, 0, val.length(), defaultValue);
+    }
+
+    /** Return the named POST param parsed as a long, or defaultValue if missing or not a valid long. */
+    public long getPostParamLong(String paramName, long defaultValue) {
+        String val = getPostParam(paramName);
+        return val == null ? defaultValue : ParamParser.parseLong(val, 0, val.length(), defaultValue);
+    }
+
+    /**
+     * Return the named POST param parsed as a boolean (see ParamParser.parseBoolean()), or defaultValue if
+     * missing or not a recognized boolean value.
+     */
+    public boolean getPostParamBoolean(String paramName, boolean defaultValue) {
+        String val = getPostParam(paramName);
+        return val == null ? defaultValue : ParamParser.parseBoolean(val, 0, val.length(), defaultValue);
+    }
+
+    /**
+     * Return the named POST param parsed as a constant of the given enum type (ignoring case), or defaultValue if
+     * missing or not the name of an enum constant.
+     */
+    public <E extends Enum<E>> E getPostParamEnum(String paramName, Class<E> enumType, E defaultValue) {
+        String val = getPostParam(paramName);
+        return val == null ? defaultValue : ParamParser.parseEnum(enumType, val, 0, val.length(), defaultValue);
+    }
+
     // -----------------------------------------------------------------------------------------------------------------
 
     /** Return all URL parameters matching the given name, or null if none. */
     public List<String> getQueryParams(String paramName) {
-        if (queryParamToVals == null) {
+        if (!requestURL.hasQuery()) {
             return null;
         } else {
-            return queryParamToVals.get(paramName);
+            return requestURL.getQueryParams().get(paramName);
         }
     }
 
@@ -440,6 +553,40 @@ public class Request {
         }
     }
 
+    /**
+     * Return the first URL parameter matching the given name parsed as an int, or defaultValue if missing or not
+     * a valid int. Parsed directly from the request URL, without decoding the query string.
+     */
+    public int getQueryParamInt(String paramName, int defaultValue) {
+        return requestURL.getQueryParamInt(paramName, defaultValue);
+    }
+
+    /**
+     * Return the first URL parameter matching the given name parsed as a long, or defaultValue if missing or not a
+     * valid long. Parsed directly from the request URL, without decoding the query string.
+     */
+    public long getQueryParamLong(String paramName, long defaultValue) {
+        return requestURL.getQueryParamLong(paramName, defaultValue);
+    }
+
+    /**
+     * Return the first URL parameter matching the given name parsed as a boolean (see
+     * ParamParser.parseBoolean()), or defaultValue if missing or not a recognized boolean value. Parsed directly
+     * from the request URL, without decoding the query string.
+     */
+    public boolean getQueryParamBoolean(String paramName, boolean defaultValue) {
+        return requestURL.getQueryParamBoolean(paramName, defaultValue);
+    }
+
+    /**
+     * Return the first URL parameter matching the given name parsed as a constant of the given enum type (ignoring
+     * case), or defaultValue if missing or not the name of an enum constant. Parsed directly from the request URL,
+     * without decoding the query string.
+     */
+    public <E extends Enum<E>> E getQueryParamEnum(String paramName, Class<E> enumType, E defaultValue) {
+        return requestURL.getQueryParamEnum(paramName, enumType, defaultValue);
+    }
+
     // -----------------------------------------------------------------------------------------------------------------
 
     /**
@@ -448,7 +595,10 @@ public class Request {
      * of path length to conform to RFC6295.
      */
     public Collection<ArrayList<Cookie>> getCookies() {
-        if (cookieNameToCookies == null) {
+        if (!cookiesDecoded) {
+            decodeCookies();
+        }
+        if (cookieNameToCookies == null || cookieNameToCookies.isEmpty()) {
             return null;
         } else {
             return cookieNameToCookies.values();
@@ -460,6 +610,9 @@ public class Request {
      * decreasing order of path length to conform to RFC6295.
      */
     public ArrayList<Cookie> getCookies(String cookieName) {
+        if (!cookiesDecoded) {
+            decodeCookies();
+        }
         if (cookieNameToCookies == null) {
             return null;
         } else {
@@ -505,7 +658,22 @@ public class Request {
      * indicating that the cached version is out of date and should be served (or served again).
      */
     public boolean contentModified(long contentLastModifiedEpochSeconds) {
-        if (contentLastModifiedEpochSeconds == 0 || ifModifiedSinceEpochSecond == 0) {
+        if (contentLastModifiedEpochSeconds == 0) {
+            return true;
+        }
+        if (!ifModifiedSinceDecoded) {
+            ifModifiedSinceDecoded = true;
+            CharSequence ifModifiedSince = headers.get(IF_MODIFIED_SINCE);
+            if (ifModifiedSince != null && ifModifiedSince.length() > 0) {
+                try {
+                    ifModifiedSinceEpochSecond = ZonedDateTime.parse(ifModifiedSince,
+                            DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                } catch (DateTimeParseException e) {
+                    // Ignore malformed dates, so that the content is served again
+                }
+            }
+        }
+        if (ifModifiedSinceEpochSecond == 0) {
             return true;
         } else {
             // Otherwise return true if the resource timestamp is later than the cached version timestamp
@@ -517,16 +685,26 @@ public class Request {
 
     /** Return the If-Modified-Since header value from the request, or null if none. */
     public CharSequence getIfModifiedSince() {
-        return ifModifiedSince;
+        return headers.get(IF_MODIFIED_SINCE);
     }
 
     public long getReqReceivedTimeEpochMillis() {
         return reqReceivedTimeEpochMillis;
     }
 
+    /** The System.nanoTime() value when the request was received, for measuring latency. */
+    public long getReqReceivedTimeNanos() {
+        return reqReceivedTimeNanos;
+    }
+
     // -----------------------------------------------------------------------------------------------------------------
 
+    /** Get the HTTP2 stream ID, or null if this is not an HTTP2 request. */
     public String getStreamId() {
+        if (!streamIdDecoded) {
+            streamIdDecoded = true;
+            streamId = headers.getAsString(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+        }
         return streamId;
     }
 
@@ -577,7 +755,23 @@ public class Request {
     //        return urlHashKey != null;
     //    }
 
+    /** Get the remote address of the connection, without decoding it. */
+    public SocketAddress getRemoteAddress() {
+        return ctx.channel().remoteAddress();
+    }
+
+    /** Get the IP address of the client, or the empty string if unknown. */
     public String getRequestor() {
+        if (!requestorDecoded) {
+            requestorDecoded = true;
+            SocketAddress requestorSocketAddr = ctx.channel().remoteAddress();
+            if (requestorSocketAddr instanceof InetSocketAddress) {
+                InetAddress address = ((InetSocketAddress) requestorSocketAddr).getAddress();
+                if (address != null) {
+                    requestor = address.getHostAddress();
+                }
+            }
+        }
         return requestor == null ? "" : requestor;
     }
 
@@ -598,46 +792,76 @@ public class Request {
     }
 
     public String getHttpVersion() {
-        return httpVersion;
+        // TODO: figure out how to detect HTTP/2 connections
+        return httpRequest.protocolVersion().text();
     }
 
     public CharSequence getHost() {
-        return host;
+        return headers.get(HOST);
     }
 
     public CharSequence getAccept() {
-        return accept;
+        return headers.get(ACCEPT);
     }
 
     public CharSequence getAcceptCharset() {
-        return acceptCharset;
+        return headers.get(ACCEPT_CHARSET);
     }
 
     public CharSequence getAcceptLanguage() {
-        return acceptLanguage;
+        return headers.get(ACCEPT_LANGUAGE);
     }
 
     public boolean acceptEncodingGzip() {
+        if (!acceptEncodingGzipDecoded) {
+            acceptEncodingGzipDecoded = true;
+            CharSequence acceptEncoding = headers.get(ACCEPT_ENCODING);
+            acceptEncodingGzip = acceptEncoding != null
+                    && acceptEncoding.toString().toLowerCase().contains("gzip");
+        }
         return acceptEncodingGzip;
     }
 
     public CharSequence getReferer() {
-        return referer;
+        return headers.get(REFERER);
     }
 
     public CharSequence getUserAgent() {
-        return userAgent;
+        return headers.get(USER_AGENT);
     }
 
+    /**
+     * Header for CORS, and for protecting against CSWSH. See:
+     * 
+     * http://en.wikipedia.org/wiki/Cross-origin_resource_sharing
+     * 
+     * http://www.christian-schneider.net/CrossSiteWebSocketHijacking.html
+     * 
+     * FIXME: make use of this field when setting up websockets
+     **/
     public CharSequence getOrigin() {
-        return origin;
+        return headers.get(ORIGIN);
     }
 
+    /**
+     * Header for CSRF protection of AJAX requests (regular GETs and POSTs don't allow for header manipulation.)
+     * 
+     * See https://nealpoole.com/blog/2010/11/preventing-csrf-attacks-with-ajax-and-http-headers/
+     */
     public CharSequence getXRequestedWith() {
-        return xRequestedWith;
+        return headers.get("X-Requested-With");
+    }
+
+    /** The id of the last Server-Sent Event received, sent by EventSource when it reconnects, or null if none. */
+    public CharSequence getLastEventId() {
+        return headers.get("Last-Event-ID");
     }
 
     public boolean isSecure() {
+        if (!isSecureDecoded) {
+            isSecureDecoded = true;
+            isSecure = ctx.pipeline().get(SslHandler.class) != null; // TODO: is this correct for HTTP2?
+        }
         return isSecure;
     }
 
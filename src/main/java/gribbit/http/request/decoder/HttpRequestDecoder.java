@@ -30,7 +30,11 @@ import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
 import static io.netty.handler.codec.http.HttpHeaderNames.EXPECT;
 import static io.netty.handler.codec.http.HttpHeaderNames.EXPIRES;
 import static io.netty.handler.codec.http.HttpHeaderNames.PRAGMA;
+import static io.netty.handler.codec.http.HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS;
+import gribbit.http.jfr.LifecycleEvents;
 import gribbit.http.logging.Log;
+import gribbit.http.metrics.EventLoopWatchdog;
+import gribbit.http.metrics.Metrics;
 import gribbit.http.request.Request;
 import gribbit.http.request.handler.HttpErrorHandler;
 import gribbit.http.request.handler.HttpRequestHandler;
@@ -39,13 +43,25 @@ import gribbit.http.response.Response;
 import gribbit.http.response.exception.BadRequestException;
 import gribbit.http.response.exception.InternalServerErrorException;
 import gribbit.http.response.exception.NotFoundException;
+import gribbit.http.response.exception.RequestEntityTooLargeException;
 import gribbit.http.response.exception.ResponseException;
+import gribbit.http.websocket.SlowConsumerHandler;
+import gribbit.http.websocket.SlowConsumerPolicy;
+import gribbit.http.websocket.WebSocketCompression;
+import gribbit.http.websocket.WebSocketMessageAggregator;
+import gribbit.http.websocket.WebSocketKeepAlive;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
@@ -61,13 +77,13 @@ import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
 import io.netty.handler.codec.http.multipart.DiskAttribute;
 import io.netty.handler.codec.http.multipart.DiskFileUpload;
 import io.netty.handler.codec.http.multipart.FileUpload;
-import io.netty.handler.codec.http.multipart.HttpDataFactory;
 import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
 import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder.EndOfDataDecoderException;
 import io.netty.handler.codec.http.multipart.InterfaceHttpData;
 import io.netty.handler.codec.http.multipart.InterfaceHttpData.HttpDataType;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
@@ -75,12 +91,15 @@ import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import io.netty.handler.ssl.NotSslRecordException;
+import io.netty.util.ReferenceCountUtil;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.logging.Level;
 
 public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
     private Request request;
@@ -88,18 +107,46 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
     private WebSocketHandler webSocketHandler;
     private WebSocketServerHandshaker webSocketHandshaker;
 
-    private ArrayList<HttpRequestHandler> httpRequestHandlers;
-    private ArrayList<WebSocketHandler> webSocketHandlers;
-    private HashMap<Class<? extends ResponseException>, //
-    HttpErrorHandler<? extends ResponseException>> errorHandlers;
+    /** Server-wide settings, shared with the decoders of other connections. */
+    private final RequestDecoderConfig config;
+
+    /** The keepalive state of this connection, once it has been upgraded to a WebSocket. */
+    private WebSocketKeepAlive.Connection keepAliveConnection;
+
+    /** Reassembles fragmented WebSocket messages. Allocated when the first fragmented message is received. */
+    private WebSocketMessageAggregator messageAggregator;
+
+    /** For handlers that stream fragments: whether a fragmented message is in progress, and if so, its type. */
+    private boolean streamingFragmentedMessage, streamingBinaryMessage;
+
+    /** WebSocket close status codes (RFC 6455, section 7.4.1). */
+    private static final int WEBSOCKET_CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int WEBSOCKET_CLOSE_MESSAGE_TOO_BIG = 1009;
+
+    /** The number of bytes of the current request body received so far, after decompression. */
+    private long requestBodyBytes;
+
+    /**
+     * True while the response to the previous request is still being written (e.g. a StreamingResponse, whose
+     * content is written after send() returns), during which pipelined requests must not be handled, since their
+     * responses would be written into the middle of the response in progress.
+     */
+    private boolean responseInProgress;
+
+    /** The HTTP messages of pipelined requests received while a response was in progress (retained). */
+    private ArrayDeque<Object> pipelinedMessages;
+
+    /** The metrics route label of the handler that is handling the current request. */
+    private String route;
 
     public static final String NAME_IN_PIPELINE = HttpRequestDecoder.class.getSimpleName();
     
     // -------------------------------------------------------------------------------------------------------------
 
-    // Use disk for HTTP data if size >16kB 
-    private static final HttpDataFactory httpDataFactory = new DefaultHttpDataFactory(
-            DefaultHttpDataFactory.MINSIZE);
+    // Use disk for HTTP data if size >16kB. (A new factory is created for each POST request, since the factory
+    // tracks the data of each request in a map keyed by HttpRequest equality, so concurrent requests with identical
+    // headers would otherwise free each other's data.)
+    private static final long HTTP_DATA_MIN_DISK_SIZE = DefaultHttpDataFactory.MINSIZE;
 
     static {
         // Delete temporary files on exit
@@ -115,14 +162,11 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
     // -------------------------------------------------------------------------------------------------------------
 
     public HttpRequestDecoder() {
+        this(new RequestDecoderConfig());
     }
 
-    public HttpRequestDecoder(ArrayList<HttpRequestHandler> httpRequestHandlers,
-            ArrayList<WebSocketHandler> webSocketHandlers, HashMap<Class<? extends ResponseException>, //
-            HttpErrorHandler<? extends ResponseException>> errorHandlers) {
-        this.httpRequestHandlers = httpRequestHandlers;
-        this.webSocketHandlers = webSocketHandlers;
-        this.errorHandlers = errorHandlers;
+    public HttpRequestDecoder(RequestDecoderConfig config) {
+        this.config = config;
     }
 
     /**
@@ -136,22 +180,43 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
                 postRequestDecoder.cleanFiles();
                 postRequestDecoder.destroy();
                 postRequestDecoder = null;
-                // Release any temporary files
-                request.releasePostFileUploadParams();
             } catch (Exception e) {
             }
         }
-        request = null;
+        if (request != null) {
+            // Release any temporary files and buffers, and return the Request object to the pool if recycled
+            request.recycle();
+            request = null;
+        }
+        route = null;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (webSocketHandler != null) {
+            webSocketClosed();
+        }
+        releasePipelinedMessages();
+        freeResources();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (webSocketHandler != null) {
+            webSocketHandler.writabilityChanged(ctx, ctx.channel().isWritable());
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     // -------------------------------------------------------------------------------------------------------------
 
     /** Add an HTTP request handler. Handlers are called in order until one of them returns a non-null response. */
     public HttpRequestDecoder addHttpRequestHandler(HttpRequestHandler handler) {
-        if (httpRequestHandlers == null) {
-            httpRequestHandlers = new ArrayList<>();
+        if (config.httpRequestHandlers == null) {
+            config.httpRequestHandlers = new ArrayList<>();
         }
-        httpRequestHandlers.add(handler);
+        config.httpRequestHandlers.add(handler);
         return this;
     }
 
@@ -160,22 +225,32 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
      * request.
      */
     public HttpRequestDecoder addWebSocketHandler(WebSocketHandler handler) {
-        if (webSocketHandlers == null) {
-            webSocketHandlers = new ArrayList<>();
-        }
-        webSocketHandlers.add(handler);
+        getWebSocketRoutes().addHandler(handler);
+        return this;
+    }
+
+    /** Add a WebSocket handler for upgrade requests for a URL path, e.g. "/ws". */
+    public HttpRequestDecoder addWebSocketHandler(String path, WebSocketHandler handler) {
+        getWebSocketRoutes().addRoute(path, handler);
         return this;
     }
 
+    private WebSocketRoutes getWebSocketRoutes() {
+        if (config.webSocketRoutes == null) {
+            config.webSocketRoutes = new WebSocketRoutes(config.webSocketMaxMessageBytes);
+        }
+        return config.webSocketRoutes;
+    }
+
     // -------------------------------------------------------------------------------------------------------------
 
     /** Add an error handler that overrides a default plain text error response. */
     public <E extends ResponseException> HttpRequestDecoder addHttpErrorHandler(Class<E> exceptionType,
             HttpErrorHandler<E> errorHandler) {
-        if (errorHandlers == null) {
-            errorHandlers = new HashMap<>();
+        if (config.errorHandlers == null) {
+            config.errorHandlers = new HashMap<>();
         }
-        errorHandlers.put(exceptionType, errorHandler);
+        config.errorHandlers.put(exceptionType, errorHandler);
         return this;
     }
 
@@ -184,9 +259,10 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
      * response.
      */
     private <E extends ResponseException> Response generateErrorResponse(E exception) {
-        if (errorHandlers != null) {
+        if (config.errorHandlers != null) {
             @SuppressWarnings("unchecked")
-            HttpErrorHandler<E> errorHandler = (HttpErrorHandler<E>) errorHandlers.get(exception.getClass());
+            HttpErrorHandler<E> errorHandler = (HttpErrorHandler<E>) config.errorHandlers.get(exception
+                    .getClass());
             if (errorHandler != null) {
                 try {
                     return errorHandler.generateResponse(request, exception);
@@ -199,11 +275,76 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
 
     // -------------------------------------------------------------------------------------------------------------
 
-    /** Decode an HTTP message. */
+    /** Decode an HTTP message, or queue it if it belongs to a request received while a response is in progress. */
     @Override
     public void messageReceived(ChannelHandlerContext ctx, Object msg) {
+        if (responseInProgress) {
+            if (pipelinedMessages == null) {
+                pipelinedMessages = new ArrayDeque<>();
+            }
+            pipelinedMessages.add(ReferenceCountUtil.retain(msg));
+            // Stop reading until the response has been written, so that the queue is bounded by what has already
+            // been read. (Reads are only paused for clients that pipeline requests, so that other clients that
+            // disconnect during a long response are noticed straight away.)
+            ctx.channel().config().setAutoRead(false);
+        } else {
+            handleMessage(ctx, msg);
+        }
+    }
+
+    /**
+     * Don't handle further requests until the last write of the current response has completed, if it has not
+     * already. Once it has, free the Request, handle any requests that were pipelined in the meantime, and resume
+     * reading.
+     */
+    private void waitForResponse(final ChannelHandlerContext ctx, ChannelFuture lastWriteFuture) {
+        if (lastWriteFuture.isDone()) {
+            // Response has already been written (the common case) -- the Request is freed by freeResources()
+            return;
+        }
+        responseInProgress = true;
+        // The response may still read from the Request (e.g. a StreamingResponse that reads POST params), so the
+        // Request is not recycled by freeResources(), but once the response is complete
+        final Request respondingRequest = request;
+        request = null;
+        lastWriteFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                respondingRequest.recycle();
+                responseInProgress = false;
+                if (!ctx.channel().isActive()) {
+                    releasePipelinedMessages();
+                    return;
+                }
+                for (Object msg; !responseInProgress && pipelinedMessages != null
+                        && (msg = pipelinedMessages.poll()) != null;) {
+                    try {
+                        handleMessage(ctx, msg);
+                    } finally {
+                        ReferenceCountUtil.release(msg);
+                    }
+                }
+                if (!responseInProgress && !ctx.channel().config().isAutoRead()) {
+                    ctx.channel().config().setAutoRead(true);
+                }
+            }
+        });
+    }
+
+    private void releasePipelinedMessages() {
+        if (pipelinedMessages != null) {
+            for (Object msg; (msg = pipelinedMessages.poll()) != null;) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    /** Decode an HTTP message. */
+    private void handleMessage(ChannelHandlerContext ctx, Object msg) {
         try {
-            Log.info("Got message of type " + msg.getClass().getName());
+            if (Log.isLoggable(Level.FINE)) {
+                Log.fine("Got message of type " + msg.getClass().getName());
+            }
             if (msg instanceof HttpRequest) {
                 // Got a new HTTP request -- decode HTTP headers
                 HttpRequest httpReq = (HttpRequest) msg;
@@ -215,7 +356,19 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
                 freeResources();
 
                 // Parse the HttpRequest fields. 
-                request = new Request(ctx, httpReq);
+                request = config.recycleRequests ? Request.newRecycledInstance(ctx, httpReq) : new Request(ctx,
+                        httpReq);
+                LifecycleEvents.requestDecoded(ctx, request);
+
+                // Reject a request whose body is known to be too large before sending 100 Continue or reading the
+                // body. (The content of a FullHttpRequest has already been received, so is checked here too,
+                // before it is decoded.)
+                requestBodyBytes = msg instanceof FullHttpRequest ? ((FullHttpRequest) msg).content()
+                        .readableBytes() : 0L;
+                if (requestBodyBytes > config.maxRequestBodyBytes
+                        || HttpUtil.getContentLength(httpReq, -1L) > config.maxRequestBodyBytes) {
+                    throw new RequestEntityTooLargeException();
+                }
 
                 // Handle expect-100-continue
                 List<CharSequence> allExpectHeaders = httpReq.headers().getAll(EXPECT);
@@ -224,20 +377,42 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
                     if (h.equalsIgnoreCase("100-continue")) {
                         ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
                                 HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER));
-                        return;
+                        break;
                     }
                 }
 
                 if (httpReq.method() == HttpMethod.POST) {
-                    // Start decoding HttpContent chunks.
-                    freeResources();
-                    postRequestDecoder = new HttpPostRequestDecoder(httpDataFactory, httpReq);
+                    // Start decoding HttpContent chunks. (Resources of any previous request were freed above --
+                    // calling freeResources() here would also discard the Request object for this request.)
+                    postRequestDecoder = new HttpPostRequestDecoder(new DefaultHttpDataFactory(
+                            HTTP_DATA_MIN_DISK_SIZE), httpReq);
                 }
 
             }
-            if (msg instanceof LastHttpContent || msg instanceof FullHttpRequest) {
+            if (msg instanceof HttpContent) {
+                HttpContent chunk = (HttpContent) msg;
+                if (!chunk.decoderResult().isSuccess()) {
+                    throw new BadRequestException(null);
+                }
+                if (msg instanceof FullHttpRequest) {
+                    // The HttpPostRequestDecoder constructor already offered the content of a FullHttpRequest
+                    readPOSTData();
+                } else {
+                    if (request != null) {
+                        // Count the body as it arrives, since a chunked or compressed body has no useful
+                        // Content-Length. (HttpContentDecompressor is ahead of this handler, so decompressed bytes
+                        // are counted.)
+                        requestBodyBytes += chunk.content().readableBytes();
+                        if (requestBodyBytes > config.maxRequestBodyBytes) {
+                            throw new RequestEntityTooLargeException();
+                        }
+                    }
+                    // Decode HTTP POST body, including any content in the LastHttpContent chunk
+                    handlePOSTChunk(chunk);
+                }
+            }
+            if (msg instanceof LastHttpContent) {
                 // Reached end of HTTP request
-
                 if (request != null) {
                     // Check for WebSocket upgrade request
                     if (!tryWebSocketHandlers(ctx, request.getHttpRequest())) {
@@ -248,14 +423,6 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
                     freeResources();
                 }
 
-            } else if (msg instanceof HttpContent) {
-                // Decode HTTP POST body
-                HttpContent chunk = (HttpContent) msg;
-                if (!chunk.decoderResult().isSuccess()) {
-                    throw new BadRequestException(null);
-                }
-                handlePOSTChunk(chunk);
-
             } else if (msg instanceof WebSocketFrame) {
                 // Handle WebSocket frame
                 if (webSocketHandler == null) {
@@ -274,14 +441,21 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
 
     private void handlePOSTChunk(HttpContent chunk) throws BadRequestException, ResponseException {
         if (request == null || postRequestDecoder == null) {
-            // Should not happen for well-formed requests
+            // Not a POST request
             return;
         }
 
-        // Offer chunk to decoder (this decreases refcount of chunk, so it doesn't have to
-        // be separately released). Decoder is released after message has been handled.
+        // Offer chunk to decoder (the decoder copies the content, and the chunk is released after it has been
+        // handled). Decoder is released after message has been handled.
         postRequestDecoder.offer(chunk);
+        readPOSTData();
+    }
 
+    /** Read any POST attributes and file uploads that have been completely decoded into the Request. */
+    private void readPOSTData() throws ResponseException {
+        if (request == null || postRequestDecoder == null) {
+            return;
+        }
         try {
             while (postRequestDecoder.hasNext()) {
                 InterfaceHttpData data = postRequestDecoder.next();
@@ -292,15 +466,9 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
                             Attribute attribute = (Attribute) data;
                             Charset encoding = attribute.getCharset() == null ? UTF8 : attribute.getCharset();
                             try {
-                                if (attribute.isInMemory()) {
-                                    request.setPostParam(attribute.getName(), attribute.getString(encoding));
-                                } else {
-                                    // // TODO: Handle File-typed POST values without loading them straight into
-                                    // // memory (to avoid OOM attacks):
-                                    // request.setPostParam(attribute.getName(), attribute.getFile(encoding));
-                                    // // For now though, just read the file contents into a string.
-                                    request.setPostParam(attribute.getName(), attribute.getString(encoding));
-                                }
+                                // Large attributes are stored on disk while they are being received. Loading them
+                                // into memory is bounded by config.maxRequestBodyBytes.
+                                request.setPostParam(attribute.getName(), attribute.getString(encoding));
                             } catch (IOException e) {
                                 // Thrown if attribute value is too large for max size, but temp file can't be
                                 // created on disk
@@ -313,8 +481,8 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
 
                     } else if (httpDataType == HttpDataType.FileUpload) {
                         FileUpload fileUpload = (FileUpload) data;
-                        // TODO: impose size limit and returning 413 (Request Entity Too Large)
-                        // once the amount of data that has been sent hits the limit
+                        // The size of uploads is limited by config.maxRequestBodyBytes, which is checked as each
+                        // chunk of the request body is received
                         if (fileUpload.isCompleted()) {
                             // Save the FileUpload object (which wraps a DiskFileUpload in /tmp).
                             // Need to release this resource later.
@@ -334,74 +502,230 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
 
     /** Try upgrading the request to a WebSocket connection using one of the provided WebSocketHandlers. */
     private boolean tryWebSocketHandlers(ChannelHandlerContext ctx, HttpRequest httpReq) throws ResponseException {
+        if (config.webSocketRoutes == null || !WebSocketRoutes.isUpgradeRequest(httpReq.headers())) {
+            // Not a WebSocket upgrade request (the common case)
+            return false;
+        }
+        if (webSocketHandler != null) {
+            // Duplicate upgrade request, should not happen
+            throw new BadRequestException();
+        }
         String url = httpReq.uri();
-        if (webSocketHandler == null) {
-            if (webSocketHandlers != null) {
-                // Look for a WebSocket handler that can handle this URL
-                for (WebSocketHandler handler : webSocketHandlers) {
-                    if (handler.isWebSocketUpgradeURL(url)) {
-                        // Upgrade connection to WebSocket
-                        WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
-                                httpReq.uri(), null, true);
-                        webSocketHandshaker = wsFactory.newHandshaker(httpReq);
-                        if (webSocketHandshaker == null) {
-                            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
-                            return false;
-                        } else {
-                            // Attempt websocket handshake, and if it succeeds, upgrade connection to websocket
-                            webSocketHandshaker.handshake(ctx.channel(), httpReq);
-                        }
-                        webSocketHandler = handler;
-                        // TODO: do we need to send an empty OK response? ***********
-                        return true;
-                    }
-                }
+        WebSocketRoutes.Route webSocketRoute = config.webSocketRoutes.getRoute(request.getURL(), url);
+        if (webSocketRoute == null) {
+            // No WebSocket handler for this URL
+            return false;
+        }
+        WebSocketHandler handler = webSocketRoute.handler;
+        // Upgrade connection to WebSocket
+        webSocketHandshaker = webSocketRoute.handshakerFactory.newHandshaker(httpReq);
+        WebSocketCompression compression = null;
+        if (webSocketHandshaker == null) {
+            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+            return false;
+        } else {
+            // Attempt websocket handshake, and if it succeeds, upgrade connection to websocket. The handshaker
+            // must be given a FullHttpRequest, otherwise it waits for the request to be aggregated, but the
+            // request body has already been consumed.
+            FullHttpRequest fullHttpReq = new DefaultFullHttpRequest(httpReq.protocolVersion(), httpReq.method(),
+                    httpReq.uri(), Unpooled.EMPTY_BUFFER);
+            fullHttpReq.headers().set(httpReq.headers());
+            CharSequence extensionsHeader = httpReq.headers().get(SEC_WEBSOCKET_EXTENSIONS);
+            compression = WebSocketCompression.negotiate(handler.getCompressionSettings(), extensionsHeader);
+            HttpHeaders responseHeaders = null;
+            if (compression != null) {
+                responseHeaders = new DefaultHttpHeaders();
+                responseHeaders.set(SEC_WEBSOCKET_EXTENSIONS, compression.getResponseHeader());
+            }
+            webSocketHandshaker.handshake(ctx.channel(), fullHttpReq, responseHeaders, ctx.channel().newPromise());
+        }
+        webSocketHandler = handler;
+        // The connection no longer carries HTTP requests
+        LazyHttpHandlers.removeFrom(ctx.pipeline());
+        setWebSocketWaterMarks(ctx.channel().config());
+        if (compression != null) {
+            // Installed ahead of the SlowConsumerHandler, so that frames are only compressed once they are known
+            // to be sent (the compression context spans messages)
+            compression.install(ctx.pipeline(), ctx.name(), config.webSocketMaxMessageBytes);
+        }
+        SlowConsumerPolicy slowConsumerPolicy = handler.getSlowConsumerPolicy();
+        if (slowConsumerPolicy != null && slowConsumerPolicy != SlowConsumerPolicy.BUFFER) {
+            ctx.pipeline().addBefore(ctx.name(), SlowConsumerHandler.NAME_IN_PIPELINE,
+                    new SlowConsumerHandler(slowConsumerPolicy));
+        }
+        if (config.webSocketKeepAlive != null) {
+            keepAliveConnection = config.webSocketKeepAlive.register(ctx.channel());
+        }
+        Metrics.webSocketOpened();
+        LifecycleEvents.webSocketUpgrade(ctx, url, handler);
+        // TODO: do we need to send an empty OK response? ***********
+        return true;
+    }
+
+    /** Set the write buffer water marks of a channel that has been upgraded to a WebSocket, if configured. */
+    private void setWebSocketWaterMarks(ChannelConfig channelConfig) {
+        int low = config.webSocketLowWaterMark, high = config.webSocketHighWaterMark;
+        if (high > 0) {
+            // The new high water mark may not be below the current low water mark, and vice versa, so the order
+            // in which the two are set depends on whether the marks are being raised or lowered
+            if (high < channelConfig.getWriteBufferLowWaterMark()) {
+                channelConfig.setWriteBufferLowWaterMark(low);
+                channelConfig.setWriteBufferHighWaterMark(high);
             } else {
-                // No WebSocket handlers
-                return false;
+                channelConfig.setWriteBufferHighWaterMark(high);
+                channelConfig.setWriteBufferLowWaterMark(low);
             }
-        } else {
-            // Duplicate upgrade request, should not happen
-            throw new BadRequestException();
         }
-        return false;
+    }
+
+    private void stopKeepAlive() {
+        if (keepAliveConnection != null) {
+            config.webSocketKeepAlive.unregister(keepAliveConnection);
+            keepAliveConnection = null;
+        }
     }
 
     /** Handle a WebSocket frame using the same handler that was used to upgrade the connection. */
     private void handleWebSocketFrame(ChannelHandlerContext ctx, WebSocketFrame frame) throws BadRequestException,
             ResponseException {
+        LifecycleEvents.webSocketFrame(ctx, frame, frame.content().readableBytes());
+        if (keepAliveConnection != null) {
+            // Any frame from the peer shows that it is still alive
+            keepAliveConnection.touch();
+        }
         if (frame instanceof CloseWebSocketFrame) {
-            webSocketHandler.close();
-            webSocketHandler = null;
-            webSocketHandshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
-            webSocketHandshaker = null;
+            WebSocketServerHandshaker handshaker = webSocketHandshaker;
+            webSocketClosed();
+            handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
         } else if (frame instanceof PingWebSocketFrame) {
-            ctx.channel().write(new PongWebSocketFrame(frame.content().retain()));
-        } else if (frame instanceof TextWebSocketFrame) {
-            webSocketHandler.handleTextFrame(ctx, (TextWebSocketFrame) frame);
-        } else if (frame instanceof BinaryWebSocketFrame) {
-            webSocketHandler.handleBinaryFrame(ctx, (BinaryWebSocketFrame) frame);
+            // Don't queue pongs to a client that is not reading what has already been sent
+            if (ctx.channel().isWritable()) {
+                ctx.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+            }
+        } else if (frame instanceof PongWebSocketFrame) {
+            // Response to a keepalive ping -- nothing else to do
+        } else if (webSocketHandler.isStreamingFragments()) {
+            streamWebSocketFragment(ctx, frame);
+        } else if (messageAggregator == null && frame.isFinalFragment()
+                && !(frame instanceof ContinuationWebSocketFrame)) {
+            // Unfragmented message (the common case)
+            handleWebSocketMessage(ctx, frame);
+        } else {
+            aggregateWebSocketFragment(ctx, frame);
+        }
+    }
+
+    /** Reassemble a fragmented message, and handle it once the last fragment has been received. */
+    private void aggregateWebSocketFragment(ChannelHandlerContext ctx, WebSocketFrame frame)
+            throws ResponseException {
+        if (messageAggregator == null) {
+            messageAggregator = new WebSocketMessageAggregator(config.webSocketMaxMessageBytes);
+        }
+        WebSocketFrame message;
+        try {
+            message = messageAggregator.add(ctx, frame);
+        } catch (CorruptedFrameException e) {
+            closeWebSocket(ctx, WEBSOCKET_CLOSE_PROTOCOL_ERROR, e.getMessage());
+            return;
+        } catch (TooLongFrameException e) {
+            closeWebSocket(ctx, WEBSOCKET_CLOSE_MESSAGE_TOO_BIG, e.getMessage());
+            return;
+        }
+        if (message != null) {
+            try {
+                handleWebSocketMessage(ctx, message);
+            } finally {
+                if (message != frame) {
+                    message.release();
+                }
+            }
+        }
+    }
+
+    /** Pass a fragment to a handler that streams fragments. */
+    private void streamWebSocketFragment(ChannelHandlerContext ctx, WebSocketFrame frame) throws ResponseException {
+        boolean isContinuation = frame instanceof ContinuationWebSocketFrame;
+        if (isContinuation != streamingFragmentedMessage) {
+            closeWebSocket(ctx, WEBSOCKET_CLOSE_PROTOCOL_ERROR, isContinuation ? "Unexpected continuation frame"
+                    : "New message started before fragmented message was complete");
+        } else if (!isContinuation && frame.isFinalFragment()) {
+            handleWebSocketMessage(ctx, frame);
+        } else {
+            if (!isContinuation) {
+                streamingBinaryMessage = frame instanceof BinaryWebSocketFrame;
+            }
+            streamingFragmentedMessage = !frame.isFinalFragment();
+            webSocketHandler.handleFragment(ctx, frame, streamingBinaryMessage);
+        }
+    }
+
+    /** Pass a whole text or binary message to the WebSocket handler. */
+    private void handleWebSocketMessage(ChannelHandlerContext ctx, WebSocketFrame message) throws ResponseException {
+        if (message instanceof TextWebSocketFrame) {
+            webSocketHandler.handleTextFrame(ctx, (TextWebSocketFrame) message);
+        } else if (message instanceof BinaryWebSocketFrame) {
+            webSocketHandler.handleBinaryFrame(ctx, (BinaryWebSocketFrame) message);
         } else {
             throw new BadRequestException();
         }
     }
 
+    /** Send a close frame with the given status, e.g. after a protocol error, then close the connection. */
+    private void closeWebSocket(ChannelHandlerContext ctx, int statusCode, String reasonText) {
+        WebSocketServerHandshaker handshaker = webSocketHandshaker;
+        webSocketClosed();
+        handshaker.close(ctx.channel(), new CloseWebSocketFrame(statusCode, reasonText));
+    }
+
+    /** Release the WebSocket state of this connection once the WebSocket has been closed. */
+    private void webSocketClosed() {
+        stopKeepAlive();
+        if (messageAggregator != null) {
+            messageAggregator.release();
+            messageAggregator = null;
+        }
+        streamingFragmentedMessage = false;
+        webSocketHandler.close();
+        webSocketHandler = null;
+        webSocketHandshaker = null;
+        Metrics.webSocketClosed();
+    }
+
     // -------------------------------------------------------------------------------------------------------------
 
     /** Try handling the HTTP request using one of the provided HttpRequestHandlers. */
     private void tryHttpRequestHandlers(ChannelHandlerContext ctx) throws ResponseException {
-        if (httpRequestHandlers != null) {
-            for (HttpRequestHandler handler : httpRequestHandlers) {
-                // Try generating a response with this HttpRequestHandler. (Auto-calls close() after response sent.)
-                try (Response response = handler.handle(request)) {
-                    if (response != null) {
-                        // If a response was generated, send it, and don't check any remaining handlers
-                        response.send(ctx);
-                        return;
+        if (config.httpRequestHandlers != null) {
+            for (HttpRequestHandler handler : config.httpRequestHandlers) {
+                // Try generating a response with this HttpRequestHandler. (send() calls close() once the response
+                // has been written.)
+                route = handler.getClass().getName();
+                Response response = null;
+                EventLoopWatchdog.handlerStarted(route, (String) request.getRawURL());
+                Object handlerEvent = LifecycleEvents.handlerStarted();
+                try {
+                    response = handler.handle(request);
+                } finally {
+                    EventLoopWatchdog.handlerFinished();
+                    LifecycleEvents.handlerFinished(handlerEvent, ctx, request, route,
+                            response == null ? 0 : response.getStatus().code());
+                }
+                if (response != null) {
+                    // If a response was generated, send it, and don't check any remaining handlers
+                    ChannelFuture lastWriteFuture = response.send(ctx);
+                    if (Metrics.isEnabled()) {
+                        Metrics.recordOnCompletion(lastWriteFuture, route, response.getStatus().code(),
+                                request.getReqReceivedTimeNanos());
                     }
+                    if (config.accessLog != null) {
+                        config.accessLog.log(request, response);
+                    }
+                    waitForResponse(ctx, lastWriteFuture);
+                    return;
                 }
             }
         }
+        route = Metrics.UNMATCHED_ROUTE;
         // There is no handler registered for this HTTP request -- respond with 404
         throw new NotFoundException();
     }
@@ -419,6 +743,10 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
                 // Malformed SSL
                 ctx.channel().flush();
                 ctx.channel().close();
+            } else if (webSocketHandler != null && e instanceof DecoderException) {
+                // Malformed or oversized WebSocket frame or message, e.g. from the permessage-deflate decoder
+                closeWebSocket(ctx, e instanceof TooLongFrameException ? WEBSOCKET_CLOSE_MESSAGE_TOO_BIG
+                        : WEBSOCKET_CLOSE_PROTOCOL_ERROR, e.getMessage());
             } else if ("Connection reset by peer".equals(e.getMessage())) {
                 // TODO: should connection be closed in this case? Does a response need to be sent?
                 // Log.info(cause.getMessage());
@@ -433,14 +761,26 @@ public class HttpRequestDecoder extends SimpleChannelInboundHandler<Object> {
                     if (exception instanceof InternalServerErrorException) {
                         // Log backtrace for Internal Server Errors
                         Log.request(request, response, exception);
-                    } else {
+                    } else if (config.accessLog == null) {
                         Log.request(request, response);
                     }
 
                     // Send response
                     if (request != null && ctx.channel().isOpen()) {
                         try {
-                            response.send(ctx);
+                            ChannelFuture lastWriteFuture = response.send(ctx);
+                            if (exception instanceof RequestEntityTooLargeException) {
+                                // The rest of the request body is not read, so the connection can't be reused
+                                ctx.channel().config().setAutoRead(false);
+                                lastWriteFuture.addListener(ChannelFutureListener.CLOSE);
+                            }
+                            if (Metrics.isEnabled()) {
+                                Metrics.recordOnCompletion(lastWriteFuture, route == null ? Metrics.UNMATCHED_ROUTE
+                                        : route, response.getStatus().code(), request.getReqReceivedTimeNanos());
+                            }
+                            if (config.accessLog != null) {
+                                config.accessLog.log(request, response);
+                            }
                             return;
 
                         } catch (Exception e2) {
@@ -0,0 +1,96 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.request.decoder;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaderValues.IDENTITY;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Installs HttpContentDecompressor and ChunkedWriteHandler into the pipeline the first time a connection needs
+ * them, rather than allocating them for every connection up front, since most connections never send a
+ * compressed request body or receive a chunked response. Stateless, so a single instance is shared by all
+ * connections. Should be added directly after HttpServerCodec.
+ * 
+ * The decompressor sits ahead of HttpRequestDecoder, which counts the decompressed bytes of each request body
+ * against the maximum request body size, so a small compressed body cannot expand without bound.
+ */
+@Sharable
+public class LazyHttpHandlers extends ChannelHandlerAdapter {
+    public static final LazyHttpHandlers INSTANCE = new LazyHttpHandlers();
+
+    public static final String NAME_IN_PIPELINE = LazyHttpHandlers.class.getSimpleName();
+
+    private static final String DECOMPRESSOR_NAME = HttpContentDecompressor.class.getSimpleName();
+    private static final String CHUNKED_WRITER_NAME = ChunkedWriteHandler.class.getSimpleName();
+
+    private LazyHttpHandlers() {
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            CharSequence contentEncoding = ((HttpRequest) msg).headers().get(CONTENT_ENCODING);
+            if (contentEncoding != null && !IDENTITY.contentEqualsIgnoreCase(contentEncoding)
+                    && ctx.pipeline().get(DECOMPRESSOR_NAME) == null) {
+                // Add the decompressor after this handler, so that it sees this request
+                ctx.pipeline().addAfter(ctx.name(), DECOMPRESSOR_NAME, new HttpContentDecompressor());
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ChunkedInput && ctx.pipeline().get(CHUNKED_WRITER_NAME) == null) {
+            // Add the chunked writer before this handler, so that it sees this write
+            ctx.pipeline().addBefore(ctx.name(), CHUNKED_WRITER_NAME, new ChunkedWriteHandler());
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * Remove this handler and any HttpContentDecompressor it installed, once the connection no longer carries HTTP
+     * requests (i.e. after a WebSocket upgrade). Any ChunkedWriteHandler is left in place, since it may still hold
+     * queued writes.
+     */
+    public static void removeFrom(ChannelPipeline pipeline) {
+        if (pipeline.get(NAME_IN_PIPELINE) != null) {
+            pipeline.remove(NAME_IN_PIPELINE);
+        }
+        if (pipeline.get(DECOMPRESSOR_NAME) != null) {
+            pipeline.remove(DECOMPRESSOR_NAME);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.request.decoder;
+
+import gribbit.http.logging.AsyncAccessLog;
+import gribbit.http.request.handler.HttpErrorHandler;
+import gribbit.http.request.handler.HttpRequestHandler;
+import gribbit.http.response.exception.ResponseException;
+import gribbit.http.websocket.WebSocketKeepAlive;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Server-wide settings for HttpRequestDecoder. One instance is shared by the decoders of all connections, so that
+ * each decoder holds a single reference to the settings, rather than a copy of each of them.
+ */
+public class RequestDecoderConfig {
+    ArrayList<HttpRequestHandler> httpRequestHandlers;
+
+    /** The WebSocket handlers, indexed by path, or null if there are none. */
+    WebSocketRoutes webSocketRoutes;
+
+    HashMap<Class<? extends ResponseException>, HttpErrorHandler<? extends ResponseException>> errorHandlers;
+
+    /** If true, Request objects are recycled using a per-event-loop pool, rather than allocated per request. */
+    boolean recycleRequests;
+
+    /** The access log, or null if access logging is disabled. */
+    AsyncAccessLog accessLog;
+
+    /** Write buffer water marks to set on channels upgraded to WebSockets, or 0 to leave the channel defaults. */
+    int webSocketLowWaterMark, webSocketHighWaterMark;
+
+    /** The server-wide WebSocket keepalive, or null if keepalive is disabled. */
+    WebSocketKeepAlive webSocketKeepAlive;
+
+    /** The maximum length of a WebSocket frame, and of a reassembled fragmented WebSocket message. */
+    int webSocketMaxMessageBytes = 65536;
+
+    /**
+     * The maximum size of a request body, after any Content-Encoding has been decoded. Larger requests are
+     * rejected with 413 (Request Entity Too Large), and the connection is closed.
+     */
+    long maxRequestBodyBytes = 65536;
+
+    public RequestDecoderConfig() {
+    }
+
+    public RequestDecoderConfig(ArrayList<HttpRequestHandler> httpRequestHandlers,
+            WebSocketRoutes webSocketRoutes, HashMap<Class<? extends ResponseException>, //
+            HttpErrorHandler<? extends ResponseException>> errorHandlers, boolean recycleRequests,
+            AsyncAccessLog accessLog, int webSocketLowWaterMark, int webSocketHighWaterMark,
+            WebSocketKeepAlive webSocketKeepAlive, int webSocketMaxMessageBytes, long maxRequestBodyBytes) {
+        this.httpRequestHandlers = httpRequestHandlers;
+        this.webSocketRoutes = webSocketRoutes;
+        this.errorHandlers = errorHandlers;
+        this.recycleRequests = recycleRequests;
+        this.accessLog = accessLog;
+        this.webSocketLowWaterMark = webSocketLowWaterMark;
+        this.webSocketHighWaterMark = webSocketHighWaterMark;
+        this.webSocketKeepAlive = webSocketKeepAlive;
+        this.webSocketMaxMessageBytes = webSocketMaxMessageBytes;
+        this.maxRequestBodyBytes = maxRequestBodyBytes;
+    }
+}
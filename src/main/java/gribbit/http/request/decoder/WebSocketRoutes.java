@@ -0,0 +1,149 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.request.decoder;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaderNames.UPGRADE;
+import gribbit.http.request.handler.WebSocketHandler;
+import gribbit.http.response.exception.ResponseException;
+import gribbit.http.route.RequestURL;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The WebSocket handlers of a server, indexed by URL path. Only requests with "Upgrade: websocket" and "Connection:
+ * Upgrade" headers are looked up, so ordinary HTTP requests are not checked against the WebSocket handlers at all.
+ * 
+ * A handler added for a path handles upgrade requests for exactly that path, whatever the query string, after both
+ * the path and the request URL have been normalized in the same way (so a handler added for "/ws/" handles requests
+ * for "/ws"), and its WebSocketServerHandshakerFactory is created once, when it is added. Handlers added without a
+ * path are checked after the path index, in order, by calling their isWebSocketUpgradeURL() method with the raw
+ * request URI.
+ */
+public class WebSocketRoutes {
+    private final int maxFramePayloadLength;
+    private final HashMap<String, Route> pathToRoute = new HashMap<>();
+    private final ArrayList<WebSocketHandler> urlMatchingHandlers = new ArrayList<>();
+
+    /** A WebSocket handler, and the handshaker factory for its upgrade requests. */
+    static class Route {
+        final WebSocketHandler handler;
+        final WebSocketServerHandshakerFactory handshakerFactory;
+
+        Route(WebSocketHandler handler, WebSocketServerHandshakerFactory handshakerFactory) {
+            this.handler = handler;
+            this.handshakerFactory = handshakerFactory;
+        }
+    }
+
+    /**
+     * @param maxFramePayloadLength
+     *            The maximum WebSocket frame length accepted by the handshakers.
+     */
+    public WebSocketRoutes(int maxFramePayloadLength) {
+        this.maxFramePayloadLength = maxFramePayloadLength;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Normalize a route path in the same way as request URLs are normalized before they are looked up, e.g.
+     * "/a//b/" becomes "/a/b".
+     * 
+     * @throws IllegalArgumentException
+     *             if the path does not start with '/', or has a query string.
+     */
+    public static String normalizePath(String path) {
+        if (path.indexOf('?') >= 0) {
+            throw new IllegalArgumentException("WebSocket route path must not have a query string: " + path);
+        }
+        try {
+            return new RequestURL(path).getNormalizedPath();
+        } catch (ResponseException e) {
+            throw new IllegalArgumentException("Invalid WebSocket route path: " + path);
+        }
+    }
+
+    /** Add a handler for WebSocket upgrade requests for a URL path, e.g. "/ws". The path is normalized. */
+    public void addRoute(String path, WebSocketHandler handler) {
+        path = normalizePath(path);
+        if (pathToRoute.containsKey(path)) {
+            throw new IllegalArgumentException("A WebSocket handler has already been added for path " + path);
+        }
+        pathToRoute.put(path, new Route(handler, newHandshakerFactory(path)));
+    }
+
+    /** Add a handler that is asked whether it handles each upgrade request URL that has no handler for its path. */
+    public void addHandler(WebSocketHandler handler) {
+        urlMatchingHandlers.add(handler);
+    }
+
+    private WebSocketServerHandshakerFactory newHandshakerFactory(String uri) {
+        return new WebSocketServerHandshakerFactory(uri, null, /* allowExtensions = */true, maxFramePayloadLength);
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Returns true if the headers contain "Upgrade: websocket", and "Upgrade" as one of the Connection tokens. */
+    static boolean isUpgradeRequest(HttpHeaders headers) {
+        CharSequence upgrade = headers.get(UPGRADE);
+        if (upgrade == null || !"websocket".equalsIgnoreCase(upgrade.toString().trim())) {
+            return false;
+        }
+        List<? extends CharSequence> connectionHeaders = headers.getAll(CONNECTION);
+        for (int i = 0; i < connectionHeaders.size(); i++) {
+            for (String token : connectionHeaders.get(i).toString().split(",")) {
+                if (token.trim().equalsIgnoreCase("upgrade")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the route for a WebSocket upgrade request, given the normalized URL path and the raw URI of the request.
+     * 
+     * @return The route, or null if no handler handles the request.
+     */
+    Route getRoute(String path, String rawURI) {
+        Route route = pathToRoute.get(path);
+        if (route == null) {
+            for (int i = 0; i < urlMatchingHandlers.size(); i++) {
+                WebSocketHandler handler = urlMatchingHandlers.get(i);
+                if (handler.isWebSocketUpgradeURL(rawURI)) {
+                    route = new Route(handler, newHandshakerFactory(rawURI));
+                    break;
+                }
+            }
+        }
+        return route;
+    }
+}
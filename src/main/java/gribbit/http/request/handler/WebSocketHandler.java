@@ -25,21 +25,81 @@
  */
 package gribbit.http.request.handler;
 
+import gribbit.http.response.exception.BadRequestException;
 import gribbit.http.response.exception.ResponseException;
+import gribbit.http.websocket.SlowConsumerPolicy;
+import gribbit.http.websocket.WebSocketCompressionSettings;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 
 public interface WebSocketHandler {
-    /** Handle a text websocket frame. If you want to send a response, call ctx.WriteAndFlush(responseWebSocketFrame). */
+    /**
+     * Handle a text websocket frame. If you want to send a response, call ctx.WriteAndFlush(responseWebSocketFrame).
+     * UTF8.utf8ToString(frame.content()) decodes the text in place, even from a direct buffer, and throws
+     * UTF8Exception if the text is not valid UTF-8 (which frame.text() would silently replace with U+FFFD).
+     */
     public void handleTextFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame) throws ResponseException;
 
     /** Handle a text websocket frame. If you want to send a response, call ctx.WriteAndFlush(responseWebSocketFrame). */
     public void handleBinaryFrame(ChannelHandlerContext ctx, BinaryWebSocketFrame frame) throws ResponseException;
     
-    /** Return true if the passed URL matches a websocket path. */
-    public boolean isWebSocketUpgradeURL(String url);
+    /**
+     * Return true to receive the fragments of fragmented messages through handleFragment() as they arrive, e.g. to
+     * stream very large messages, rather than receiving each message whole through handleTextFrame() or
+     * handleBinaryFrame(). (Whole messages are reassembled without copying, up to the server's maximum WebSocket
+     * message size.) Unfragmented messages are always passed whole.
+     */
+    public default boolean isStreamingFragments() {
+        return false;
+    }
+
+    /**
+     * Handle one fragment of a fragmented message, if isStreamingFragments() returns true. The first fragment is a
+     * TextWebSocketFrame or BinaryWebSocketFrame, the rest are ContinuationWebSocketFrames, and the last one has
+     * isFinalFragment() set. binary is true if the message is binary. The frame is released once this returns.
+     * The fragments of a text message can be decoded as they arrive by passing the content of each one to
+     * UTF8.append(ByteBuf), since a multi-byte sequence may be split between fragments.
+     */
+    public default void handleFragment(ChannelHandlerContext ctx, WebSocketFrame fragment, boolean binary)
+            throws ResponseException {
+        throw new BadRequestException();
+    }
+
+    /**
+     * Return true if the passed URL (the raw request URI, including any query string) matches a websocket path.
+     * Only called for handlers that were added without a path, and only for WebSocket upgrade requests.
+     */
+    public default boolean isWebSocketUpgradeURL(String url) {
+        return false;
+    }
     
     /** Called when the websocket is closed */
     public void close();
+
+    /**
+     * What to do with data frames written while the client is not reading fast enough to keep the outbound buffer
+     * below the high water mark. The default, BUFFER, queues them regardless.
+     */
+    public default SlowConsumerPolicy getSlowConsumerPolicy() {
+        return SlowConsumerPolicy.BUFFER;
+    }
+
+    /**
+     * Called when the outbound buffer of the websocket rises above the high water mark (writable == false) or falls
+     * back below the low water mark (writable == true). Handlers that produce messages on their own schedule can use
+     * this to pause and resume production.
+     */
+    public default void writabilityChanged(ChannelHandlerContext ctx, boolean writable) {
+    }
+
+    /**
+     * The permessage-deflate settings to negotiate with clients that offer compression, or null (the default) to
+     * disable compression for this handler. Compression is opt-in because it costs CPU for every message, and
+     * with context takeover, native memory for each connection (see WebSocketCompressionSettings).
+     */
+    public default WebSocketCompressionSettings getCompressionSettings() {
+        return null;
+    }
 }
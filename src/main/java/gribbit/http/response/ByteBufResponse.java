@@ -27,6 +27,7 @@ package gribbit.http.response;
 
 import gribbit.http.request.Request;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.LastHttpContent;
@@ -47,15 +48,18 @@ public class ByteBufResponse extends Response {
     }
 
     @Override
-    public void writeResponse(ChannelHandlerContext ctx) {
+    public ChannelFuture writeResponse(ChannelHandlerContext ctx) {
         contentLength = content.readableBytes();
         
         try {
             sendHeaders(ctx);
             if (!request.isHEADRequest()) {
                 ctx.write(content);
+            } else {
+                // Content is not sent for HEAD requests
+                content.release();
             }
-            ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
 
         } catch (Exception e) {
             if (content.refCnt() > 0) {
@@ -0,0 +1,62 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A source of response content that pushes buffers to a StreamingResponse as they become available, at the rate the
+ * response asks for them. The interfaces follow java.util.concurrent.Flow (and Reactive Streams), which is not
+ * available on Java 8, so a Flow.Publisher&lt;ByteBuf&gt; can be adapted by forwarding each method.
+ * 
+ * The subscriber's methods may be called from any thread, but not concurrently. onNext() is only called as many
+ * times as the subscriber has requested, and ownership of each buffer passes to the subscriber.
+ */
+public interface ContentPublisher {
+    /** Start pushing content to the subscriber, beginning with a call to subscriber.onSubscribe(). */
+    public void subscribe(Subscriber subscriber);
+
+    /** Receives the content. Implemented by StreamingResponse. */
+    public interface Subscriber {
+        public void onSubscribe(Subscription subscription);
+
+        /** The next buffer of content. The subscriber releases it. */
+        public void onNext(ByteBuf content);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    /** Controls the flow of content from the publisher to the subscriber. */
+    public interface Subscription {
+        /** Allow n more calls to onNext(). */
+        public void request(long n);
+
+        /** Stop pushing content, and release any resources held by the publisher. */
+        public void cancel();
+    }
+}
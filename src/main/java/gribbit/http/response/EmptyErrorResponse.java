@@ -26,6 +26,7 @@
 package gribbit.http.response;
 
 import gribbit.http.request.Request;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.LastHttpContent;
@@ -36,10 +37,10 @@ public class EmptyErrorResponse extends Response {
     }
     
     @Override
-    public void writeResponse(ChannelHandlerContext ctx) {
+    public ChannelFuture writeResponse(ChannelHandlerContext ctx) {
         contentLength = 0;
         sendHeaders(ctx);
-        ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
     }
 
     @Override
@@ -0,0 +1,78 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+import gribbit.http.request.Request;
+import gribbit.http.sse.EventStreamHub;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * Server-Sent Events (text/event-stream) response. The headers are sent, and the stream is subscribed to the given
+ * topics of an EventStreamHub, which then pushes events to the client until the client disconnects. If the
+ * request has a Last-Event-ID header (sent by EventSource when it reconnects), the events the client missed are
+ * sent first, as far as the hub retains them.
+ * 
+ * The stream is written as HTTP/1.1 chunks. (HTTP/2 requests are served by converting them to HTTP/1.1 messages,
+ * and the conversion does not support interleaving the chunks of a long-lived stream with other responses on the
+ * same connection.) Any further requests the client pipelines on the same connection are never handled, since
+ * the stream only ends when the connection is closed.
+ */
+public class EventStreamResponse extends Response {
+    private final EventStreamHub hub;
+    private final String[] topicNames;
+
+    public EventStreamResponse(Request request, EventStreamHub hub, String... topicNames) {
+        super(request, HttpResponseStatus.OK, "text/event-stream;charset=utf-8");
+        this.hub = hub;
+        this.topicNames = topicNames;
+    }
+
+    /**
+     * Send the headers and subscribe the stream. Returns the close future of the channel, since the response is
+     * only complete once the client disconnects.
+     */
+    @Override
+    public ChannelFuture writeResponse(ChannelHandlerContext ctx) {
+        isChunked = true;
+        // Ask proxies (e.g. nginx) not to buffer the stream
+        addHeader("X-Accel-Buffering", "no");
+        sendHeaders(ctx);
+        if (request.isHEADRequest()) {
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        ctx.flush();
+        // The stream is subscribed later, from the event loop, so the header is read now
+        hub.subscribe(ctx.channel(), topicNames, request.getLastEventId());
+        return ctx.channel().closeFuture();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -31,6 +31,8 @@ import gribbit.http.response.exception.NotFoundException;
 import gribbit.http.response.exception.NotModifiedException;
 import gribbit.http.response.exception.ResponseException;
 import gribbit.http.utils.ContentTypeUtils;
+import gribbit.http.utils.ResourceCleaner;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.DefaultFileRegion;
 import io.netty.handler.codec.http.HttpChunkedInput;
@@ -40,28 +42,23 @@ import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedFile;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
 public class FileResponse extends Response implements AutoCloseable {
     private RandomAccessFile raf;
 
+    /** Closes the file if this response is never sent or closed. */
+    private ResourceCleaner.Cleanable rafCleaner;
+
     public FileResponse(Request request, String path) throws ResponseException {
         super(request, HttpResponseStatus.OK);
 
         File f = new File(path);
-        try {
-            raf = new RandomAccessFile(path, "r");
-        } catch (FileNotFoundException e) {
-            throw new NotFoundException();
-        }
         if (!f.isFile() || f.isHidden()) {
             throw new NotFoundException();
         }
 
-        contentLength = f.length();
-
         // Check last-modified timestamp against the If-Modified-Since header timestamp in the request
         // (resolution is 1 sec)
         lastModifiedEpochSeconds = f.lastModified() / 1000;
@@ -70,6 +67,17 @@ public class FileResponse extends Response implements AutoCloseable {
             throw new NotModifiedException();
         }
 
+        // Only open the file once the checks above have passed, so that the file is not left open if an
+        // exception is thrown
+        try {
+            raf = new RandomAccessFile(f, "r");
+            contentLength = raf.length();
+        } catch (IOException e) {
+            close();
+            throw new NotFoundException();
+        }
+        rafCleaner = ResourceCleaner.register(this, raf);
+
         int dotIdx = path.lastIndexOf('.'), slashIdx = path.lastIndexOf(File.separatorChar);
         if (dotIdx > 0 && slashIdx < dotIdx) {
             String leaf = path.substring(slashIdx + 1).toLowerCase();
@@ -92,7 +100,7 @@ public class FileResponse extends Response implements AutoCloseable {
     }
 
     @Override
-    public void writeResponse(ChannelHandlerContext ctx) throws Exception {
+    public ChannelFuture writeResponse(ChannelHandlerContext ctx) throws Exception {
         // FileRegions cannot be used with SSL, have to use chunked content.
         // TODO: Does this work with HTTP2?
         isChunked |= ctx.pipeline().get(SslHandler.class) != null;
@@ -107,24 +115,31 @@ public class FileResponse extends Response implements AutoCloseable {
                 // Use FileRegions if possible, which supports zero-copy / mmio.
                 ctx.write(new DefaultFileRegion(raf.getChannel(), 0, contentLength));
                 // Write the end marker
-                ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
             } else {
                 // Can't use FileRegions / zero-copy with SSL
                 // HttpChunkedInput will write the end marker (LastHttpContent) for us, see:
                 // https://github.com/netty/netty/commit/4ba2ce3cbbc55391520cfc98a7d4227630fbf978
-                ctx.writeAndFlush(new HttpChunkedInput(new ChunkedFile(raf, 0, contentLength, 8192)));
+                return ctx.writeAndFlush(new HttpChunkedInput(new ChunkedFile(raf, 0, contentLength, 8192)));
             }
+        } else {
+            // Write the end marker
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
         }
     }
 
     @Override
     public void close() {
-        if (raf != null) {
+        if (rafCleaner != null) {
+            // Closes raf
+            rafCleaner.clean();
+            rafCleaner = null;
+        } else if (raf != null) {
             try {
                 raf.close();
-                raf = null;
             } catch (IOException e) {
             }
         }
+        raf = null;
     }
 }
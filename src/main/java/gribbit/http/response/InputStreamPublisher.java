@@ -0,0 +1,186 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the content of a (possibly slow) InputStream, reading it on an offload executor rather than on an
+ * event loop, so that a blocking read only ties up an offload thread. Reads only happen while the subscriber has
+ * outstanding demand, and the stream is closed once it has been read to the end, or the subscription is cancelled.
+ * 
+ * The chunk size adapts to the stream: it doubles (up to 64kB) while reads fill the whole buffer, and halves (down
+ * to 1kB) when reads return less than half a buffer, so that fast streams are sent in large chunks, and slow
+ * streams do not hold large, mostly-empty buffers.
+ */
+public class InputStreamPublisher implements ContentPublisher, Closeable {
+    private final InputStream inputStream;
+    private final Executor executor;
+
+    private ContentPublisher.Subscriber subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private volatile boolean cancelled;
+
+    /** Only accessed from the drain task, which never runs concurrently with itself. */
+    private boolean finished;
+    private int chunkSize = INITIAL_CHUNK_SIZE;
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final int INITIAL_CHUNK_SIZE = 8192;
+    private static final int MAX_CHUNK_SIZE = 65536;
+
+    /** The default offload executor, which starts threads as needed, and stops them after a minute idle. */
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadNum = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, InputStreamPublisher.class.getSimpleName() + "-"
+                    + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public InputStreamPublisher(InputStream inputStream, Executor executor) {
+        this.inputStream = inputStream;
+        this.executor = executor;
+    }
+
+    /** Read the stream on the default offload executor. */
+    public InputStreamPublisher(InputStream inputStream) {
+        this(inputStream, DEFAULT_EXECUTOR);
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void subscribe(final ContentPublisher.Subscriber subscriber) {
+        if (this.subscriber != null) {
+            throw new IllegalStateException("An InputStream can only be published once");
+        }
+        this.subscriber = subscriber;
+        subscriber.onSubscribe(new ContentPublisher.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n > 0L) {
+                    // Add to the demand, capping at Long.MAX_VALUE
+                    long current, updated;
+                    do {
+                        current = demand.get();
+                        updated = current + n < 0L ? Long.MAX_VALUE : current + n;
+                    } while (!demand.compareAndSet(current, updated));
+                    drain();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                close();
+            }
+        });
+    }
+
+    /** Stop reading, and close the stream (on the offload executor, once any read in progress has returned). */
+    @Override
+    public void close() {
+        cancelled = true;
+        drain();
+    }
+
+    /** Schedule the drain task, unless it is already scheduled, in which case it runs again when it finishes. */
+    private void drain() {
+        if (pendingDrains.getAndIncrement() == 0) {
+            executor.execute(drainTask);
+        }
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            int drains = 1;
+            do {
+                readWhileRequested();
+                drains = pendingDrains.addAndGet(-drains);
+            } while (drains != 0);
+        }
+    };
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    private void readWhileRequested() {
+        while (!finished && !cancelled && demand.get() > 0L) {
+            ByteBuf chunk = PooledByteBufAllocator.DEFAULT.heapBuffer(chunkSize);
+            int bytesRead;
+            try {
+                bytesRead = chunk.writeBytes(inputStream, chunkSize);
+            } catch (IOException e) {
+                chunk.release();
+                finish();
+                subscriber.onError(e);
+                return;
+            }
+            if (bytesRead < 0) {
+                chunk.release();
+                finish();
+                subscriber.onComplete();
+                return;
+            }
+            if (bytesRead == chunkSize) {
+                chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+            } else if (bytesRead < chunkSize / 2) {
+                chunkSize = Math.max(chunkSize / 2, MIN_CHUNK_SIZE);
+            }
+            demand.decrementAndGet();
+            subscriber.onNext(chunk);
+        }
+        if (cancelled) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
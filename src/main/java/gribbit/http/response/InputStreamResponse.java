@@ -26,50 +26,41 @@
 package gribbit.http.response;
 
 import gribbit.http.request.Request;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.LastHttpContent;
-import io.netty.handler.stream.ChunkedStream;
 
-import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Executor;
 
 /**
- * Chunked (streamed) response.
+ * Chunked (streamed) response. The stream is read on an offload executor (see InputStreamPublisher), so a slow
+ * stream does not block the event loop.
  */
-public class InputStreamResponse extends Response {
-    protected InputStream contentStream;
+public class InputStreamResponse extends StreamingResponse {
+    private final InputStreamPublisher publisher;
+
+    public InputStreamResponse(Request request, HttpResponseStatus status, InputStream content,
+            String contentType, Executor offloadExecutor) {
+        this(request, status, new InputStreamPublisher(content, offloadExecutor), contentType);
+    }
 
     public InputStreamResponse(Request request, HttpResponseStatus status, InputStream content,
             String contentType) {
-        super(request, status, contentType);
-        this.contentStream = content;
+        this(request, status, new InputStreamPublisher(content), contentType);
     }
 
     public InputStreamResponse(Request request, InputStream content, String contentType) {
         this(request, HttpResponseStatus.OK, content, contentType);
     }
-    
-    @Override
-    public void writeResponse(ChannelHandlerContext ctx) {
-        isChunked = true;
-        sendHeaders(ctx);
 
-        if (!request.isHEADRequest()) {
-            ctx.write(new HttpChunkedInput(new ChunkedStream(contentStream, 8192)));
-        }
-        ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    private InputStreamResponse(Request request, HttpResponseStatus status, InputStreamPublisher publisher,
+            String contentType) {
+        super(request, status, publisher, contentType);
+        this.publisher = publisher;
     }
 
+    /** Close the stream, if it was not sent, or not read to the end. */
     @Override
     public void close() {
-        if (contentStream != null) {
-            try {
-                contentStream.close();
-            } catch (IOException e) {
-            }
-            contentStream = null;
-        }
+        publisher.close();
     }
 }
@@ -0,0 +1,49 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+/**
+ * A JSON field name, encoded once (quoted, escaped, UTF-8, and followed by a colon), so that writing it with
+ * JsonWriter.name() is a single copy. Typically held in a static final field:
+ * 
+ * <pre>
+ * static final JsonName ID = new JsonName(&quot;id&quot;);
+ * </pre>
+ */
+public final class JsonName {
+    final byte[] encoded;
+    private final String name;
+
+    public JsonName(String name) {
+        this.name = name;
+        this.encoded = JsonWriter.encodeName(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+import gribbit.http.request.Request;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * JSON response, encoded by a JsonWriter directly into direct ByteBufs, without building an intermediate String.
+ * 
+ * A document can be written ahead of time into a JsonWriter, in which case it is sent with a Content-Length
+ * header. Alternatively, a JsonContent can be given, which writes the document at send time into buffers
+ * allocated from the channel's allocator: small documents are still sent with a Content-Length header, but once a
+ * document grows beyond CHUNK_SIZE bytes, the response switches to chunked transfer encoding, and each full buffer
+ * is flushed as a chunk while the rest of the document is written. This starts sending a large document sooner,
+ * and avoids copying it into one contiguous buffer, but does not reduce memory use for a slow client: the document
+ * is written in one go on the event loop, without waiting for the channel to become writable, so any chunks the
+ * socket does not accept straight away are queued in the channel's outbound buffer until they have been sent. (For
+ * documents that are too large to hold in memory, use a StreamingResponse with a ContentPublisher that produces
+ * the document a chunk at a time, as the client reads it.)
+ */
+public class JsonResponse extends Response {
+    private JsonWriter writer;
+    private final JsonContent jsonContent;
+
+    /** The size at which a document written at send time is sent as chunked. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String CONTENT_TYPE = "application/json;charset=utf-8";
+
+    /** Writes a JSON document at the time the response is sent. */
+    public interface JsonContent {
+        void writeTo(JsonWriter writer);
+    }
+
+    /** Send a document that has already been written. The response takes ownership of the writer's buffer. */
+    public JsonResponse(Request request, HttpResponseStatus status, JsonWriter writer) {
+        super(request, status, CONTENT_TYPE);
+        this.writer = writer;
+        this.jsonContent = null;
+    }
+
+    /** Send a document that has already been written. The response takes ownership of the writer's buffer. */
+    public JsonResponse(Request request, JsonWriter writer) {
+        this(request, HttpResponseStatus.OK, writer);
+    }
+
+    /** Write the document when the response is sent, sending it as chunks if it is large. */
+    public JsonResponse(Request request, HttpResponseStatus status, JsonContent jsonContent) {
+        super(request, status, CONTENT_TYPE);
+        this.writer = null;
+        this.jsonContent = jsonContent;
+    }
+
+    /** Write the document when the response is sent, sending it as chunks if it is large. */
+    public JsonResponse(Request request, JsonContent jsonContent) {
+        this(request, HttpResponseStatus.OK, jsonContent);
+    }
+
+    @Override
+    public ChannelFuture writeResponse(final ChannelHandlerContext ctx) {
+        if (jsonContent == null) {
+            JsonWriter w = writer;
+            writer = null;
+            return writeContent(ctx, w.finish());
+        }
+        if (request.isHEADRequest()) {
+            // The length is not known without writing the document
+            isChunked = true;
+            sendHeaders(ctx);
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+
+        JsonWriter w = new JsonWriter(ctx.alloc().directBuffer(1024), CHUNK_SIZE, new JsonWriter.ChunkSink() {
+            @Override
+            public ByteBuf writeChunk(ByteBuf full) {
+                if (!isChunked) {
+                    isChunked = true;
+                    sendHeaders(ctx);
+                }
+                contentLength += full.readableBytes();
+                ctx.writeAndFlush(new DefaultHttpContent(full));
+                return ctx.alloc().directBuffer(CHUNK_SIZE + 1024);
+            }
+        });
+        ByteBuf last;
+        try {
+            jsonContent.writeTo(w);
+            last = w.finish();
+        } catch (RuntimeException e) {
+            w.release();
+            if (!isChunked) {
+                throw e;
+            }
+            // Part of the response has been sent, so the client can only be told of the failure by closing the
+            // connection, leaving the response truncated
+            ctx.channel().close();
+            return ctx.newFailedFuture(e);
+        }
+        if (!isChunked) {
+            return writeContent(ctx, last);
+        }
+        contentLength += last.readableBytes();
+        return ctx.writeAndFlush(new DefaultLastHttpContent(last));
+    }
+
+    /** Send a complete document with a Content-Length header. */
+    private ChannelFuture writeContent(ChannelHandlerContext ctx, ByteBuf content) {
+        contentLength = content.readableBytes();
+        try {
+            sendHeaders(ctx);
+            if (!request.isHEADRequest()) {
+                ctx.write(content);
+            } else {
+                // Content is not sent for HEAD requests
+                content.release();
+            }
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+
+        } catch (Exception e) {
+            if (content.refCnt() > 0) {
+                content.release();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        // Release the buffer of a pre-written document if the response was never sent
+        if (writer != null) {
+            writer.release();
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Streaming JSON writer that encodes directly into a (by default pooled, direct) ByteBuf, with no intermediate
+ * String or byte[]. Strings are escaped and UTF-8 encoded in a single pass, numbers are formatted without
+ * allocating, and field names can be pre-encoded as JsonNames.
+ * 
+ * Commas are inserted automatically. The writer checks that objects and arrays are balanced, but does not
+ * otherwise validate the structure (e.g. that names are only written inside objects).
+ * 
+ * Send the result with new JsonResponse(request, writer), which takes ownership of the buffer, or call release()
+ * if the document is abandoned.
+ */
+public class JsonWriter {
+    private ByteBuf buf;
+    private boolean needsComma;
+    private int depth;
+
+    /** If non-null, buffers larger than chunkSize are handed to the sink as they fill. */
+    private final ChunkSink chunkSink;
+    private final int chunkSize;
+
+    /** Scratch space for formatting longs. */
+    private final byte[] digits = new byte[20];
+
+    /** Receives full buffers when a document is written in chunks, and returns the buffer to continue with. */
+    interface ChunkSink {
+        ByteBuf writeChunk(ByteBuf full);
+    }
+
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e',
+            'f' };
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes();
+
+    /** Write into a pooled direct buffer. */
+    public JsonWriter() {
+        this(PooledByteBufAllocator.DEFAULT, 256);
+    }
+
+    /** Write into a direct buffer from the given allocator, which grows as needed. */
+    public JsonWriter(ByteBufAllocator alloc, int initialCapacity) {
+        this(alloc.directBuffer(initialCapacity), 0, null);
+    }
+
+    JsonWriter(ByteBuf buf, int chunkSize, ChunkSink chunkSink) {
+        this.buf = buf;
+        this.chunkSize = chunkSize;
+        this.chunkSink = chunkSink;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    public JsonWriter beginObject() {
+        return begin('{');
+    }
+
+    public JsonWriter endObject() {
+        return end('}');
+    }
+
+    public JsonWriter beginArray() {
+        return begin('[');
+    }
+
+    public JsonWriter endArray() {
+        return end(']');
+    }
+
+    private JsonWriter begin(char c) {
+        if (needsComma) {
+            buf.writeByte(',');
+        }
+        buf.writeByte(c);
+        needsComma = false;
+        depth++;
+        return this;
+    }
+
+    private JsonWriter end(char c) {
+        if (depth == 0) {
+            throw new IllegalStateException("No open object or array");
+        }
+        depth--;
+        buf.writeByte(c);
+        return afterValue();
+    }
+
+    /** Write a pre-encoded field name. */
+    public JsonWriter name(JsonName name) {
+        if (needsComma) {
+            buf.writeByte(',');
+        }
+        buf.writeBytes(name.encoded);
+        needsComma = false;
+        return this;
+    }
+
+    /** Write a field name. (Use a JsonName for names that are written repeatedly.) */
+    public JsonWriter name(String name) {
+        if (needsComma) {
+            buf.writeByte(',');
+        }
+        writeString(buf, name);
+        buf.writeByte(':');
+        needsComma = false;
+        return this;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Write a string value, or null. */
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(buf, value);
+        return afterValue();
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            // Cannot be negated
+            buf.writeBytes(LONG_MIN_VALUE);
+        } else {
+            long abs = value < 0 ? -value : value;
+            int pos = digits.length;
+            do {
+                digits[--pos] = (byte) ('0' + abs % 10);
+                abs /= 10;
+            } while (abs != 0);
+            if (value < 0) {
+                digits[--pos] = '-';
+            }
+            buf.writeBytes(digits, pos, digits.length - pos);
+        }
+        return afterValue();
+    }
+
+    /** Write a double value. JSON has no representation for NaN or infinity. */
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON numbers must be finite, got " + value);
+        }
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            // Integral values are written without a fractional part
+            return value((long) value);
+        }
+        beforeValue();
+        String str = Double.toString(value);
+        for (int i = 0, n = str.length(); i < n; i++) {
+            buf.writeByte(str.charAt(i));
+        }
+        return afterValue();
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        buf.writeBytes(value ? TRUE : FALSE);
+        return afterValue();
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        buf.writeBytes(NULL);
+        return afterValue();
+    }
+
+    /** Write a field with a string value (or null). */
+    public JsonWriter field(JsonName name, String value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter field(JsonName name, long value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter field(JsonName name, double value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter field(JsonName name, boolean value) {
+        return name(name).value(value);
+    }
+
+    private void beforeValue() {
+        if (needsComma) {
+            buf.writeByte(',');
+        }
+    }
+
+    private JsonWriter afterValue() {
+        needsComma = true;
+        if (chunkSink != null && buf.writerIndex() >= chunkSize) {
+            buf = chunkSink.writeChunk(buf);
+        }
+        return this;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Write a quoted, escaped string in UTF-8. Each char takes at most 3 bytes (a surrogate pair takes 4 bytes for
+     * 2 chars), so room for the whole string is reserved up front, and bytes are set without per-byte bounds
+     * growth. Control characters take up to 6 bytes, so more room is reserved when one is escaped.
+     */
+    private static void writeString(ByteBuf buf, String str) {
+        int len = str.length();
+        buf.ensureWritable(len * 3 + 2);
+        int idx = buf.writerIndex();
+        buf.setByte(idx++, '"');
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buf.setByte(idx++, c);
+                } else {
+                    buf.writerIndex(idx);
+                    buf.ensureWritable(6 + (len - i) * 3 + 1);
+                    buf.setByte(idx++, '\\');
+                    switch (c) {
+                    case '"':
+                    case '\\':
+                        buf.setByte(idx++, c);
+                        break;
+                    case '\n':
+                        buf.setByte(idx++, 'n');
+                        break;
+                    case '\r':
+                        buf.setByte(idx++, 'r');
+                        break;
+                    case '\t':
+                        buf.setByte(idx++, 't');
+                        break;
+                    case '\b':
+                        buf.setByte(idx++, 'b');
+                        break;
+                    case '\f':
+                        buf.setByte(idx++, 'f');
+                        break;
+                    default:
+                        buf.setByte(idx++, 'u');
+                        buf.setByte(idx++, '0');
+                        buf.setByte(idx++, '0');
+                        buf.setByte(idx++, HEX[c >> 4]);
+                        buf.setByte(idx++, HEX[c & 0xf]);
+                    }
+                }
+            } else if (c < 0x800) {
+                buf.setByte(idx++, 0xc0 | (c >> 6));
+                buf.setByte(idx++, 0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                    buf.setByte(idx++, 0xf0 | (codePoint >> 18));
+                    buf.setByte(idx++, 0x80 | ((codePoint >> 12) & 0x3f));
+                    buf.setByte(idx++, 0x80 | ((codePoint >> 6) & 0x3f));
+                    buf.setByte(idx++, 0x80 | (codePoint & 0x3f));
+                } else {
+                    // Unpaired surrogate -- replaced, as String.getBytes() does
+                    buf.setByte(idx++, '?');
+                }
+            } else {
+                buf.setByte(idx++, 0xe0 | (c >> 12));
+                buf.setByte(idx++, 0x80 | ((c >> 6) & 0x3f));
+                buf.setByte(idx++, 0x80 | (c & 0x3f));
+            }
+        }
+        buf.setByte(idx++, '"');
+        buf.writerIndex(idx);
+    }
+
+    /** Encode a field name, including the quotes and colon, for JsonName. */
+    static byte[] encodeName(String name) {
+        ByteBuf buf = Unpooled.buffer(name.length() + 3);
+        writeString(buf, name);
+        buf.writeByte(':');
+        byte[] encoded = new byte[buf.readableBytes()];
+        buf.readBytes(encoded);
+        return encoded;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** The number of bytes written to the current buffer. */
+    public int size() {
+        return buf.readableBytes();
+    }
+
+    /**
+     * Take the buffer holding the document, after checking that all objects and arrays are closed. The caller
+     * takes ownership of the buffer, and the writer can no longer be used.
+     */
+    ByteBuf finish() {
+        if (depth != 0) {
+            release();
+            throw new IllegalStateException("Unclosed object or array");
+        }
+        ByteBuf content = buf;
+        buf = null;
+        return content;
+    }
+
+    /** Release the buffer, if the document is not going to be sent. */
+    public void release() {
+        if (buf != null) {
+            buf.release();
+            buf = null;
+        }
+    }
+}
@@ -41,11 +41,13 @@ import static io.netty.handler.codec.http.HttpHeaderNames.TRANSFER_ENCODING;
 import static io.netty.handler.codec.http.HttpHeaderValues.CHUNKED;
 import static io.netty.handler.codec.http.HttpHeaderValues.GZIP;
 import static io.netty.handler.codec.http.HttpHeaderValues.KEEP_ALIVE;
+import gribbit.http.jfr.LifecycleEvents;
 import gribbit.http.request.Request;
 import gribbit.http.request.decoder.HttpRequestDecoder;
 import gribbit.http.response.exception.InternalServerErrorException;
 import gribbit.http.response.exception.ResponseException;
 import gribbit.http.utils.ContentTypeUtils;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultHttpResponse;
@@ -60,7 +62,6 @@ import io.netty.handler.codec.http2.HttpConversionUtil;
 
 import java.time.Instant;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -83,8 +84,7 @@ public abstract class Response implements AutoCloseable {
 
     protected HashMap<String, Cookie> cookies;
 
-    protected ZonedDateTime timeNow = ZonedDateTime.now();
-    protected long timeNowEpochSeconds = timeNow.toEpochSecond();
+    protected long timeNowEpochSeconds = System.currentTimeMillis() / 1000L;
     protected static final long ONE_YEAR_IN_SECONDS = 31536000L;
 
     protected long lastModifiedEpochSeconds;
@@ -284,6 +284,37 @@ public abstract class Response implements AutoCloseable {
     private static final ZoneId UTC = ZoneId.of("UTC");
     private static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(UTC);
 
+    /** The most recently formatted Date header value, and the second it was formatted for. */
+    private static volatile CachedDate cachedDate = new CachedDate(0L);
+
+    private static class CachedDate {
+        final long epochSeconds;
+        final String formatted;
+
+        CachedDate(long epochSeconds) {
+            this.epochSeconds = epochSeconds;
+            this.formatted = formatDate(epochSeconds);
+        }
+    }
+
+    /** Format a timestamp in RFC 1123 format, as used in HTTP date headers. */
+    protected static String formatDate(long epochSeconds) {
+        return dateTimeFormatter.format(Instant.ofEpochSecond(epochSeconds));
+    }
+
+    /**
+     * Format a timestamp in RFC 1123 format. Consecutive responses in the same second share a single formatted
+     * string, since the Date header only changes once per second.
+     */
+    private static String formatDateCached(long epochSeconds) {
+        CachedDate cached = cachedDate;
+        if (cached.epochSeconds != epochSeconds) {
+            // Benign race: concurrent threads may both format the date, but they produce the same string
+            cachedDate = cached = new CachedDate(epochSeconds);
+        }
+        return cached.formatted;
+    }
+
     protected void sendHeaders(ChannelHandlerContext ctx) {
 
         // Set general headers ---------------------------------------------------------------------------------------
@@ -293,7 +324,7 @@ public abstract class Response implements AutoCloseable {
         headers.add(SERVER, SERVER_IDENTIFIER);
 
         // Date header uses server time, and should use the same clock as Expires and Last-Modified
-        headers.add(DATE, dateTimeFormatter.format(timeNow));
+        headers.add(DATE, formatDateCached(timeNowEpochSeconds));
 
         // Add an Accept-Encoding: gzip header to the response to let the client know that in future
         // it can send compressed requests. (This header is probably ignored by most clients, because
@@ -337,10 +368,7 @@ public abstract class Response implements AutoCloseable {
             // request.cachedVersionIsOlderThan(serverTimestamp), where serverTimestamp was the timestamp at which
             // the value previously changed, and if the return value is false, throw NotModifiedException.
             if (lastModifiedEpochSeconds > 0L) {
-                headers.add(
-                        LAST_MODIFIED,
-                        dateTimeFormatter.format(ZonedDateTime.ofInstant(
-                                Instant.ofEpochSecond(lastModifiedEpochSeconds), UTC)));
+                headers.add(LAST_MODIFIED, formatDate(lastModifiedEpochSeconds));
             }
 
             //            if (request.isHashURL() && maxAgeSeconds != 0L) {
@@ -353,7 +381,7 @@ public abstract class Response implements AutoCloseable {
             //                // N.B. can set "Cache-Control: public", since the resource is hashed, so it can be served to other
             //                // clients that request it (they would have to know the hash URL to request it in the first place).
             //                headers.add(CACHE_CONTROL, "public, max-age=" + maxAge);
-            //                headers.add(EXPIRES, dateTimeFormatter.format(timeNow.plusSeconds(maxAge)));
+            //                headers.add(EXPIRES, formatDate(timeNowEpochSeconds + maxAge));
             //                headers.add(ETAG, request.getURLHashKey());
             //                cached = true;
             //            }
@@ -369,7 +397,7 @@ public abstract class Response implements AutoCloseable {
             // Cache 404 messages for 5 minutes to reduce server load
             int cacheTime = 60 * 5;
             headers.add(CACHE_CONTROL, "max-age=" + cacheTime);
-            headers.add(EXPIRES, dateTimeFormatter.format(timeNow.plusSeconds(cacheTime)));
+            headers.add(EXPIRES, formatDate(timeNowEpochSeconds + cacheTime));
             cached = true;
         }
 
@@ -415,34 +443,52 @@ public abstract class Response implements AutoCloseable {
         // Send headers --------------------------------------------------------------------------------------------
 
         ctx.write(httpResponse);
+        LifecycleEvents.responseHeadersWritten(ctx, request, status.code(), isChunked ? -1L : contentLength);
     }
 
-    /** Send the response. Should call sendHeaders(ctx), followed by calling ctx.writeAndFlush(content). */
-    protected abstract void writeResponse(ChannelHandlerContext ctx) throws Exception;
+    /**
+     * Send the response. Should call sendHeaders(ctx), followed by calling ctx.writeAndFlush(content). Returns the
+     * future of the last write, which completes once the whole response has been written.
+     */
+    protected abstract ChannelFuture writeResponse(ChannelHandlerContext ctx) throws Exception;
 
-    /** Send the response. */
-    public void send(ChannelHandlerContext ctx) throws ResponseException {
+    /**
+     * Send the response. The response is closed once the last write completes (or immediately, if sending
+     * fails), and the connection is closed after the response has been written if not keep-alive. Returns the
+     * future of the last write.
+     */
+    public ChannelFuture send(ChannelHandlerContext ctx) throws ResponseException {
+        final Object responseEvent = LifecycleEvents.responseStarted(ctx, request);
+        ChannelFuture lastWriteFuture;
         try {
-            writeResponse(ctx);
+            lastWriteFuture = writeResponse(ctx);
         } catch (Exception e) {
+            LifecycleEvents.responseCompleted(responseEvent, status.code(), contentLength, false);
+            close();
             if (e instanceof ResponseException) {
                 throw (ResponseException) e;
             } else {
                 throw new InternalServerErrorException(e);
             }
-        } finally {
-            if (!keepAlive) {
-                ctx.newPromise().addListener(ChannelFutureListener.CLOSE);
+        }
+        lastWriteFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                LifecycleEvents.responseCompleted(responseEvent, status.code(), contentLength, future.isSuccess());
+                close();
             }
+        });
+        if (!keepAlive) {
+            lastWriteFuture.addListener(ChannelFutureListener.CLOSE);
         }
+        return lastWriteFuture;
     }
 
+    /**
+     * Release any resources held by the response. Called automatically by send() once the response has been
+     * written, so only needs to be called manually if a response is created but not sent.
+     */
     @Override
     public abstract void close();
 
-    @Override
-    protected void finalize() throws Throwable {
-        close();
-    }
-
 }
@@ -0,0 +1,203 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+import gribbit.http.logging.Log;
+import gribbit.http.request.Request;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Chunked (streamed) response whose content is pushed by a ContentPublisher, so that no thread blocks waiting for
+ * content. Each buffer is written as one chunk.
+ * 
+ * Channel writability is used as backpressure: the next buffer is requested from the publisher as soon as a buffer
+ * has been written while the channel is writable, but once the outbound buffer rises above the high water mark,
+ * the next buffer is only requested after the buffers already queued have been written to the socket. If the
+ * client disconnects, the subscription is cancelled. If the publisher fails after the headers have been sent, the
+ * connection is closed, so that the client sees a truncated response rather than a complete one. Requests that
+ * the client pipelines on the same connection are held by HttpRequestDecoder until the last chunk is written.
+ */
+public class StreamingResponse extends Response implements ContentPublisher.Subscriber {
+    private final ContentPublisher publisher;
+
+    private ChannelHandlerContext ctx;
+    private ChannelPromise completionPromise;
+    private volatile ContentPublisher.Subscription subscription;
+
+    /** True once the response has completed, failed, or been cancelled. Only accessed from the event loop. */
+    private boolean done;
+
+    /**
+     * The number of buffers requested when the subscription starts, so that the publisher can be producing the
+     * next buffer while the previous one is being written.
+     */
+    private static final int PREFETCH = 2;
+
+    public StreamingResponse(Request request, HttpResponseStatus status, ContentPublisher publisher,
+            String contentType) {
+        super(request, status, contentType);
+        this.publisher = publisher;
+    }
+
+    public StreamingResponse(Request request, ContentPublisher publisher, String contentType) {
+        this(request, HttpResponseStatus.OK, publisher, contentType);
+    }
+
+    /**
+     * Send the headers and subscribe to the publisher. Returns a future that completes once the last chunk has
+     * been written, or fails if the publisher fails or the client disconnects first.
+     */
+    @Override
+    public ChannelFuture writeResponse(ChannelHandlerContext ctx) {
+        isChunked = true;
+        sendHeaders(ctx);
+        if (request.isHEADRequest()) {
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        ctx.flush();
+        this.ctx = ctx;
+        this.completionPromise = ctx.newPromise();
+        ctx.channel().closeFuture().addListener(channelClosedListener);
+        publisher.subscribe(this);
+        return completionPromise;
+    }
+
+    /** Run a task on the channel's event loop, after the headers and any chunks already handed off. */
+    private void runOnEventLoop(Runnable task) {
+        ctx.channel().eventLoop().execute(task);
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void onSubscribe(final ContentPublisher.Subscription subscription) {
+        this.subscription = subscription;
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (done) {
+                    // Client disconnected before the subscription started
+                    subscription.cancel();
+                } else {
+                    subscription.request(PREFETCH);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onNext(final ByteBuf content) {
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (done) {
+                    content.release();
+                    return;
+                }
+                contentLength += content.readableBytes();
+                ChannelFuture writeFuture = ctx.writeAndFlush(new DefaultHttpContent(content));
+                if (ctx.channel().isWritable()) {
+                    subscription.request(1);
+                } else {
+                    // Wait until the queued chunks have drained to the socket
+                    writeFuture.addListener(requestNextListener);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (!done) {
+                    done = true;
+                    Log.exception("Streaming response failed after the headers were sent", throwable);
+                    ctx.channel().closeFuture().removeListener(channelClosedListener);
+                    completionPromise.tryFailure(throwable);
+                    // There is no way to signal an error in the middle of a chunked response
+                    ctx.channel().close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onComplete() {
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (!done) {
+                    done = true;
+                    ctx.channel().closeFuture().removeListener(channelClosedListener);
+                    ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT, completionPromise);
+                }
+            }
+        });
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Requests the next buffer once a chunk written while the channel was not writable has been written. */
+    private final ChannelFutureListener requestNextListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            // If the write failed, the channel is closing, and channelClosedListener cancels the subscription
+            if (!done && future.isSuccess()) {
+                subscription.request(1);
+            }
+        }
+    };
+
+    /** Cancels the subscription if the client disconnects before the response is complete. */
+    private final ChannelFutureListener channelClosedListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (!done) {
+                done = true;
+                ContentPublisher.Subscription s = subscription;
+                if (s != null) {
+                    s.cancel();
+                }
+                completionPromise.tryFailure(new ClosedChannelException());
+            }
+        }
+    };
+
+    @Override
+    public void close() {
+    }
+}
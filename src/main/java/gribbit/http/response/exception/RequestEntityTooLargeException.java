@@ -0,0 +1,38 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response.exception;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * This exception is thrown when the body of a request is larger than the server's maximum request body size. The
+ * connection is closed after the response is sent, since the rest of the body is not read.
+ */
+public class RequestEntityTooLargeException extends LightweightResponseException {
+    public RequestEntityTooLargeException() {
+        super(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+    }
+}
@@ -2,81 +2,279 @@ package gribbit.http.route;
 
 import gribbit.http.response.exception.BadRequestException;
 import gribbit.http.response.exception.ResponseException;
+import gribbit.http.utils.ParamParser;
 import gribbit.http.utils.URLUtils;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.QueryStringEncoder;
 
-import java.util.ArrayList;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 public class RequestURL {
-    private final List<String> unescapedURLParts;
+    private final String requestURL;
+    private final int queryIdx;
     private final String escapedNormalizedURL;
-    private final Map<String, List<String>> unescapedQueryParams;
+    private Map<String, List<String>> unescapedQueryParams;
 
     /**
      * Parse the request URL, handle unescaping of path and query segments, and normalize ".." and "." path
-     * elements.
+     * elements. Query params are not decoded until they are first requested.
      */
     public RequestURL(String requestURL) throws ResponseException {
-        QueryStringDecoder decoder = new QueryStringDecoder(requestURL);
-        String urlPath = decoder.path();
-        this.unescapedQueryParams = decoder.parameters();
+        this.requestURL = requestURL;
+        this.queryIdx = requestURL.indexOf('?');
+        this.escapedNormalizedURL = normalizePath(requestURL, queryIdx < 0 ? requestURL.length() : queryIdx);
+    }
+
+    // -----------------------------------------------------------------------------------------------------
+
+    /**
+     * Returns true if the path is already in normalized form, i.e. if it contains no "." or ".." segments, no
+     * empty segments, and no characters that would need to be (re-)escaped.
+     */
+    private static boolean isNormalized(String url, int pathEnd) {
+        int segStart = 1;
+        for (int i = 1; i <= pathEnd; i++) {
+            char c = i == pathEnd ? '/' : url.charAt(i);
+            if (c == '/') {
+                int segLen = i - segStart;
+                if (segLen == 0 || (url.charAt(segStart) == '.' //
+                        && (segLen == 1 || (segLen == 2 && url.charAt(segStart + 1) == '.')))) {
+                    // Empty segment (including a trailing slash), or "." or ".." segment
+                    return false;
+                }
+                segStart = i + 1;
+            } else if (!URLUtils.isUnreservedChar(c)) {
+                // Char needs escaping, or is a %-escape that may need to be normalized
+                return false;
+            }
+        }
+        return true;
+    }
 
-        if (urlPath.isEmpty()) {
-            urlPath = "/";
+    /**
+     * Normalize the path part of the URL in a single pass: unescape each segment, drop empty and "." segments,
+     * apply ".." segments, and re-escape the remaining segments so that the normalized URL can be matched against
+     * routes. Works on the %-escaped bytes directly, without creating intermediate strings for each segment.
+     */
+    private static String normalizePath(String url, int pathEnd) throws BadRequestException {
+        if (pathEnd == 0) {
+            return "/";
         }
-        if (!urlPath.startsWith("/")) {
+        if (url.charAt(0) != '/') {
             throw new BadRequestException("Requests must start with '/'");
         }
-        // Unescape URL parts so URL can be normalized
-        String[] parts = urlPath.equals("/") ? new String[] { "" } : urlPath.split("/");
-        this.unescapedURLParts = new ArrayList<>(parts.length - 1);
-        for (int i = 1, n = parts.length; i < n; i++) {
-            String pathElt = URLUtils.unescapeURLSegment(parts[i]);
-            if (!pathElt.isEmpty() && !pathElt.equals(".")) {
-                if (pathElt.equals("..")) {
-                    if (unescapedURLParts.size() == 0) {
-                        throw new BadRequestException("Attempt to navigate above root");
+        if (pathEnd == 1) {
+            return "/";
+        }
+
+        // Fast path for URLs that are already normalized (the common case)
+        if (isNormalized(url, pathEnd)) {
+            return pathEnd == url.length() ? url : url.substring(0, pathEnd);
+        }
+
+        StringBuilder buf = new StringBuilder(pathEnd + 16);
+        // Start positions in buf of the segments that have been kept so far, for handling ".."
+        int[] segStarts = new int[16];
+        int numSegs = 0;
+        for (int i = 1; i <= pathEnd; i++) {
+            int segStart = buf.length();
+            buf.append('/');
+            int unescapedLen = 0;
+            boolean allDots = true;
+            for (char c; i < pathEnd && (c = url.charAt(i)) != '/'; i++) {
+                int b;
+                if (c == '%') {
+                    // Decode %-escaped char sequence, e.g. %5D
+                    if (i + 2 >= pathEnd || url.charAt(i + 1) == '/' || url.charAt(i + 2) == '/') {
+                        // Ignore truncated %-seq at end of segment
+                        continue;
                     }
-                    unescapedURLParts.remove(unescapedURLParts.size() - 1);
+                    int digit1 = URLUtils.hexDigitValue(url.charAt(++i));
+                    int digit2 = URLUtils.hexDigitValue(url.charAt(++i));
+                    if (digit1 < 0 || digit2 < 0) {
+                        // Ignore invalid %-sequence
+                        continue;
+                    }
+                    b = (digit1 << 4) | digit2;
+                } else if (c <= 0x7f) {
+                    b = c;
+                } else {
+                    // Ignore invalid chars
+                    continue;
+                }
+                unescapedLen++;
+                allDots &= b == '.';
+                // Re-escape the unescaped byte
+                if (URLUtils.isUnreservedChar(b)) {
+                    buf.append((char) b);
                 } else {
-                    unescapedURLParts.add(pathElt);
+                    URLUtils.percentEncode(buf, b);
                 }
             }
+            if (unescapedLen == 0 || (unescapedLen == 1 && allDots)) {
+                // Drop empty and "." segments
+                buf.setLength(segStart);
+            } else if (unescapedLen == 2 && allDots) {
+                // Apply ".." segment
+                if (numSegs == 0) {
+                    throw new BadRequestException("Attempt to navigate above root");
+                }
+                buf.setLength(segStarts[--numSegs]);
+            } else {
+                if (numSegs == segStarts.length) {
+                    segStarts = Arrays.copyOf(segStarts, numSegs * 2);
+                }
+                segStarts[numSegs++] = segStart;
+            }
         }
-        // Re-escape normalized URL path segments, so that normalized URL can be matched against routes
-        StringBuilder buf = new StringBuilder();
-        for (String part : unescapedURLParts) {
-            buf.append('/');
-            buf.append(URLUtils.escapeURLSegment(part));
-        }
-        escapedNormalizedURL = buf.length() == 0 ? "/" : buf.toString();
+        return buf.length() == 0 ? "/" : buf.toString();
     }
 
+    // -----------------------------------------------------------------------------------------------------
+
     /** Return the URL path, normalized to handle "..", ".", and empty path segments. */
     public String getNormalizedPath() {
         return escapedNormalizedURL;
     }
 
-    /** Returns the query params, unescaped. */
+    /** Returns true if the URL has a query string. */
+    public boolean hasQuery() {
+        return queryIdx >= 0 && queryIdx < requestURL.length() - 1;
+    }
+
+    /** Returns the query params, unescaped. The query string is decoded the first time this is called. */
     public Map<String, List<String>> getQueryParams() {
+        if (unescapedQueryParams == null) {
+            unescapedQueryParams = hasQuery() ? new QueryStringDecoder(requestURL.substring(queryIdx + 1), false)
+                    .parameters() : Collections.<String, List<String>> emptyMap();
+        }
         return unescapedQueryParams;
     }
 
+    // -----------------------------------------------------------------------------------------------------
+
+    /** Returns true if the range of the request URL contains a '%' or '+' character, i.e. needs unescaping. */
+    private boolean isEscaped(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = requestURL.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode an escaped key or value in the query string, or return null if it contains a malformed %-escape
+     * (which is treated as a missing or unparseable param, rather than as an error).
+     */
+    private String decodeQueryComponent(int start, int end) {
+        try {
+            return QueryStringDecoder.decodeComponent(requestURL.substring(start, end));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the first query param with the given name without decoding the query string, and return the range of
+     * its still-escaped value within the request URL, packed as (start << 32) | end. Returns -1 if there is no
+     * param with this name.
+     */
+    private long findRawQueryParamValue(String paramName) {
+        if (!hasQuery()) {
+            return -1L;
+        }
+        for (int i = queryIdx + 1, n = requestURL.length(); i < n;) {
+            int paramEnd = i, eqIdx = -1;
+            for (char c; paramEnd < n && (c = requestURL.charAt(paramEnd)) != '&' && c != ';'; paramEnd++) {
+                if (c == '=' && eqIdx < 0) {
+                    eqIdx = paramEnd;
+                }
+            }
+            int keyEnd = eqIdx < 0 ? paramEnd : eqIdx;
+            int keyLen = keyEnd - i;
+            boolean keyMatches;
+            if (isEscaped(i, keyEnd)) {
+                // Slow path for escaped keys
+                keyMatches = paramName.equals(decodeQueryComponent(i, keyEnd));
+            } else {
+                keyMatches = keyLen == paramName.length() && requestURL.regionMatches(i, paramName, 0, keyLen);
+            }
+            if (keyMatches) {
+                return ((long) (eqIdx < 0 ? paramEnd : eqIdx + 1) << 32) | paramEnd;
+            }
+            i = paramEnd + 1;
+        }
+        return -1L;
+    }
+
+    /**
+     * Return the value of the first query param with the given name, or null if there is no param with this name,
+     * or if its value contains a malformed %-escape. A value that is not escaped is returned as a view of the
+     * request URL, so that no String is created for it.
+     */
+    private CharSequence getQueryParamValue(String paramName) {
+        long range = findRawQueryParamValue(paramName);
+        if (range < 0) {
+            return null;
+        }
+        int start = (int) (range >>> 32), end = (int) range;
+        return isEscaped(start, end) ? decodeQueryComponent(start, end) : CharBuffer.wrap(requestURL, start, end);
+    }
+
+    /**
+     * Return the first query param with the given name, parsed as an int, or defaultValue if there is no param
+     * with this name, or if the value is not a valid int.
+     */
+    public int getQueryParamInt(String paramName, int defaultValue) {
+        CharSequence val = getQueryParamValue(paramName);
+        return val == null ? defaultValue : ParamParser.parseInt(val, 0, val.length(), defaultValue);
+    }
+
+    /**
+     * Return the first query param with the given name, parsed as a long, or defaultValue if there is no param
+     * with this name, or if the value is not a valid long.
+     */
+    public long getQueryParamLong(String paramName, long defaultValue) {
+        CharSequence val = getQueryParamValue(paramName);
+        return val == null ? defaultValue : ParamParser.parseLong(val, 0, val.length(), defaultValue);
+    }
+
+    /**
+     * Return the first query param with the given name, parsed as a boolean (see ParamParser.parseBoolean()), or
+     * defaultValue if there is no param with this name, or if the value is not a recognized boolean value.
+     */
+    public boolean getQueryParamBoolean(String paramName, boolean defaultValue) {
+        CharSequence val = getQueryParamValue(paramName);
+        return val == null ? defaultValue : ParamParser.parseBoolean(val, 0, val.length(), defaultValue);
+    }
+
+    /**
+     * Return the first query param with the given name, parsed as a constant of the given enum type (ignoring
+     * case), or defaultValue if there is no param with this name, or if the value does not name an enum constant.
+     */
+    public <E extends Enum<E>> E getQueryParamEnum(String paramName, Class<E> enumType, E defaultValue) {
+        CharSequence val = getQueryParamValue(paramName);
+        return val == null ? defaultValue : ParamParser.parseEnum(enumType, val, 0, val.length(), defaultValue);
+    }
+
+    // -----------------------------------------------------------------------------------------------------
+
     /** Return the URL and query params, with all URL parts properly escaped. */
     @Override
     public String toString() {
         QueryStringEncoder encoder = new QueryStringEncoder(escapedNormalizedURL);
-        if (unescapedQueryParams != null) {
-            for (Entry<String, List<String>> ent : unescapedQueryParams.entrySet()) {
-                List<String> vals = ent.getValue();
-                if (vals != null) {
-                    for (String val : vals) {
-                        encoder.addParam(ent.getKey(), val);
-                    }
+        for (Entry<String, List<String>> ent : getQueryParams().entrySet()) {
+            List<String> vals = ent.getValue();
+            if (vals != null) {
+                for (String val : vals) {
+                    encoder.addParam(ent.getKey(), val);
                 }
             }
         }
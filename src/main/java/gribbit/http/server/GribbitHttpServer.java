@@ -25,12 +25,23 @@
  */
 package gribbit.http.server;
 
+import gribbit.http.logging.AccessLogSink;
+import gribbit.http.logging.AsyncAccessLog;
+import gribbit.http.logging.CommonLogFormatFileSink;
 import gribbit.http.logging.Log;
+import gribbit.http.metrics.EventLoopWatchdog;
+import gribbit.http.metrics.Metrics;
+import gribbit.http.metrics.PrometheusMetricsHandler;
+import gribbit.http.metrics.TrafficMetricsHandler;
 import gribbit.http.request.decoder.HttpRequestDecoder;
+import gribbit.http.request.decoder.LazyHttpHandlers;
+import gribbit.http.request.decoder.RequestDecoderConfig;
+import gribbit.http.request.decoder.WebSocketRoutes;
 import gribbit.http.request.handler.HttpErrorHandler;
 import gribbit.http.request.handler.HttpRequestHandler;
 import gribbit.http.request.handler.WebSocketHandler;
 import gribbit.http.response.exception.ResponseException;
+import gribbit.http.websocket.WebSocketKeepAlive;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
@@ -40,10 +51,7 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpContentDecompressor;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketServerCompressionHandler;
 import io.netty.handler.codec.http2.DefaultHttp2Connection;
 import io.netty.handler.codec.http2.Http2SecurityUtil;
 import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
@@ -60,7 +68,6 @@ import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
-import io.netty.handler.stream.ChunkedWriteHandler;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
@@ -69,6 +76,8 @@ import java.net.URI;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 
 import javax.net.ssl.SSLException;
 
@@ -77,6 +86,18 @@ public class GribbitHttpServer {
     private Integer port = null;
     private boolean useTLS = false;
     private LogLevel nettyLogLevel = null;
+    private boolean recycleRequests = false;
+    private AccessLogSink accessLogSink = null;
+    private boolean enableMetrics = false;
+    private long watchdogProbeIntervalMillis = 0L;
+    private long watchdogBlockedThresholdMillis = 0L;
+    private int webSocketLowWaterMark = 0;
+    private int webSocketHighWaterMark = 0;
+    private long webSocketPingIntervalMillis = 0L;
+    private long webSocketIdleTimeoutMillis = 0L;
+    private int webSocketMaxMessageBytes = 65536;
+    private long maxRequestBodyBytes = 65536;
+    private EventLoopWatchdog eventLoopWatchdog;
 
     private static final String serverName = GribbitHttpServer.class.getSimpleName();
     public String serverIdentifier = serverName;
@@ -88,6 +109,7 @@ public class GribbitHttpServer {
 
     private ArrayList<HttpRequestHandler> httpRequestHandlers;
     private ArrayList<WebSocketHandler> webSocketHandlers;
+    private LinkedHashMap<String, WebSocketHandler> webSocketPathHandlers;
     private HashMap<Class<? extends ResponseException>, //
     HttpErrorHandler<? extends ResponseException>> errorHandlers;
 
@@ -118,6 +140,116 @@ public class GribbitHttpServer {
         return this;
     }
 
+    /**
+     * Recycle Request objects using a per-event-loop pool, to reduce allocation rate under high load. If this is
+     * enabled, handlers must not hold on to the Request object after the response is complete. (A Request is
+     * recycled once the last write of its response has completed, so a StreamingResponse or EventStreamResponse
+     * may read from it until the stream ends.)
+     */
+    public GribbitHttpServer recycleRequests(boolean recycleRequests) {
+        this.recycleRequests = recycleRequests;
+        return this;
+    }
+
+    /**
+     * Log all requests to an access log. Records are written asynchronously by a background thread, and are dropped
+     * rather than blocking request handling if the sink cannot keep up.
+     */
+    public GribbitHttpServer accessLog(AccessLogSink accessLogSink) {
+        this.accessLogSink = accessLogSink;
+        return this;
+    }
+
+    /** Log all requests to the named file in Common Log Format. */
+    public GribbitHttpServer accessLog(String accessLogPath) throws IOException {
+        return accessLog(new CommonLogFormatFileSink(accessLogPath));
+    }
+
+    /**
+     * Record request latency histograms (per route and status code), bytes received and sent, and connection
+     * counts, and serve them in Prometheus text format at the given path (e.g. "/metrics"), or don't serve them if
+     * the path is null. (Metrics can also be read programmatically through the Metrics class.)
+     */
+    public GribbitHttpServer enableMetrics(String prometheusEndpointPath) {
+        this.enableMetrics = true;
+        Metrics.setEnabled(true);
+        if (prometheusEndpointPath != null) {
+            if (httpRequestHandlers == null) {
+                httpRequestHandlers = new ArrayList<>();
+            }
+            // Check the metrics endpoint before other handlers
+            httpRequestHandlers.add(0, new PrometheusMetricsHandler(prometheusEndpointPath));
+        }
+        return this;
+    }
+
+    /**
+     * Measure the scheduling lag of each event loop by scheduling a probe task every probeIntervalMillis, and log a
+     * stack sample of any HttpRequestHandler that runs for longer than blockedThresholdMillis (since a blocked
+     * handler stalls every other connection on the same event loop). Lag histograms are exported by
+     * enableMetrics().
+     */
+    public GribbitHttpServer enableEventLoopWatchdog(long probeIntervalMillis, long blockedThresholdMillis) {
+        this.watchdogProbeIntervalMillis = probeIntervalMillis;
+        this.watchdogBlockedThresholdMillis = blockedThresholdMillis;
+        return this;
+    }
+
+    /**
+     * Set the write buffer water marks (in bytes) of connections that are upgraded to WebSockets. A WebSocket
+     * channel becomes unwritable once more than highWaterMark bytes are queued, and writable again once the queue
+     * has drained below lowWaterMark. Each WebSocketHandler's SlowConsumerPolicy determines what happens to frames
+     * written while the channel is unwritable. By default, Netty's channel defaults are used.
+     */
+    public GribbitHttpServer webSocketWriteBufferWaterMarks(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark <= 0 || lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException("Need 0 <= lowWaterMark <= highWaterMark, and highWaterMark > 0");
+        }
+        this.webSocketLowWaterMark = lowWaterMark;
+        this.webSocketHighWaterMark = highWaterMark;
+        return this;
+    }
+
+    /**
+     * Ping WebSockets that have not received a frame for pingIntervalMillis, and close WebSockets that have not
+     * received a frame (including a pong) for idleTimeoutMillis, so that connections to dead peers are reaped.
+     */
+    public GribbitHttpServer webSocketKeepAlive(long pingIntervalMillis, long idleTimeoutMillis) {
+        if (pingIntervalMillis <= 0L || idleTimeoutMillis <= pingIntervalMillis) {
+            throw new IllegalArgumentException("Need 0 < pingIntervalMillis < idleTimeoutMillis");
+        }
+        this.webSocketPingIntervalMillis = pingIntervalMillis;
+        this.webSocketIdleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Set the maximum length of a WebSocket message (default 64kB). Fragmented messages are reassembled up to this
+     * length, unless the WebSocketHandler streams fragments. Connections that send longer messages are closed with
+     * status 1009 (message too big).
+     */
+    public GribbitHttpServer webSocketMaxMessageBytes(int maxMessageBytes) {
+        if (maxMessageBytes <= 0) {
+            throw new IllegalArgumentException("maxMessageBytes must be positive");
+        }
+        this.webSocketMaxMessageBytes = maxMessageBytes;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of an HTTP request body (default 64kB), including file uploads, and counting the
+     * decompressed size of compressed request bodies. Requests with a larger Content-Length, or whose body grows
+     * larger while it is being received, are rejected with 413 (Request Entity Too Large), and the connection is
+     * closed.
+     */
+    public GribbitHttpServer maxRequestBodyBytes(long maxRequestBodyBytes) {
+        if (maxRequestBodyBytes < 0) {
+            throw new IllegalArgumentException("maxRequestBodyBytes must not be negative");
+        }
+        this.maxRequestBodyBytes = maxRequestBodyBytes;
+        return this;
+    }
+
     // -------------------------------------------------------------------------------------------------------------
 
     /** Add an HTTP request handler. Handlers are called in order until one of them returns a non-null response. */
@@ -141,6 +273,23 @@ public class GribbitHttpServer {
         return this;
     }
 
+    /**
+     * Add a WebSocket handler for upgrade requests for a URL path, e.g. "/ws". Handlers added for a path are found
+     * by a map lookup, rather than by calling isWebSocketUpgradeURL() on each handler, and are checked before the
+     * handlers added without a path. The path is normalized in the same way as request URLs, so e.g. "/ws/" is
+     * equivalent to "/ws".
+     */
+    public GribbitHttpServer addWebSocketHandler(String path, WebSocketHandler handler) {
+        path = WebSocketRoutes.normalizePath(path);
+        if (webSocketPathHandlers == null) {
+            webSocketPathHandlers = new LinkedHashMap<>();
+        }
+        if (webSocketPathHandlers.put(path, handler) != null) {
+            throw new IllegalArgumentException("A WebSocket handler has already been added for path " + path);
+        }
+        return this;
+    }
+
     /** Add an error handler that overrides a default plain text error response. */
     public <E extends ResponseException> GribbitHttpServer addHttpErrorHandler(Class<E> exceptionType,
             HttpErrorHandler<E> errorHandler) {
@@ -198,23 +347,29 @@ public class GribbitHttpServer {
                         .build();
                 ctx.pipeline().addLast(
                         new HttpToHttp2ConnectionHandler.Builder().frameListener(listener).build(connection));
-                ctx.pipeline().addLast(new WebSocketServerCompressionHandler());
                 ctx.pipeline().addLast(requestDecoderGroup, requestDecoder);
+                monitorDecoderEventLoop(ctx);
 
             } else if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
                 if (nettyLogLevel != null) {
                     ctx.pipeline().addLast(new LoggingHandler(nettyLogLevel));
                 }
-                ctx.pipeline().addLast(new HttpContentDecompressor(), new HttpServerCodec());
-                // TODO: We're currently doing manual aggregation of chunked requests (without limiting len) 
-                /* ctx.pipeline().addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH)); */
-                ctx.pipeline().addLast(new WebSocketServerCompressionHandler());
+                ctx.pipeline().addLast(new HttpServerCodec());
+                ctx.pipeline().addLast(LazyHttpHandlers.NAME_IN_PIPELINE, LazyHttpHandlers.INSTANCE);
                 ctx.pipeline().addLast(requestDecoderGroup, requestDecoder);
+                monitorDecoderEventLoop(ctx);
 
             } else {
                 throw new IllegalStateException("Unsupported protocol: " + protocol);
             }
         }
+
+        /** The request decoder runs on its own event loop group, which also needs to be watched. */
+        private void monitorDecoderEventLoop(ChannelHandlerContext ctx) {
+            if (eventLoopWatchdog != null) {
+                eventLoopWatchdog.monitor(ctx.pipeline().context(requestDecoder).executor());
+            }
+        }
     }
 
     // From github.com/netty/netty/blob/master/example/src/main/java/io/netty/example/http2/tiles/Http2Server.java
@@ -260,6 +415,29 @@ public class GribbitHttpServer {
         EventLoopGroup bossGroup = new NioEventLoopGroup(1);
         EventLoopGroup workerGroup = new NioEventLoopGroup();
         EventLoopGroup requestDecoderGroup = new NioEventLoopGroup();
+        AsyncAccessLog accessLog = accessLogSink == null ? null : new AsyncAccessLog(accessLogSink);
+        eventLoopWatchdog = watchdogProbeIntervalMillis <= 0L ? null : new EventLoopWatchdog(
+                watchdogProbeIntervalMillis, watchdogBlockedThresholdMillis);
+        final WebSocketKeepAlive webSocketKeepAlive = webSocketPingIntervalMillis <= 0L ? null
+                : new WebSocketKeepAlive(webSocketPingIntervalMillis, webSocketIdleTimeoutMillis);
+        WebSocketRoutes webSocketRoutes = null;
+        if (webSocketPathHandlers != null || webSocketHandlers != null) {
+            webSocketRoutes = new WebSocketRoutes(webSocketMaxMessageBytes);
+            if (webSocketPathHandlers != null) {
+                for (Entry<String, WebSocketHandler> ent : webSocketPathHandlers.entrySet()) {
+                    webSocketRoutes.addRoute(ent.getKey(), ent.getValue());
+                }
+            }
+            if (webSocketHandlers != null) {
+                for (WebSocketHandler handler : webSocketHandlers) {
+                    webSocketRoutes.addHandler(handler);
+                }
+            }
+        }
+        // Shared by the request decoders of all connections
+        final RequestDecoderConfig requestDecoderConfig = new RequestDecoderConfig(httpRequestHandlers,
+                webSocketRoutes, errorHandlers, recycleRequests, accessLog, webSocketLowWaterMark,
+                webSocketHighWaterMark, webSocketKeepAlive, webSocketMaxMessageBytes, maxRequestBodyBytes);
         try {
             final SslContext sslCtx = useTLS ? configureTLS() : null;
 
@@ -277,8 +455,13 @@ public class GribbitHttpServer {
                         @Override
                         public void initChannel(SocketChannel ch) {
                             ChannelPipeline p = ch.pipeline();
-                            HttpRequestDecoder httpRequestDecoder = new HttpRequestDecoder(httpRequestHandlers,
-                                    webSocketHandlers, errorHandlers);
+                            if (eventLoopWatchdog != null) {
+                                eventLoopWatchdog.monitor(ch.eventLoop());
+                            }
+                            if (enableMetrics) {
+                                p.addLast(TrafficMetricsHandler.INSTANCE);
+                            }
+                            HttpRequestDecoder httpRequestDecoder = new HttpRequestDecoder(requestDecoderConfig);
                             if (sslCtx != null) {
                                 p.addLast(sslCtx.newHandler(ch.alloc()), new Http2OrHttpHandler(
                                         requestDecoderGroup, httpRequestDecoder)); // TODO: correct for HTTP2?
@@ -286,9 +469,9 @@ public class GribbitHttpServer {
                                 // TODO: unify this with HTTP 1.1 treatment in http2OrHttpHandler
 
                                 p.addLast(new HttpServerCodec());
-                                p.addLast(new HttpContentDecompressor());
-                                p.addLast(new HttpObjectAggregator(65536));
-                                p.addLast(new ChunkedWriteHandler());
+                                // Request bodies are streamed to HttpRequestDecoder rather than aggregated, and the
+                                // decompressor and chunked writer are only added to connections that need them
+                                p.addLast(LazyHttpHandlers.NAME_IN_PIPELINE, LazyHttpHandlers.INSTANCE);
                                 // The name is needed in the last handler, because it is used to dynamically add in
                                 // HttpContentCompressor if the content in the response needs to be compressed.
                                 p.addLast(HttpRequestDecoder.NAME_IN_PIPELINE, httpRequestDecoder);
@@ -354,6 +537,16 @@ public class GribbitHttpServer {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
             requestDecoderGroup.shutdownGracefully();
+            if (accessLog != null) {
+                accessLog.close();
+            }
+            if (eventLoopWatchdog != null) {
+                eventLoopWatchdog.close();
+                eventLoopWatchdog = null;
+            }
+            if (webSocketKeepAlive != null) {
+                webSocketKeepAlive.close();
+            }
         }
         return this;
     }
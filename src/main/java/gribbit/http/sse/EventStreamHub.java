@@ -0,0 +1,571 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.sse;
+
+import gribbit.http.logging.Log;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes Server-Sent Events to named topics, for streams opened by EventStreamResponse.
+ * 
+ * Each event is encoded once into a direct buffer (as "id:", optional "event:" and "data:" lines), and is written
+ * to each subscriber as a retained duplicate of that buffer. As in BroadcastHub, the subscribers of each topic are
+ * sharded by event loop, so that events published while a shard is busy are written together, with one flush per
+ * subscriber and no per-channel write task.
+ * 
+ * Event ids are assigned by the hub, and increase across all topics. The most recent events of each topic are kept
+ * in a bounded ring, so that a client that reconnects with a Last-Event-ID header is first sent the events it
+ * missed. Subscribers whose channel is not writable (whose outbound buffer is above the high water mark) are
+ * disconnected rather than sent a stream with gaps, since EventSource reconnects automatically, and then catches up
+ * from the ring.
+ * 
+ * A topic is kept while it has subscribers. When replay is enabled, a topic is also kept after its last subscriber
+ * has gone, along with its ring of retained events, until removeTopic() is called, so use a bounded set of topic
+ * names or remove topics that are no longer needed. When replay is disabled, publishing to a topic with no
+ * subscribers does not create the topic, and a topic is discarded when its last subscriber unsubscribes.
+ * 
+ * If a heartbeat interval is given, a comment line is written to every stream at that interval from a single task
+ * on a HashedWheelTimer, so that proxies do not time out streams with no recent events.
+ */
+public class EventStreamHub implements Closeable {
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    /** All open streams, by event loop, for sending heartbeats. */
+    private final ConcurrentHashMap<EventLoop, Heartbeat> heartbeats = new ConcurrentHashMap<>();
+
+    private final int replayEventsPerTopic;
+    private final long heartbeatIntervalMillis;
+    private final HashedWheelTimer timer;
+    private volatile boolean closed;
+
+    private final AtomicLong lastEventId = new AtomicLong();
+    private final AtomicLong slowConsumerDisconnects = new AtomicLong();
+
+    /** The heartbeat comment. */
+    private static final ByteBuf HEARTBEAT = Unpooled.unreleasableBuffer(Unpooled.directBuffer(3).writeBytes(
+            new byte[] { ':', '\n', '\n' }));
+
+    /**
+     * @param replayEventsPerTopic
+     *            The number of recent events to keep for each topic, for replay to reconnecting clients (0 to
+     *            disable replay).
+     * @param heartbeatIntervalMillis
+     *            The interval between heartbeat comments, or 0 to disable heartbeats.
+     */
+    public EventStreamHub(int replayEventsPerTopic, long heartbeatIntervalMillis) {
+        if (replayEventsPerTopic < 0) {
+            throw new IllegalArgumentException("replayEventsPerTopic must not be negative");
+        }
+        this.replayEventsPerTopic = replayEventsPerTopic;
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        if (heartbeatIntervalMillis > 0L) {
+            this.timer = new HashedWheelTimer(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, EventStreamHub.class.getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timer.newTimeout(heartbeatTask, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** An encoded event. The ring of a topic holds one reference to the content. */
+    private static class Event {
+        final long id;
+        final ByteBuf content;
+
+        Event(long id, ByteBuf content) {
+            this.id = id;
+            this.content = content;
+        }
+
+        DefaultHttpContent newChunk() {
+            // The duplicate shares the content, but has its own reader index, since each write consumes it
+            return new DefaultHttpContent(content.duplicate().retain());
+        }
+    }
+
+    private static final Comparator<Event> EVENT_ID_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            return Long.compare(e1.id, e2.id);
+        }
+    };
+
+    /** The subscription of a stream to a topic. Only accessed from the channel's event loop. */
+    private static class Subscriber {
+        final Channel channel;
+
+        /** Events up to this id were published before the subscription (and replayed, if requested). */
+        final long subscribedAfterId;
+
+        Subscriber(Channel channel, long subscribedAfterId) {
+            this.channel = channel;
+            this.subscribedAfterId = subscribedAfterId;
+        }
+    }
+
+    /** The subscribers of a topic that are registered with the same event loop. */
+    private class Shard implements Runnable {
+        private final EventLoop eventLoop;
+        private final ConcurrentHashMap<Channel, Subscriber> subscribers = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<Event> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Shard(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        /** Queue an event to be written. Takes ownership of one reference to the event content. */
+        void enqueue(Event event) {
+            pending.add(event);
+            if (scheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this);
+            }
+        }
+
+        /** Write all pending events to all subscribers. Runs on the shard's event loop. */
+        @Override
+        public void run() {
+            // Clear the flag first, so that an event enqueued during the run schedules another run
+            scheduled.set(false);
+            ArrayList<Event> batch = new ArrayList<>();
+            for (Event event; (event = pending.poll()) != null;) {
+                batch.add(event);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                for (Subscriber subscriber : subscribers.values()) {
+                    Channel channel = subscriber.channel;
+                    boolean written = false;
+                    for (int i = 0; i < batch.size(); i++) {
+                        Event event = batch.get(i);
+                        if (event.id <= subscriber.subscribedAfterId) {
+                            // Published before the subscription
+                            continue;
+                        }
+                        if (!channel.isWritable()) {
+                            if (channel.isActive()) {
+                                // The client will reconnect, and catch up from the replay ring
+                                slowConsumerDisconnects.incrementAndGet();
+                                channel.close();
+                            }
+                            written = false;
+                            break;
+                        }
+                        channel.write(event.newChunk(), channel.voidPromise());
+                        written = true;
+                    }
+                    if (written) {
+                        channel.flush();
+                    }
+                }
+            } finally {
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).content.release();
+                }
+            }
+        }
+    }
+
+    /** A topic, with its subscribers sharded by event loop, and its most recent events. */
+    private class Topic {
+        private final String name;
+        private final ConcurrentHashMap<EventLoop, Shard> shards = new ConcurrentHashMap<>();
+
+        /** The most recent events, oldest first. Guarded by this Topic. */
+        private final ArrayDeque<Event> ring = new ArrayDeque<>();
+
+        /** The id of the most recent event published to this topic. Guarded by this Topic. */
+        private long lastEventId;
+
+        /** True once the topic has been removed from the hub. Guarded by this Topic. */
+        private boolean removed;
+
+        Topic(String name) {
+            this.name = name;
+        }
+
+        Shard getOrCreateShard(EventLoop eventLoop) {
+            Shard shard = shards.get(eventLoop);
+            if (shard == null) {
+                Shard newShard = new Shard(eventLoop);
+                shard = shards.putIfAbsent(eventLoop, newShard);
+                if (shard == null) {
+                    shard = newShard;
+                }
+            }
+            return shard;
+        }
+
+        /** Append an event to the ring, and queue it for the subscribers. Takes ownership of the content. */
+        synchronized void publish(Event event) {
+            if (removed) {
+                // Lost a race with the removal of the topic, so there is no ring to append the event to
+                event.content.release();
+                return;
+            }
+            lastEventId = event.id;
+            for (Shard shard : shards.values()) {
+                if (!shard.subscribers.isEmpty()) {
+                    event.content.retain();
+                    shard.enqueue(event);
+                }
+            }
+            if (replayEventsPerTopic > 0) {
+                if (ring.size() == replayEventsPerTopic) {
+                    ring.poll().content.release();
+                }
+                ring.add(event);
+            } else {
+                event.content.release();
+            }
+        }
+
+        /**
+         * Add a subscriber, and add the retained events after replayAfterId to the replay list (or none, if
+         * replayAfterId is negative). Returns false if the topic has been removed from the hub.
+         */
+        synchronized boolean subscribe(Channel channel, long replayAfterId, ArrayList<Event> replay) {
+            if (removed) {
+                return false;
+            }
+            if (replayAfterId >= 0L) {
+                for (Event event : ring) {
+                    if (event.id > replayAfterId) {
+                        event.content.retain();
+                        replay.add(event);
+                    }
+                }
+            }
+            getOrCreateShard(channel.eventLoop()).subscribers.put(channel, new Subscriber(channel, lastEventId));
+            return true;
+        }
+
+        /**
+         * Remove a subscriber. A shard with no subscribers left is removed, as is the topic, if it has no shards
+         * left and no events are retained for replay. (Events already queued for the shard are still released by
+         * its pending run.)
+         */
+        synchronized void unsubscribe(Channel channel) {
+            Shard shard = shards.get(channel.eventLoop());
+            if (shard != null && shard.subscribers.remove(channel) != null && shard.subscribers.isEmpty()) {
+                shards.remove(shard.eventLoop, shard);
+                if (shards.isEmpty() && replayEventsPerTopic == 0) {
+                    removed = true;
+                    topics.remove(name, this);
+                }
+            }
+        }
+
+        /** Mark the topic as removed from the hub, and discard the retained events. */
+        synchronized void remove() {
+            removed = true;
+            releaseRing();
+        }
+
+        synchronized void releaseRing() {
+            for (Event event; (event = ring.poll()) != null;) {
+                event.content.release();
+            }
+        }
+    }
+
+    private Topic getOrCreateTopic(String topicName) {
+        Topic topic = topics.get(topicName);
+        if (topic == null) {
+            Topic newTopic = new Topic(topicName);
+            topic = topics.putIfAbsent(topicName, newTopic);
+            if (topic == null) {
+                topic = newTopic;
+            }
+        }
+        return topic;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** The open streams of one event loop, which are sent heartbeats from a task on that event loop. */
+    private static class Heartbeat implements Runnable {
+        final EventLoop eventLoop;
+        final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+
+        Heartbeat(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        @Override
+        public void run() {
+            for (Channel channel : channels) {
+                if (channel.isWritable()) {
+                    channel.writeAndFlush(new DefaultHttpContent(HEARTBEAT.duplicate()), channel.voidPromise());
+                }
+            }
+        }
+    }
+
+    private Heartbeat getOrCreateHeartbeat(EventLoop eventLoop) {
+        Heartbeat heartbeat = heartbeats.get(eventLoop);
+        if (heartbeat == null) {
+            Heartbeat newHeartbeat = new Heartbeat(eventLoop);
+            heartbeat = heartbeats.putIfAbsent(eventLoop, newHeartbeat);
+            if (heartbeat == null) {
+                heartbeat = newHeartbeat;
+            }
+        }
+        return heartbeat;
+    }
+
+    /** Hand the heartbeats off to each event loop, then reschedule. */
+    private final TimerTask heartbeatTask = new TimerTask() {
+        @Override
+        public void run(Timeout timeout) {
+            if (closed) {
+                return;
+            }
+            for (Heartbeat heartbeat : heartbeats.values()) {
+                if (!heartbeat.channels.isEmpty()) {
+                    try {
+                        heartbeat.eventLoop.execute(heartbeat);
+                    } catch (Exception e) {
+                        Log.exception("Could not schedule Server-Sent Events heartbeat", e);
+                    }
+                }
+            }
+            if (!closed) {
+                timer.newTimeout(this, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Subscribe an event stream to topics, once its response headers have been written. Called by
+     * EventStreamResponse. The stream is unsubscribed from the topics when the channel is closed.
+     * 
+     * @param lastEventIdHeader
+     *            The Last-Event-ID header of the request, or null. If it is the id of an event, the retained events
+     *            of the topics that were published after that event are sent first.
+     */
+    public void subscribe(final Channel channel, final String[] topicNames, CharSequence lastEventIdHeader) {
+        final long replayAfterId = parseEventId(lastEventIdHeader);
+        // Subscribing on the channel's event loop orders the replay after the response headers, which may still be
+        // queued for the event loop, and before any live events, which are written from the event loop
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!channel.isActive()) {
+                    return;
+                }
+                ArrayList<Event> replay = new ArrayList<>();
+                final Topic[] subscribedTopics = new Topic[topicNames.length];
+                for (int i = 0; i < topicNames.length; i++) {
+                    Topic topic;
+                    do {
+                        // Retry if the topic was discarded by its last subscriber since it was looked up
+                        topic = getOrCreateTopic(topicNames[i]);
+                    } while (!topic.subscribe(channel, replayAfterId, replay));
+                    subscribedTopics[i] = topic;
+                }
+                if (!replay.isEmpty()) {
+                    Collections.sort(replay, EVENT_ID_ORDER);
+                    for (int i = 0; i < replay.size(); i++) {
+                        Event event = replay.get(i);
+                        channel.write(event.newChunk(), channel.voidPromise());
+                        event.content.release();
+                    }
+                    channel.flush();
+                }
+                final Heartbeat heartbeat = getOrCreateHeartbeat(channel.eventLoop());
+                heartbeat.channels.add(channel);
+                channel.closeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        heartbeat.channels.remove(channel);
+                        for (Topic topic : subscribedTopics) {
+                            topic.unsubscribe(channel);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static long parseEventId(CharSequence lastEventIdHeader) {
+        if (lastEventIdHeader != null) {
+            try {
+                return Long.parseLong(lastEventIdHeader.toString().trim());
+            } catch (NumberFormatException e) {
+                // Not an id from this hub
+            }
+        }
+        return -1L;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Publish an event to all subscribers of a topic, and retain it for replay (if replay is enabled).
+     * 
+     * @param topicName
+     *            The topic.
+     * @param eventType
+     *            The event type, which is dispatched to EventSource listeners for that type, or null for the
+     *            default ("message") type.
+     * @param data
+     *            The event data. Multi-line data is sent as multiple data lines.
+     * @return The id of the event.
+     */
+    public long publish(String topicName, String eventType, String data) {
+        if (eventType != null && (eventType.indexOf('\n') >= 0 || eventType.indexOf('\r') >= 0)) {
+            throw new IllegalArgumentException("Event type cannot contain a line break");
+        }
+        // Without replay, there is nothing to keep for a topic with no subscribers
+        Topic topic = replayEventsPerTopic > 0 ? getOrCreateTopic(topicName) : topics.get(topicName);
+        if (topic == null) {
+            return lastEventId.incrementAndGet();
+        }
+        // The id is assigned (and encoded into the event) while holding the topic lock, so that the events of a
+        // topic are queued in id order
+        synchronized (topic) {
+            long id = lastEventId.incrementAndGet();
+            topic.publish(new Event(id, encode(id, eventType, data)));
+            return id;
+        }
+    }
+
+    /** Publish an event of the default ("message") type to all subscribers of a topic. */
+    public long publish(String topicName, String data) {
+        return publish(topicName, null, data);
+    }
+
+    /** Encode an event straight into a direct buffer. */
+    private static ByteBuf encode(long id, String eventType, String data) {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(ByteBufUtil.utf8MaxBytes(data) + 64);
+        ByteBufUtil.writeAscii(buf, "id: ");
+        ByteBufUtil.writeAscii(buf, Long.toString(id));
+        buf.writeByte('\n');
+        if (eventType != null) {
+            ByteBufUtil.writeAscii(buf, "event: ");
+            ByteBufUtil.writeUtf8(buf, eventType);
+            buf.writeByte('\n');
+        }
+        // Each line of the data needs its own "data:" field. Lines may end in CRLF, CR or LF.
+        int lineStart = 0;
+        for (int i = 0, n = data.length(); i <= n; i++) {
+            char c = i < n ? data.charAt(i) : '\n';
+            if (c == '\n' || c == '\r') {
+                ByteBufUtil.writeAscii(buf, "data: ");
+                // (subSequence() of the whole string, for single-line data, returns the string itself)
+                ByteBufUtil.writeUtf8(buf, data.subSequence(lineStart, i));
+                buf.writeByte('\n');
+                if (c == '\r' && i + 1 < n && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+        }
+        buf.writeByte('\n');
+        return buf;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Remove a topic, unsubscribing all its subscribers and discarding its retained events. */
+    public void removeTopic(String topicName) {
+        Topic topic = topics.remove(topicName);
+        if (topic != null) {
+            topic.remove();
+        }
+    }
+
+    /** Get the number of streams subscribed to a topic. */
+    public int getSubscriberCount(String topicName) {
+        Topic topic = topics.get(topicName);
+        int count = 0;
+        if (topic != null) {
+            for (Shard shard : topic.shards.values()) {
+                count += shard.subscribers.size();
+            }
+        }
+        return count;
+    }
+
+    /** The number of topics the hub is currently keeping. */
+    int getTopicCount() {
+        return topics.size();
+    }
+
+    /** Get the number of streams that were closed because they could not keep up with the events. */
+    public long getSlowConsumerDisconnectCount() {
+        return slowConsumerDisconnects.get();
+    }
+
+    /** Stop sending heartbeats, and discard the retained events. Open streams are not closed. */
+    @Override
+    public void close() {
+        closed = true;
+        if (timer != null) {
+            timer.stop();
+        }
+        for (Topic topic : topics.values()) {
+            topic.releaseRing();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.utils;
+
+/**
+ * Parse primitive and enum values from a range of characters (e.g. a still-escaped query param value within the
+ * request URI) without creating an intermediate String. Malformed or out-of-range values return the default value
+ * rather than throwing an exception.
+ */
+public class ParamParser {
+
+    private static final ClassValue<Object[]> ENUM_CONSTANTS = new ClassValue<Object[]>() {
+        @Override
+        protected Object[] computeValue(Class<?> type) {
+            // Class.getEnumConstants() clones the constants array on every call, so cache it
+            return type.getEnumConstants();
+        }
+    };
+
+    /** Parse a decimal int, with optional leading '-' or '+'. Returns defaultValue if malformed or out of range. */
+    public static int parseInt(CharSequence str, int start, int end, int defaultValue) {
+        long val = parseLong(str, start, end, Long.MIN_VALUE);
+        return val < Integer.MIN_VALUE || val > Integer.MAX_VALUE ? defaultValue : (int) val;
+    }
+
+    /** Parse a decimal long, with optional leading '-' or '+'. Returns defaultValue if malformed or out of range. */
+    public static long parseLong(CharSequence str, int start, int end, long defaultValue) {
+        if (start >= end) {
+            return defaultValue;
+        }
+        boolean negative = false;
+        char c = str.charAt(start);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++start == end) {
+                return defaultValue;
+            }
+        }
+        // Accumulate as a negative number, so that Long.MIN_VALUE can be represented
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multLimit = limit / 10;
+        long val = 0;
+        for (int i = start; i < end; i++) {
+            int digit = str.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || val < multLimit) {
+                return defaultValue;
+            }
+            val *= 10;
+            if (val < limit + digit) {
+                return defaultValue;
+            }
+            val -= digit;
+        }
+        return negative ? val : -val;
+    }
+
+    /** Returns true if the range of the char sequence is equal to the given lowercase ASCII string, ignoring case. */
+    private static boolean equalsIgnoreCase(CharSequence str, int start, int end, String lowercase) {
+        if (end - start != lowercase.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowercase.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a boolean value, accepting "true"/"false", "1"/"0", "on"/"off" and "yes"/"no" (ignoring case). Returns
+     * defaultValue for anything else.
+     */
+    public static boolean parseBoolean(CharSequence str, int start, int end, boolean defaultValue) {
+        if (equalsIgnoreCase(str, start, end, "true") || equalsIgnoreCase(str, start, end, "1")
+                || equalsIgnoreCase(str, start, end, "on") || equalsIgnoreCase(str, start, end, "yes")) {
+            return true;
+        } else if (equalsIgnoreCase(str, start, end, "false") || equalsIgnoreCase(str, start, end, "0")
+                || equalsIgnoreCase(str, start, end, "off") || equalsIgnoreCase(str, start, end, "no")) {
+            return false;
+        } else {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parse an enum value by matching the range of the char sequence against the names of the enum constants,
+     * ignoring case. Returns defaultValue if there is no match.
+     */
+    public static <E extends Enum<E>> E parseEnum(Class<E> enumType, CharSequence str, int start, int end,
+            E defaultValue) {
+        int len = end - start;
+        for (Object constant : ENUM_CONSTANTS.get(enumType)) {
+            String name = ((Enum<?>) constant).name();
+            if (name.length() == len) {
+                boolean matches = true;
+                for (int i = 0; i < len && matches; i++) {
+                    char c1 = str.charAt(start + i), c2 = name.charAt(i);
+                    matches = c1 == c2 || Character.toUpperCase(c1) == Character.toUpperCase(c2);
+                }
+                if (matches) {
+                    return enumType.cast(constant);
+                }
+            }
+        }
+        return defaultValue;
+    }
+}
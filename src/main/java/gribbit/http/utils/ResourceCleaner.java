@@ -0,0 +1,111 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.utils;
+
+import gribbit.http.logging.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A safety net for objects that hold native resources (e.g. open files), in case the owner is never explicitly
+ * closed. Unlike finalize(), registering an object does not make it finalizable, so it does not slow down
+ * allocation or delay reclamation. (This is a simple version of java.lang.ref.Cleaner, which is not available in
+ * Java 8.)
+ * 
+ * The resource must not hold a reference to the owner object, or the owner will never become unreachable.
+ */
+public class ResourceCleaner {
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    /** Keeps the phantom references themselves reachable until they are cleaned. */
+    private static final Set<Cleanable> registered = Collections
+            .newSetFromMap(new ConcurrentHashMap<Cleanable, Boolean>());
+
+    static {
+        Thread thread = new Thread(ResourceCleaner.class.getSimpleName()) {
+            @Override
+            public void run() {
+                for (;;) {
+                    try {
+                        Cleanable cleanable = (Cleanable) queue.remove();
+                        if (cleanable.cleanIfRegistered()) {
+                            Log.warningWithoutCallerRef("Resource was not closed before its owner was garbage "
+                                    + "collected: " + cleanable.resourceDescription);
+                        }
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    } catch (Throwable t) {
+                        Log.exceptionWithoutCallerRef("Exception while closing resource", t);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** A registered resource, which is closed either by calling clean() or once its owner is unreachable. */
+    public static class Cleanable extends PhantomReference<Object> {
+        private final Closeable resource;
+        private final String resourceDescription;
+
+        private Cleanable(Object owner, Closeable resource) {
+            super(owner, queue);
+            this.resource = resource;
+            this.resourceDescription = resource.getClass().getName();
+        }
+
+        private boolean cleanIfRegistered() {
+            if (!registered.remove(this)) {
+                return false;
+            }
+            try {
+                resource.close();
+            } catch (IOException e) {
+            }
+            return true;
+        }
+
+        /** Close the resource now, if it has not already been closed, and unregister it. */
+        public void clean() {
+            cleanIfRegistered();
+            clear();
+        }
+    }
+
+    /** Register a resource to be closed once the owner object becomes unreachable. */
+    public static Cleanable register(Object owner, Closeable resource) {
+        Cleanable cleanable = new Cleanable(owner, resource);
+        registered.add(cleanable);
+        return cleanable;
+    }
+}
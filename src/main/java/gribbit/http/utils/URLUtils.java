@@ -26,71 +26,216 @@
 package gribbit.http.utils;
 
 import gribbit.http.utils.UTF8.UTF8Exception;
+import io.netty.buffer.ByteBuf;
 
 import java.util.Arrays;
 
 public class URLUtils {
 
-    /** Unescape a URL segment, and turn it from UTF-8 bytes into a Java string. */
-    public static String unescapeURLSegment(String str) {
-        boolean hasEscapedChar = false;
-        for (int i = 0; i < str.length(); i++) {
+    /** UNRESERVED[c] is true if ASCII char c can appear unescaped in a URL segment: [A-Za-z0-9\-._] */
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    /** HEX_VALUE[c] is the value of ASCII char c as a hex digit, or -1 if c is not a hex digit. */
+    private static final byte[] HEX_VALUE = new byte[128];
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (int c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['-'] = UNRESERVED['.'] = UNRESERVED['_'] = true;
+
+        Arrays.fill(HEX_VALUE, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUE[Character.forDigit(i, 16)] = (byte) i;
+            HEX_VALUE[Character.toUpperCase(Character.forDigit(i, 16))] = (byte) i;
+        }
+    }
+
+    /**
+     * Returns true if the character (or byte) can appear unescaped in a URL segment. Only the unreserved
+     * characters [A-Za-z0-9\-._] are left unescaped.
+     */
+    public static boolean isUnreservedChar(int c) {
+        return c >= 0 && c < 128 && UNRESERVED[c];
+    }
+
+    /** Return the value of a hex digit, or -1 if the character is not a hex digit. */
+    public static int hexDigitValue(int c) {
+        return c >= 0 && c < 128 ? HEX_VALUE[c] : -1;
+    }
+
+    /** Return the index of the first char in the string that is not unreserved, or -1 if there is none. */
+    private static int indexOfReservedChar(String str) {
+        for (int i = 0, n = str.length(); i < n; i++) {
             char c = str.charAt(i);
-            if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z') && (c < '0' || c > '9') && c != '-' && c != '.'
-                    && c != '_') {
-                hasEscapedChar = true;
-                break;
+            if (c >= 128 || !UNRESERVED[c]) {
+                return i;
             }
         }
-        if (!hasEscapedChar) {
+        return -1;
+    }
+
+    /** Unescape a URL segment, and turn it from UTF-8 bytes into a Java string. */
+    public static String unescapeURLSegment(String str) {
+        int firstReserved = indexOfReservedChar(str);
+        if (firstReserved < 0) {
             return str;
-        } else {
-            byte[] buf = new byte[str.length()];
-            int bufIdx = 0;
-            for (int segIdx = 0, nSeg = str.length(); segIdx < nSeg; segIdx++) {
-                char c = str.charAt(segIdx);
-                if (c == '%') {
-                    // Decode %-escaped char sequence, e.g. %5D
-                    if (segIdx > nSeg - 3) {
-                        // Ignore truncated %-seq at end of string
-                    } else {
-                        char c1 = str.charAt(++segIdx);
-                        int digit1 = c1 >= '0' && c1 <= '9' ? (c1 - '0') : c1 >= 'a' && c1 <= 'f' ? (c1 - 'a' + 10)
-                                : c1 >= 'A' && c1 <= 'F' ? (c1 - 'A' + 10) : -1;
-                        char c2 = str.charAt(++segIdx);
-                        int digit2 = c2 >= '0' && c2 <= '9' ? (c2 - '0') : c2 >= 'a' && c2 <= 'f' ? (c2 - 'a' + 10)
-                                : c2 >= 'A' && c2 <= 'F' ? (c2 - 'A' + 10) : -1;
-                        if (digit1 < 0 || digit2 < 0) {
-                            // Ignore invalid %-sequence
-                        } else {
-                            buf[bufIdx++] = (byte) ((digit1 << 4) | digit2);
-                        }
-                    }
-                } else if (c <= 0x7f) {
-                    buf[bufIdx++] = (byte) c;
-                } else {
-                    // Ignore invalid chars
+        }
+        byte[] buf = new byte[str.length()];
+        int bufIdx = 0;
+        for (int i = 0; i < firstReserved; i++) {
+            buf[bufIdx++] = (byte) str.charAt(i);
+        }
+        for (int segIdx = firstReserved, nSeg = str.length(); segIdx < nSeg; segIdx++) {
+            char c = str.charAt(segIdx);
+            if (c == '%') {
+                // Decode %-escaped char sequence, e.g. %5D
+                if (segIdx > nSeg - 3) {
+                    // Ignore truncated %-seq at end of string
+                    continue;
                 }
+                int digit1 = hexDigitValue(str.charAt(++segIdx));
+                int digit2 = hexDigitValue(str.charAt(++segIdx));
+                if (digit1 >= 0 && digit2 >= 0) {
+                    buf[bufIdx++] = (byte) ((digit1 << 4) | digit2);
+                }
+                // else ignore invalid %-sequence
+            } else if (c < 128) {
+                buf[bufIdx++] = (byte) c;
             }
-            if (bufIdx < buf.length) {
-                buf = Arrays.copyOf(buf, bufIdx);
-            }
-            try {
-                return UTF8.utf8ToString(buf);
-            } catch (UTF8Exception e) {
-                throw new RuntimeException(e);
-            }
+            // else ignore invalid chars
+        }
+        try {
+            return UTF8.utf8ToString(buf, 0, bufIdx);
+        } catch (UTF8Exception e) {
+            throw new RuntimeException(e);
         }
     }
 
     // -----------------------------------------------------------------------------------------------------
 
-    /** Encode unsafe characters using %-encoding */
-    private static void percentEncode(StringBuilder buf, char c) {
+    /** Encode an unsafe byte using %-encoding */
+    public static void percentEncode(StringBuilder buf, int c) {
+        buf.append('%');
+        buf.append(HEX_DIGITS[(c >> 4) & 0xf]);
+        buf.append(HEX_DIGITS[c & 0xf]);
+    }
+
+    /** Encode an unsafe byte using %-encoding */
+    public static void percentEncode(ByteBuf buf, int c) {
+        buf.writeByte('%');
+        buf.writeByte(HEX_DIGITS[(c >> 4) & 0xf]);
+        buf.writeByte(HEX_DIGITS[c & 0xf]);
+    }
+
+    /**
+     * The destination of escaped chars, so that escaping is implemented once for both StringBuilder and ByteBuf.
+     * (Escaped chars are all ASCII, so writing each char as a byte is the same as UTF-8 encoding it.)
+     */
+    private interface EscapedCharSink {
+        void append(char c);
+    }
+
+    private static final class StringBuilderSink implements EscapedCharSink {
+        private final StringBuilder buf;
+
+        StringBuilderSink(StringBuilder buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public void append(char c) {
+            buf.append(c);
+        }
+    }
+
+    private static final class ByteBufSink implements EscapedCharSink {
+        private final ByteBuf buf;
+
+        ByteBufSink(ByteBuf buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public void append(char c) {
+            buf.writeByte(c);
+        }
+    }
+
+    /** Encode an unsafe byte using %-encoding */
+    private static void percentEncode(EscapedCharSink buf, int c) {
         buf.append('%');
-        int b1 = ((c & 0xf0) >> 4), b2 = c & 0x0f;
-        buf.append((char) (b1 <= 9 ? '0' + b1 : 'a' + b1 - 10));
-        buf.append((char) (b2 <= 9 ? '0' + b2 : 'a' + b2 - 10));
+        buf.append(HEX_DIGITS[(c >> 4) & 0xf]);
+        buf.append(HEX_DIGITS[c & 0xf]);
+    }
+
+    /**
+     * Get the code point at index i of the string, or '?' if the char at i is an unpaired surrogate (which is how
+     * String.getBytes() encodes unpaired surrogates).
+     */
+    private static int codePointAt(String str, int i) {
+        char c = str.charAt(i);
+        if (Character.isHighSurrogate(c)) {
+            if (i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                return Character.toCodePoint(c, str.charAt(i + 1));
+            }
+            return '?';
+        }
+        return Character.isLowSurrogate(c) ? '?' : c;
+    }
+
+    /**
+     * Percent-encode the UTF-8 bytes of a non-ASCII char at index i of the string, and return the index of the
+     * last char consumed (surrogate pairs consume two chars).
+     */
+    private static int percentEncodeNonASCII(String str, int i, EscapedCharSink buf) {
+        int cp = codePointAt(str, i);
+        if (cp < 0x80) {
+            percentEncode(buf, cp);
+        } else if (cp < 0x800) {
+            percentEncode(buf, 0xc0 | (cp >> 6));
+            percentEncode(buf, 0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            percentEncode(buf, 0xe0 | (cp >> 12));
+            percentEncode(buf, 0x80 | ((cp >> 6) & 0x3f));
+            percentEncode(buf, 0x80 | (cp & 0x3f));
+        } else {
+            percentEncode(buf, 0xf0 | (cp >> 18));
+            percentEncode(buf, 0x80 | ((cp >> 12) & 0x3f));
+            percentEncode(buf, 0x80 | ((cp >> 6) & 0x3f));
+            percentEncode(buf, 0x80 | (cp & 0x3f));
+            return i + 1;
+        }
+        return i;
+    }
+
+    /**
+     * Escape chars from index start onwards. Non-ASCII chars are converted to UTF-8 on the fly, and spaces are
+     * escaped as '+' if spaceAsPlus is true.
+     */
+    private static void escape(String str, int start, boolean spaceAsPlus, EscapedCharSink buf) {
+        for (int i = start, n = str.length(); i < n; i++) {
+            char c = str.charAt(i);
+            if (c < 128) {
+                if (UNRESERVED[c]) {
+                    buf.append(c);
+                } else if (c == ' ' && spaceAsPlus) {
+                    buf.append('+');
+                } else {
+                    percentEncode(buf, c);
+                }
+            } else {
+                i = percentEncodeNonASCII(str, i, buf);
+            }
+        }
     }
 
     // Valid URL characters: see
@@ -99,28 +244,21 @@ public class URLUtils {
     // http://goo.gl/QFk9R7
 
     /**
-     * Convert a single URL segment (between slashes) to UTF-8, then encode any unsafe bytes.
+     * Convert a single URL segment (between slashes) to UTF-8, then encode any unsafe bytes. Returns the same
+     * string if no chars need escaping.
      */
     public static String escapeURLSegment(String str) {
         if (str == null) {
             return str;
         }
-        boolean hasEscapedChar = false;
-        for (int i = 0; i < str.length(); i++) {
-            char c = str.charAt(i);
-            if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z') && (c < '0' || c > '9') && c != '-' && c != '.'
-                    && c != '_') {
-                hasEscapedChar = true;
-                break;
-            }
-        }
-        if (hasEscapedChar) {
-            StringBuilder buf = new StringBuilder(str.length() * 4);
-            escapeURLSegment(str, buf);
-            return buf.toString();
-        } else {
+        int firstReserved = indexOfReservedChar(str);
+        if (firstReserved < 0) {
             return str;
         }
+        StringBuilder buf = new StringBuilder(str.length() + 16);
+        buf.append(str, 0, firstReserved);
+        escape(str, firstReserved, false, new StringBuilderSink(buf));
+        return buf.toString();
     }
 
     /**
@@ -130,16 +268,18 @@ public class URLUtils {
         if (str == null) {
             return;
         }
-        byte[] utf8Bytes = UTF8.stringToUTF8(str);
-        for (int i = 0; i < utf8Bytes.length; i++) {
-            char c = (char) utf8Bytes[i];
-            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') //
-                    || c == '-' || c == '.' || c == '_') {
-                buf.append(c);
-            } else {
-                percentEncode(buf, c);
-            }
+        escape(str, 0, false, new StringBuilderSink(buf));
+    }
+
+    /**
+     * Convert a single URL segment (between slashes) to UTF-8, then encode any unsafe bytes, writing the result
+     * directly into a ByteBuf (e.g. for writing a Location header or a link into a response body).
+     */
+    public static void escapeURLSegment(String str, ByteBuf buf) {
+        if (str == null) {
+            return;
         }
+        escape(str, 0, false, new ByteBufSink(buf));
     }
 
     /**
@@ -157,7 +297,15 @@ public class URLUtils {
         if (str == null) {
             return;
         }
-        escapeURLSegment(str.indexOf(' ') >= 0 ? str.replace(' ', '+') : str, buf);
+        escape(str, 0, true, new StringBuilderSink(buf));
+    }
+
+    /** ByteBuf version of escapeQueryParamVal(). */
+    public static void escapeQueryParamVal(String str, ByteBuf buf) {
+        if (str == null) {
+            return;
+        }
+        escape(str, 0, true, new ByteBufSink(buf));
     }
 
     public static void escapeQueryParamKeyVal(String key, String val, StringBuilder buf) {
@@ -35,6 +35,7 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 
 public class UTF8 {
     private static final int UTF8_ACCEPT = 0;
@@ -60,7 +61,7 @@ public class UTF8 {
 
     private final StringBuilder stringBuilder = new StringBuilder();
 
-    public class UTF8Exception extends UnsupportedEncodingException {
+    public static class UTF8Exception extends UnsupportedEncodingException {
         private static final long serialVersionUID = 1L;
 
         public UTF8Exception(String reason) {
@@ -73,8 +74,39 @@ public class UTF8 {
     }
 
     public void append(byte[] bytes) throws UTF8Exception {
-        for (int i = 0; i < bytes.length; i++) {
-            append(bytes[i]);
+        append(bytes, 0, bytes.length);
+    }
+
+    /** Append a range of bytes. ASCII bytes outside a multi-byte sequence bypass the state machine. */
+    public void append(byte[] bytes, int off, int len) throws UTF8Exception {
+        stringBuilder.ensureCapacity(stringBuilder.length() + len);
+        for (int i = off, end = off + len; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= 0 && state == UTF8_ACCEPT) {
+                stringBuilder.append((char) b);
+            } else {
+                append(b);
+            }
+        }
+    }
+
+    /**
+     * Append the readable bytes of a ByteBuf, without changing its reader index, e.g. each fragment of a fragmented
+     * WebSocket text message.
+     */
+    public void append(ByteBuf buf) throws UTF8Exception {
+        if (buf.hasArray()) {
+            append(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+        } else {
+            stringBuilder.ensureCapacity(stringBuilder.length() + buf.readableBytes());
+            for (int i = buf.readerIndex(), end = buf.writerIndex(); i < end; i++) {
+                byte b = buf.getByte(i);
+                if (b >= 0 && state == UTF8_ACCEPT) {
+                    stringBuilder.append((char) b);
+                } else {
+                    append(b);
+                }
+            }
         }
     }
 
@@ -109,12 +141,142 @@ public class UTF8 {
         }
     }
 
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Mask of the high bit of each byte in a long. A word of ASCII bytes has none of these bits set. */
+    private static final long NON_ASCII_MASK = 0x8080808080808080L;
+
     public static String utf8ToString(byte[] bytes) throws UTF8Exception {
-        UTF8 decoder = new UTF8();
-        decoder.append(bytes);
-        return decoder.getStringAndRecycle();
+        return utf8ToString(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode a range of UTF-8 bytes. ASCII runs are found and copied 8 bytes at a time, and the state machine is
+     * only used for multi-byte sequences.
+     */
+    public static String utf8ToString(byte[] bytes, int off, int len) throws UTF8Exception {
+        int end = off + len;
+
+        // Find the end of the leading ASCII run, which for most strings in HTTP requests is the whole string
+        int i = off;
+        while (i + 8 <= end && (bytes[i] | bytes[i + 1] | bytes[i + 2] | bytes[i + 3] | bytes[i + 4] | bytes[i + 5]
+                | bytes[i + 6] | bytes[i + 7]) >= 0) {
+            i += 8;
+        }
+        while (i < end && bytes[i] >= 0) {
+            i++;
+        }
+        if (i == end) {
+            // ASCII is a subset of ISO-8859-1, which the String constructor can decode with a straight copy
+            return new String(bytes, off, len, StandardCharsets.ISO_8859_1);
+        }
+
+        // A UTF-8 string never has more UTF-16 chars than bytes
+        char[] chars = new char[len];
+        int n = 0;
+        for (int j = off; j < i; j++) {
+            chars[n++] = (char) bytes[j];
+        }
+        int state = UTF8_ACCEPT, codep = 0;
+        while (i < end) {
+            if (state == UTF8_ACCEPT) {
+                while (i + 8 <= end && (bytes[i] | bytes[i + 1] | bytes[i + 2] | bytes[i + 3] | bytes[i + 4]
+                        | bytes[i + 5] | bytes[i + 6] | bytes[i + 7]) >= 0) {
+                    for (int j = 0; j < 8; j++) {
+                        chars[n++] = (char) bytes[i++];
+                    }
+                }
+                while (i < end && bytes[i] >= 0) {
+                    chars[n++] = (char) bytes[i++];
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+            int b = bytes[i++];
+            int type = TYPES[b & 0xFF];
+            codep = (state != UTF8_ACCEPT) ? (b & 0x3f) | (codep << 6) : (0xff >> type) & b;
+            state = STATES[state + type];
+            if (state == UTF8_ACCEPT) {
+                n = appendCodePoint(codep, chars, n);
+            } else if (state == UTF8_REJECT) {
+                throw new UTF8Exception("bytes are not UTF-8");
+            }
+        }
+        if (state != UTF8_ACCEPT) {
+            throw new UTF8Exception("bytes are not UTF-8");
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Decode the readable bytes of a ByteBuf, without changing its reader index, e.g. the content of a
+     * TextWebSocketFrame.
+     */
+    public static String utf8ToString(ByteBuf buf) throws UTF8Exception {
+        return utf8ToString(buf, buf.readerIndex(), buf.readableBytes());
     }
 
+    /**
+     * Decode a range of UTF-8 bytes in a ByteBuf, without changing its reader index. Heap buffers are decoded
+     * directly from the backing array; direct buffers are decoded in place, reading a long at a time for ASCII runs,
+     * rather than being copied to a byte[] first.
+     */
+    public static String utf8ToString(ByteBuf buf, int index, int len) throws UTF8Exception {
+        if (buf.hasArray()) {
+            return utf8ToString(buf.array(), buf.arrayOffset() + index, len);
+        }
+        int end = index + len;
+        char[] chars = new char[len];
+        int n = 0;
+        int state = UTF8_ACCEPT, codep = 0;
+        for (int i = index; i < end;) {
+            if (state == UTF8_ACCEPT) {
+                long word;
+                while (i + 8 <= end && ((word = buf.getLong(i)) & NON_ASCII_MASK) == 0) {
+                    // getLong() is big-endian, so the first byte is in the top 8 bits
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        chars[n++] = (char) ((word >>> shift) & 0x7f);
+                    }
+                    i += 8;
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+            int b = buf.getByte(i++);
+            if (b >= 0 && state == UTF8_ACCEPT) {
+                chars[n++] = (char) b;
+                continue;
+            }
+            int type = TYPES[b & 0xFF];
+            codep = (state != UTF8_ACCEPT) ? (b & 0x3f) | (codep << 6) : (0xff >> type) & b;
+            state = STATES[state + type];
+            if (state == UTF8_ACCEPT) {
+                n = appendCodePoint(codep, chars, n);
+            } else if (state == UTF8_REJECT) {
+                throw new UTF8Exception("bytes are not UTF-8");
+            }
+        }
+        if (state != UTF8_ACCEPT) {
+            throw new UTF8Exception("bytes are not UTF-8");
+        }
+        return new String(chars, 0, n);
+    }
+
+    /** Write a code point decoded by the state machine as one or two UTF-16 chars, and return the new position. */
+    private static int appendCodePoint(int codep, char[] chars, int n) {
+        if (codep < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            chars[n++] = (char) codep;
+        } else {
+            chars[n++] = Character.highSurrogate(codep);
+            chars[n++] = Character.lowSurrogate(codep);
+        }
+        return n;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
     public static byte[] stringToUTF8(String str) {
         try {
             return str.getBytes("UTF-8");
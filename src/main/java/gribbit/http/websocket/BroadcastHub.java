@@ -0,0 +1,364 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes WebSocket messages to named topics, for pushing the same message to a large number of sockets.
+ * 
+ * Subscribers of each topic are sharded by event loop, with one ChannelGroup per event loop. A published message
+ * is encoded once into a direct buffer, then each shard writes a retained duplicate of the buffer to each of its
+ * subscribers from the subscribers' own event loop (so no per-channel write task is created). Messages published
+ * while a shard is busy are written together, with one flush per subscriber. Messages for subscribers whose
+ * channel is not writable (i.e. whose outbound buffer is above the high water mark) are handled by the
+ * subscriber's SlowConsumerPolicy, if its WebSocketHandler chose one other than BUFFER; otherwise they are skipped,
+ * and the message is dropped for that subscriber, so that the hub never queues messages without bound.
+ * 
+ * If the hub is created with shared compression settings, each message of at least the minimum compression size
+ * is also compressed once, and the compressed copy is sent to the subscribers that negotiated permessage-deflate
+ * with server_no_context_takeover. (Other subscribers are sent the uncompressed message, which their own
+ * connection compresses if it negotiated permessage-deflate with context takeover.)
+ * 
+ * Closed channels are removed from all topics automatically. A topic exists only while it has subscribers: it is
+ * discarded when its last subscriber unsubscribes or is closed, and publishing to a topic with no subscribers
+ * does nothing. Typically a WebSocketHandler subscribes
+ * ctx.channel() to a topic when it receives a subscription message from the client.
+ */
+public class BroadcastHub {
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private final WebSocketCompressionSettings sharedCompression;
+
+    /** Create a hub that sends every subscriber uncompressed messages. */
+    public BroadcastHub() {
+        this(null);
+    }
+
+    /**
+     * Create a hub that compresses each message once for all subscribers that accept shared compressed messages,
+     * using the compression level and minimum message size of the given settings. Each thread that publishes to
+     * the hub keeps a Deflater for compressing messages (see WebSocketCompression.compressMessage()), so publish
+     * from a bounded set of threads.
+     */
+    public BroadcastHub(WebSocketCompressionSettings sharedCompression) {
+        this.sharedCompression = sharedCompression;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** A message that has been encoded (and optionally compressed) once, and is shared by all subscribers. */
+    private static class EncodedMessage {
+        final ByteBuf content;
+        final ByteBuf compressedContent;
+        final boolean binary;
+
+        EncodedMessage(ByteBuf content, ByteBuf compressedContent, boolean binary) {
+            this.content = content;
+            this.compressedContent = compressedContent;
+            this.binary = binary;
+        }
+
+        WebSocketFrame newFrame(Channel channel) {
+            // The duplicate shares the content, but has its own reader index, since each write consumes it
+            if (compressedContent != null && WebSocketCompression.acceptsSharedCompressedFrames(channel)) {
+                return WebSocketCompression.newCompressedFrame(compressedContent.duplicate().retain(), binary);
+            }
+            ByteBuf duplicate = content.duplicate().retain();
+            return binary ? new BinaryWebSocketFrame(duplicate) : new TextWebSocketFrame(duplicate);
+        }
+
+        void retain() {
+            content.retain();
+            if (compressedContent != null) {
+                compressedContent.retain();
+            }
+        }
+
+        void release() {
+            content.release();
+            if (compressedContent != null) {
+                compressedContent.release();
+            }
+        }
+    }
+
+    /** The subscribers of a topic that are registered with the same event loop. */
+    private class Shard implements Runnable {
+        private final Topic topic;
+        private final EventLoop eventLoop;
+        private final ChannelGroup channels;
+        private final ConcurrentLinkedQueue<EncodedMessage> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /** Unsubscribes closed channels. */
+        private final ChannelFutureListener remover = new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                topic.unsubscribe(future.channel());
+            }
+        };
+
+        Shard(Topic topic, EventLoop eventLoop) {
+            this.topic = topic;
+            this.eventLoop = eventLoop;
+            this.channels = new DefaultChannelGroup(topic.name, eventLoop);
+        }
+
+        /** Queue a message to be written. Takes ownership of one reference to the message content. */
+        void enqueue(EncodedMessage message) {
+            pending.add(message);
+            if (scheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this);
+            }
+        }
+
+        /** Write all pending messages to all subscribers. Runs on the shard's event loop. */
+        @Override
+        public void run() {
+            // Clear the flag first, so that a message enqueued during the run schedules another run
+            scheduled.set(false);
+            ArrayList<EncodedMessage> batch = new ArrayList<>();
+            for (EncodedMessage message; (message = pending.poll()) != null;) {
+                batch.add(message);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                long dropped = 0;
+                for (Channel channel : channels) {
+                    // A SlowConsumerHandler applies its own policy (drop, coalesce or disconnect) to frames
+                    // written while the channel is not writable
+                    boolean hasPolicy = SlowConsumerHandler.isInstalled(channel);
+                    boolean written = false;
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (hasPolicy || channel.isWritable()) {
+                            channel.write(batch.get(i).newFrame(channel), channel.voidPromise());
+                            written = true;
+                        } else {
+                            dropped++;
+                        }
+                    }
+                    if (written) {
+                        channel.flush();
+                    }
+                }
+                if (dropped > 0) {
+                    droppedFrames.addAndGet(dropped);
+                }
+            } finally {
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).release();
+                }
+            }
+        }
+    }
+
+    /** The subscribers of a topic, sharded by event loop. */
+    private class Topic {
+        private final String name;
+        private final ConcurrentHashMap<EventLoop, Shard> shards = new ConcurrentHashMap<>();
+
+        /** True once the topic has been removed from the hub. Guarded by this Topic. */
+        private boolean removed;
+
+        Topic(String name) {
+            this.name = name;
+        }
+
+        /** Add a subscriber. Returns false if the topic has been removed from the hub. */
+        synchronized boolean subscribe(Channel channel) {
+            if (removed) {
+                return false;
+            }
+            EventLoop eventLoop = channel.eventLoop();
+            Shard shard = shards.get(eventLoop);
+            if (shard == null) {
+                shard = new Shard(this, eventLoop);
+                shards.put(eventLoop, shard);
+            }
+            if (shard.channels.add(channel)) {
+                channel.closeFuture().addListener(shard.remover);
+            }
+            return true;
+        }
+
+        /**
+         * Remove a subscriber. A shard with no subscribers left is removed, and so is the topic once it has no shards
+         * left. (Messages already queued for the shard are still released by its pending run.)
+         */
+        synchronized void unsubscribe(Channel channel) {
+            Shard shard = shards.get(channel.eventLoop());
+            if (shard == null) {
+                return;
+            }
+            if (shard.channels.remove(channel)) {
+                channel.closeFuture().removeListener(shard.remover);
+            }
+            if (shard.channels.isEmpty()) {
+                shards.remove(shard.eventLoop, shard);
+                if (shards.isEmpty()) {
+                    removed = true;
+                    topics.remove(name, this);
+                }
+            }
+        }
+
+        synchronized void remove() {
+            removed = true;
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Subscribe a WebSocket channel to a topic. */
+    public void subscribe(String topicName, Channel channel) {
+        // Retry if the topic was discarded by its last subscriber since it was looked up
+        for (;;) {
+            Topic topic = topics.get(topicName);
+            if (topic == null) {
+                Topic newTopic = new Topic(topicName);
+                topic = topics.putIfAbsent(topicName, newTopic);
+                if (topic == null) {
+                    topic = newTopic;
+                }
+            }
+            if (topic.subscribe(channel)) {
+                return;
+            }
+        }
+    }
+
+    /** Unsubscribe a WebSocket channel from a topic. */
+    public void unsubscribe(String topicName, Channel channel) {
+        Topic topic = topics.get(topicName);
+        if (topic != null) {
+            topic.unsubscribe(channel);
+        }
+    }
+
+    /** Remove a topic, unsubscribing all its subscribers. */
+    public void removeTopic(String topicName) {
+        Topic topic = topics.remove(topicName);
+        if (topic != null) {
+            topic.remove();
+        }
+    }
+
+    /** Get the number of subscribers of a topic. */
+    public int getSubscriberCount(String topicName) {
+        Topic topic = topics.get(topicName);
+        int count = 0;
+        if (topic != null) {
+            for (Shard shard : topic.shards.values()) {
+                count += shard.channels.size();
+            }
+        }
+        return count;
+    }
+
+    /** The number of topics the hub is currently keeping. */
+    int getTopicCount() {
+        return topics.size();
+    }
+
+    /**
+     * Get the total number of frames that the hub did not write because the subscriber's channel was not
+     * writable. (Frames dropped by a subscriber's SlowConsumerHandler are counted in Metrics instead.)
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames.get();
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Publish a message to the subscribers of a topic. Takes ownership of the message content. */
+    private void publish(String topicName, ByteBuf content, boolean binary) {
+        EncodedMessage message = null;
+        try {
+            Topic topic = topics.get(topicName);
+            if (topic != null) {
+                message = new EncodedMessage(content, compress(content), binary);
+                for (Shard shard : topic.shards.values()) {
+                    if (!shard.channels.isEmpty()) {
+                        message.retain();
+                        shard.enqueue(message);
+                    }
+                }
+            }
+        } finally {
+            if (message != null) {
+                message.release();
+            } else {
+                content.release();
+            }
+        }
+    }
+
+    /** Compress a message for sharing between subscribers, or return null if it should not be compressed. */
+    private ByteBuf compress(ByteBuf content) {
+        if (sharedCompression == null || content.readableBytes() < sharedCompression.getMinCompressBytes()) {
+            return null;
+        }
+        return WebSocketCompression.compressMessage(content, sharedCompression.getCompressionLevel());
+    }
+
+    /** Publish a text message to all subscribers of a topic. The message is UTF-8 encoded once. */
+    public void publishText(String topicName, String text) {
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(ByteBufUtil.utf8MaxBytes(text));
+        ByteBufUtil.writeUtf8(content, text);
+        publish(topicName, content, false);
+    }
+
+    /**
+     * Publish a binary message to all subscribers of a topic. Takes ownership of the buffer, which is released once
+     * the message has been written to all subscribers. (Use a direct buffer, so that it is not copied for each
+     * subscriber when written to the socket.)
+     */
+    public void publishBinary(String topicName, ByteBuf content) {
+        publish(topicName, content, true);
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import gribbit.http.logging.Log;
+import gribbit.http.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+
+import java.util.logging.Level;
+
+/**
+ * Applies a SlowConsumerPolicy to WebSocket data frames written while the channel is not writable. Added to the
+ * pipeline in front of the request decoder when a connection is upgraded to a WebSocket, so that it sees frames
+ * written by WebSocketHandlers and by BroadcastHub.
+ * 
+ * Frames that are dropped, superseded or discarded on disconnect are released, and their write promise succeeds
+ * (failing it would be reported to the pipeline as an exception for void promises). Fragmented messages are
+ * dropped or written as a whole, so that a client never receives part of a message.
+ */
+public class SlowConsumerHandler extends ChannelHandlerAdapter {
+    public static final String NAME_IN_PIPELINE = SlowConsumerHandler.class.getSimpleName();
+
+    private final SlowConsumerPolicy policy;
+
+    /** Set on channels that have a SlowConsumerHandler, so BroadcastHub can check without a pipeline lookup. */
+    private static final AttributeKey<Boolean> HAS_SLOW_CONSUMER_HANDLER = AttributeKey.valueOf(
+            SlowConsumerHandler.class, "HAS_SLOW_CONSUMER_HANDLER");
+
+    /** For COALESCE_LATEST: the latest frame written while the channel was not writable, and its promise. */
+    private WebSocketFrame coalescedFrame;
+    private ChannelPromise coalescedPromise;
+
+    /** True if the first fragment of the current fragmented message was written, false if it was dropped. */
+    private boolean writingFragmentedMessage;
+
+    /** True once the DISCONNECT policy has closed the channel. */
+    private boolean disconnected;
+
+    public SlowConsumerHandler(SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+
+    /** Returns true if the channel has a SlowConsumerHandler, i.e. if it applies a policy other than BUFFER. */
+    public static boolean isInstalled(Channel channel) {
+        // The attribute is set to null, rather than removed, when the handler is removed
+        return channel.hasAttr(HAS_SLOW_CONSUMER_HANDLER) && channel.attr(HAS_SLOW_CONSUMER_HANDLER).get() != null;
+    }
+
+    private static boolean isControlFrame(Object msg) {
+        return msg instanceof CloseWebSocketFrame || msg instanceof PingWebSocketFrame
+                || msg instanceof PongWebSocketFrame;
+    }
+
+    private static void discard(WebSocketFrame frame, ChannelPromise promise) {
+        frame.release();
+        promise.trySuccess();
+        Metrics.webSocketFrameDropped();
+    }
+
+    private void discardCoalescedFrame() {
+        if (coalescedFrame != null) {
+            discard(coalescedFrame, coalescedPromise);
+            coalescedFrame = null;
+            coalescedPromise = null;
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof WebSocketFrame) || isControlFrame(msg) || policy == SlowConsumerPolicy.BUFFER) {
+            ctx.write(msg, promise);
+            return;
+        }
+        WebSocketFrame frame = (WebSocketFrame) msg;
+        if (frame instanceof ContinuationWebSocketFrame) {
+            // Continuation frames follow the fate of the first fragment of the message
+            if (writingFragmentedMessage) {
+                ctx.write(frame, promise);
+            } else {
+                discard(frame, promise);
+            }
+            return;
+        }
+        boolean fragmented = !frame.isFinalFragment();
+        if (ctx.channel().isWritable()) {
+            // A newer message supersedes any coalesced message
+            discardCoalescedFrame();
+            writingFragmentedMessage = fragmented;
+            ctx.write(frame, promise);
+            return;
+        }
+
+        // Channel is not writable -- apply the slow consumer policy
+        writingFragmentedMessage = false;
+        switch (policy) {
+        case DROP:
+            discard(frame, promise);
+            break;
+        case COALESCE_LATEST:
+            discardCoalescedFrame();
+            if (fragmented) {
+                // Only whole messages can be held back
+                discard(frame, promise);
+            } else {
+                coalescedFrame = frame;
+                coalescedPromise = promise;
+            }
+            break;
+        case DISCONNECT:
+        default:
+            discard(frame, promise);
+            if (!disconnected) {
+                disconnected = true;
+                Metrics.slowConsumerDisconnected();
+                if (Log.isLoggable(Level.FINE)) {
+                    Log.fine("Closing WebSocket to slow consumer " + ctx.channel().remoteAddress());
+                }
+                ctx.close();
+            }
+            break;
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (coalescedFrame != null && ctx.channel().isWritable()) {
+            WebSocketFrame frame = coalescedFrame;
+            ChannelPromise promise = coalescedPromise;
+            coalescedFrame = null;
+            coalescedPromise = null;
+            ctx.writeAndFlush(frame, promise);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        discardCoalescedFrame();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().attr(HAS_SLOW_CONSUMER_HANDLER).set(Boolean.TRUE);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().attr(HAS_SLOW_CONSUMER_HANDLER).set(null);
+        discardCoalescedFrame();
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+/**
+ * What to do with a WebSocket data frame that is written while the channel is not writable, i.e. while more than
+ * the high water mark of outbound data is waiting to be sent, because the client is not reading fast enough.
+ * Control frames (close, ping and pong) are always written.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Queue the frame anyway. The outbound buffer can grow without bound, so this is only suitable if the handler
+     * checks Channel.isWritable() or implements WebSocketHandler.writabilityChanged() itself.
+     */
+    BUFFER,
+
+    /** Discard the frame. Suitable for messages that are superseded by later messages anyway. */
+    DROP,
+
+    /**
+     * Keep only the latest frame, and write it once the channel becomes writable again. Suitable for state updates
+     * where the client only needs the most recent state.
+     */
+    COALESCE_LATEST,
+
+    /** Close the connection. Suitable when every message matters, and the client can reconnect and resync. */
+    DISCONNECT;
+}
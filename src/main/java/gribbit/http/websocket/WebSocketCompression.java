@@ -0,0 +1,245 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import static io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension.RSV1;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Negotiates the permessage-deflate WebSocket extension (RFC 7692) for a WebSocket upgrade, according to the
+ * WebSocketCompressionSettings of the WebSocketHandler, and installs the compressor and decompressor once the
+ * connection has been upgraded.
+ * 
+ * Also compresses messages once for sending to many connections (see BroadcastHub). A message compressed on its
+ * own can only be sent to connections that negotiated server_no_context_takeover, since on other connections the
+ * client decompresses each message using the previous messages as the dictionary.
+ */
+public class WebSocketCompression {
+    private final WebSocketCompressionSettings settings;
+    private final boolean serverNoContextTakeover;
+    private final String responseHeader;
+
+    public static final String EXTENSION_NAME = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+    /** Set on channels that accept messages compressed by compressMessage(). */
+    private static final AttributeKey<Boolean> ACCEPTS_SHARED_COMPRESSED_FRAMES = AttributeKey
+            .valueOf(WebSocketCompression.class, "ACCEPTS_SHARED_COMPRESSED_FRAMES");
+
+    private static final String ENCODER_NAME = WebSocketDeflateEncoder.class.getSimpleName();
+    private static final String DECODER_NAME = WebSocketDeflateDecoder.class.getSimpleName();
+
+    private WebSocketCompression(WebSocketCompressionSettings settings, boolean serverNoContextTakeover,
+            String responseHeader) {
+        this.settings = settings;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.responseHeader = responseHeader;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Choose the first permessage-deflate offer in the Sec-WebSocket-Extensions header of an upgrade request that
+     * is compatible with the settings.
+     * 
+     * @return The negotiated compression, or null if compression is disabled (settings is null), the client did
+     *         not offer permessage-deflate, or none of the offers were acceptable.
+     */
+    public static WebSocketCompression negotiate(WebSocketCompressionSettings settings, CharSequence extensionsHeader) {
+        if (settings == null || extensionsHeader == null) {
+            return null;
+        }
+        for (String offer : extensionsHeader.toString().split(",")) {
+            WebSocketCompression compression = negotiateOffer(settings, offer.split(";"));
+            if (compression != null) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /** Accept or decline one extension offer, given as the extension name followed by its parameters. */
+    private static WebSocketCompression negotiateOffer(WebSocketCompressionSettings settings, String[] offer) {
+        if (!offer[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+            return null;
+        }
+        boolean serverNoContextTakeover = settings.getServerNoContextTakeover();
+        int clientMaxWindowBits = 15;
+        HashSet<String> paramNames = new HashSet<>();
+        for (int i = 1; i < offer.length; i++) {
+            String param = offer[i].trim();
+            int eqIdx = param.indexOf('=');
+            String name = (eqIdx < 0 ? param : param.substring(0, eqIdx)).trim().toLowerCase(Locale.ROOT);
+            String value = eqIdx < 0 ? null : unquote(param.substring(eqIdx + 1).trim());
+            if (!paramNames.add(name)) {
+                // Duplicate parameters invalidate the offer
+                return null;
+            }
+            switch (name) {
+            case SERVER_NO_CONTEXT_TAKEOVER:
+                serverNoContextTakeover = true;
+                break;
+            case CLIENT_NO_CONTEXT_TAKEOVER:
+                // The client supports it -- it is only requested if the settings ask for it
+                break;
+            case SERVER_MAX_WINDOW_BITS:
+                // java.util.zip.Deflater always uses a 15-bit window
+                if (value == null || parseWindowBits(value) != 15) {
+                    return null;
+                }
+                break;
+            case CLIENT_MAX_WINDOW_BITS:
+                // The client supports limiting its window size, optionally up to a maximum
+                int maxBits = value == null ? 15 : parseWindowBits(value);
+                if (maxBits < 0) {
+                    return null;
+                }
+                clientMaxWindowBits = Math.min(maxBits, settings.getClientMaxWindowBits());
+                break;
+            default:
+                return null;
+            }
+        }
+
+        StringBuilder response = new StringBuilder(EXTENSION_NAME);
+        if (serverNoContextTakeover) {
+            response.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (settings.getClientNoContextTakeover()) {
+            response.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        if (clientMaxWindowBits < 15) {
+            response.append("; ").append(CLIENT_MAX_WINDOW_BITS).append('=').append(clientMaxWindowBits);
+        }
+        return new WebSocketCompression(settings, serverNoContextTakeover, response.toString());
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"' ? value
+                .substring(1, value.length() - 1) : value;
+    }
+
+    /** Parse a window bits parameter, returning -1 if it is invalid. */
+    private static int parseWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15 ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** The value of the Sec-WebSocket-Extensions header to send in the upgrade response. */
+    public String getResponseHeader() {
+        return responseHeader;
+    }
+
+    /**
+     * Install the compressor and decompressor into the pipeline of an upgraded connection, before the named
+     * handler. Decompressed messages are limited to maxMessageBytes.
+     */
+    public void install(ChannelPipeline pipeline, String beforeHandlerName, int maxMessageBytes) {
+        pipeline.addBefore(beforeHandlerName, DECODER_NAME, new WebSocketDeflateDecoder(maxMessageBytes));
+        pipeline.addBefore(beforeHandlerName, ENCODER_NAME, new WebSocketDeflateEncoder(settings
+                .getCompressionLevel(), serverNoContextTakeover, settings.getMinCompressBytes()));
+        if (serverNoContextTakeover) {
+            pipeline.channel().attr(ACCEPTS_SHARED_COMPRESSED_FRAMES).set(Boolean.TRUE);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Returns true if messages compressed by compressMessage() can be written to the channel. */
+    public static boolean acceptsSharedCompressedFrames(Channel channel) {
+        return channel.hasAttr(ACCEPTS_SHARED_COMPRESSED_FRAMES);
+    }
+
+    /**
+     * A Deflater per thread, for compressMessage() and for the encoders of connections with no server context
+     * takeover, since Deflaters are expensive to create and hold around 256kB of native memory each. A thread's
+     * Deflater is kept for the life of the thread (and freed once the thread has exited and the Deflater has been
+     * garbage collected), so messages should be compressed from a bounded set of threads, e.g. the event loops or
+     * a fixed thread pool, rather than from short-lived threads.
+     */
+    private static final FastThreadLocal<Deflater> sharedDeflater = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap = */true);
+        }
+    };
+
+    /**
+     * Compress a whole message on its own (with no context from previous messages), into a direct buffer that can
+     * be shared between connections. The content is not released. Frames containing the result (see
+     * newCompressedFrame()) may only be written to channels for which acceptsSharedCompressedFrames() is true.
+     * 
+     * The message is compressed into a pooled heap buffer (since Deflater can only write to arrays), then copied
+     * once into a direct buffer of exactly the compressed size, so that the socket writes to the subscribers don't
+     * each have to copy it out of the heap. The calling thread keeps a Deflater (see sharedDeflater).
+     */
+    public static ByteBuf compressMessage(ByteBuf content, int compressionLevel) {
+        Deflater deflater = borrowSharedDeflater(compressionLevel);
+        ByteBuf compressed = WebSocketDeflateEncoder.deflate(deflater, content, true, PooledByteBufAllocator.DEFAULT);
+        try {
+            return PooledByteBufAllocator.DEFAULT.directBuffer(compressed.readableBytes()).writeBytes(compressed);
+        } finally {
+            compressed.release();
+        }
+    }
+
+    /**
+     * Get the Deflater of the current thread, reset and set to the given compression level. It may only be used to
+     * compress a whole message within a single call, since other connections on the same thread share it.
+     */
+    static Deflater borrowSharedDeflater(int compressionLevel) {
+        Deflater deflater = sharedDeflater.get();
+        deflater.reset();
+        deflater.setLevel(compressionLevel);
+        return deflater;
+    }
+
+    /** Create a frame containing a message compressed by compressMessage(). Takes ownership of the content. */
+    public static WebSocketFrame newCompressedFrame(ByteBuf compressedContent, boolean binary) {
+        return binary ? new BinaryWebSocketFrame(true, RSV1, compressedContent) : new TextWebSocketFrame(true, RSV1,
+                compressedContent);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import java.util.zip.Deflater;
+
+/**
+ * Settings for the permessage-deflate WebSocket extension (RFC 7692), returned by
+ * WebSocketHandler.getCompressionSettings(). Compression is only used if the client offers it.
+ * 
+ * Deflate is CPU-intensive, and the compressor of each connection holds its own sliding window and hash tables,
+ * so for servers that push many small messages, a higher minCompressBytes, a lower compression level, and
+ * serverNoContextTakeover (which allows BroadcastHub to compress each broadcast message once for all subscribers)
+ * are worth considering.
+ */
+public class WebSocketCompressionSettings {
+    private final int compressionLevel;
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+    private final int clientMaxWindowBits;
+    private final int minCompressBytes;
+
+    /**
+     * Compression level 6, context takeover in both directions, and all messages compressed. Gives the best
+     * compression, but each connection holds its own compressor and decompressor once it has sent or received a
+     * compressed message.
+     */
+    public static final WebSocketCompressionSettings DEFAULT = new WebSocketCompressionSettings(6, false, false,
+            15, 0);
+
+    /**
+     * @param compressionLevel
+     *            The deflate compression level, from 1 (fastest) to 9 (smallest).
+     * @param serverNoContextTakeover
+     *            If true, the server compresses each message independently, rather than using previous messages as
+     *            the dictionary. Compresses less well, but allows BroadcastHub to share compressed messages between
+     *            subscribers. (RFC 7692 allows the server to choose this even if the client did not offer it,
+     *            as browsers accept, but some client libraries, e.g. Netty's, fail the handshake in that case.)
+     * @param clientNoContextTakeover
+     *            If true, the client is asked to compress each message independently. (The same caveat applies.)
+     * @param clientMaxWindowBits
+     *            The maximum sliding window size (8 to 15) the client may use for compression, if the client
+     *            supports limiting it. Smaller windows use less memory on the client and compress less well. (The
+     *            server always uses a 15-bit window, since java.util.zip does not support smaller windows, so
+     *            offers that require a smaller server window are declined.)
+     * @param minCompressBytes
+     *            Messages shorter than this are sent uncompressed, since compressing them costs CPU for little or
+     *            no saving.
+     */
+    public WebSocketCompressionSettings(int compressionLevel, boolean serverNoContextTakeover,
+            boolean clientNoContextTakeover, int clientMaxWindowBits, int minCompressBytes) {
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("compressionLevel must be between 1 and 9");
+        }
+        if (clientMaxWindowBits < 8 || clientMaxWindowBits > 15) {
+            throw new IllegalArgumentException("clientMaxWindowBits must be between 8 and 15");
+        }
+        if (minCompressBytes < 0) {
+            throw new IllegalArgumentException("minCompressBytes must not be negative");
+        }
+        this.compressionLevel = compressionLevel;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.clientMaxWindowBits = clientMaxWindowBits;
+        this.minCompressBytes = minCompressBytes;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public boolean getServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    public boolean getClientNoContextTakeover() {
+        return clientNoContextTakeover;
+    }
+
+    public int getClientMaxWindowBits() {
+        return clientMaxWindowBits;
+    }
+
+    public int getMinCompressBytes() {
+        return minCompressBytes;
+    }
+}
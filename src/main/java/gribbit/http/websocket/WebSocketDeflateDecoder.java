@@ -0,0 +1,137 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import static io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension.RSV1;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses inbound WebSocket messages that were compressed with the permessage-deflate extension (i.e. that
+ * have RSV1 set on their first frame). The decompressed length of a message is limited, so that a small compressed
+ * message cannot expand to fill the heap.
+ */
+class WebSocketDeflateDecoder extends MessageToMessageDecoder<WebSocketFrame> {
+    /** Created when the first compressed message is received, since many clients never send one. */
+    private Inflater inflater;
+    private final int maxMessageBytes;
+
+    /** True if the first fragment of the current fragmented message was compressed. */
+    private boolean decompressingFragmentedMessage;
+    private long messageBytes;
+
+    /** The empty block that the sender removed from the end of each message (RFC 7692). */
+    private static final byte[] SYNC_FLUSH_TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    WebSocketDeflateDecoder(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if (msg instanceof ContinuationWebSocketFrame) {
+            return decompressingFragmentedMessage;
+        }
+        return (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame)
+                && (((WebSocketFrame) msg).rsv() & RSV1) != 0;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+        boolean endOfMessage = frame.isFinalFragment();
+        ByteBuf content = frame.content();
+        int len = content.readableBytes();
+        byte[] input = new byte[endOfMessage ? len + SYNC_FLUSH_TAIL.length : len];
+        content.getBytes(content.readerIndex(), input, 0, len);
+        if (endOfMessage) {
+            System.arraycopy(SYNC_FLUSH_TAIL, 0, input, len, SYNC_FLUSH_TAIL.length);
+        }
+        if (inflater == null) {
+            inflater = new Inflater(/* nowrap = */true);
+        }
+        inflater.setInput(input);
+
+        ByteBuf decompressed = ctx.alloc().heapBuffer(Math.min(maxMessageBytes, len * 2 + 64));
+        try {
+            while (true) {
+                if (!decompressed.isWritable()) {
+                    decompressed.ensureWritable(decompressed.capacity());
+                }
+                int writable = decompressed.writableBytes();
+                int n = inflater.inflate(decompressed.array(),
+                        decompressed.arrayOffset() + decompressed.writerIndex(), writable);
+                decompressed.writerIndex(decompressed.writerIndex() + n);
+                if (messageBytes + decompressed.readableBytes() > maxMessageBytes) {
+                    throw new TooLongFrameException("Decompressed WebSocket message is longer than "
+                            + maxMessageBytes + " bytes");
+                }
+                if (n < writable) {
+                    if (inflater.needsDictionary()) {
+                        throw new CorruptedFrameException("Unexpected preset dictionary");
+                    }
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            decompressed.release();
+            throw new CorruptedFrameException("Invalid compressed WebSocket message", e);
+        } catch (RuntimeException e) {
+            decompressed.release();
+            throw e;
+        }
+
+        decompressingFragmentedMessage = !endOfMessage;
+        messageBytes = endOfMessage ? 0L : messageBytes + decompressed.readableBytes();
+        int rsv = frame.rsv() & ~RSV1;
+        if (frame instanceof TextWebSocketFrame) {
+            out.add(new TextWebSocketFrame(endOfMessage, rsv, decompressed));
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            out.add(new BinaryWebSocketFrame(endOfMessage, rsv, decompressed));
+        } else {
+            out.add(new ContinuationWebSocketFrame(endOfMessage, rsv, decompressed));
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+}
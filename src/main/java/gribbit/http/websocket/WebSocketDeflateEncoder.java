@@ -0,0 +1,173 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import static io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension.RSV1;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses outbound WebSocket messages for the permessage-deflate extension. Messages shorter than the
+ * configured minimum are sent uncompressed, and frames that already have RSV1 set (i.e. that were compressed by
+ * WebSocketCompression.compressMessage() for a broadcast) are passed through unchanged.
+ * 
+ * With context takeover, each connection needs its own Deflater, since the compression context spans messages.
+ * Without it, whole messages are compressed with the Deflater of the event loop thread, which is shared by all
+ * connections on that thread, and only a fragmented message (which is compressed across several writes) gets a
+ * Deflater of its own, until its last fragment has been written.
+ */
+class WebSocketDeflateEncoder extends MessageToMessageEncoder<WebSocketFrame> {
+    private final int compressionLevel;
+    private final boolean noContextTakeover;
+    private final int minCompressBytes;
+
+    /**
+     * The Deflater of this connection, created when the first message is compressed. With no context takeover,
+     * this is only non-null while a fragmented message is being compressed.
+     */
+    private Deflater deflater;
+
+    /** True if the first fragment of the current fragmented message was compressed. */
+    private boolean compressingFragmentedMessage;
+
+    /** The last four bytes of a sync-flushed deflate stream, which are removed from each message (RFC 7692). */
+    private static final int SYNC_FLUSH_TAIL = 0x0000ffff;
+
+    WebSocketDeflateEncoder(int compressionLevel, boolean noContextTakeover, int minCompressBytes) {
+        this.compressionLevel = compressionLevel;
+        this.noContextTakeover = noContextTakeover;
+        this.minCompressBytes = minCompressBytes;
+    }
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        if (msg instanceof ContinuationWebSocketFrame) {
+            return compressingFragmentedMessage;
+        }
+        if (!(msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame)) {
+            return false;
+        }
+        WebSocketFrame frame = (WebSocketFrame) msg;
+        return (frame.rsv() & RSV1) == 0
+                && !(frame.isFinalFragment() && frame.content().readableBytes() < minCompressBytes);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+        boolean endOfMessage = frame.isFinalFragment();
+        Deflater messageDeflater = deflater;
+        if (messageDeflater == null) {
+            if (!noContextTakeover) {
+                // Connections that never send a message large enough to compress never allocate a Deflater
+                messageDeflater = deflater = new Deflater(compressionLevel, /* nowrap = */true);
+            } else if (endOfMessage) {
+                // Whole message, with no context takeover (the common case)
+                messageDeflater = WebSocketCompression.borrowSharedDeflater(compressionLevel);
+            } else {
+                // First fragment of a fragmented message, with no context takeover
+                messageDeflater = deflater = new Deflater(compressionLevel, /* nowrap = */true);
+            }
+        }
+        ByteBuf compressed = deflate(messageDeflater, frame.content(), endOfMessage, ctx.alloc());
+        if (endOfMessage && noContextTakeover && deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (frame instanceof TextWebSocketFrame) {
+            out.add(new TextWebSocketFrame(endOfMessage, frame.rsv() | RSV1, compressed));
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            out.add(new BinaryWebSocketFrame(endOfMessage, frame.rsv() | RSV1, compressed));
+        } else {
+            // RSV1 is only set on the first frame of a message
+            out.add(new ContinuationWebSocketFrame(endOfMessage, frame.rsv(), compressed));
+        }
+        compressingFragmentedMessage = !endOfMessage;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    /**
+     * Compress the readable bytes of content into a heap buffer from the allocator, with a sync flush at the end. If
+     * endOfMessage is true, the trailing empty block that the sync flush produces is removed, as required by RFC
+     * 7692. (Deflater only reads from and writes to arrays, so direct content is first copied into a heap buffer
+     * from the allocator, which is released before returning.)
+     */
+    static ByteBuf deflate(Deflater deflater, ByteBuf content, boolean endOfMessage, ByteBufAllocator alloc) {
+        int len = content.readableBytes();
+        ByteBuf input = null;
+        if (content.hasArray()) {
+            deflater.setInput(content.array(), content.arrayOffset() + content.readerIndex(), len);
+        } else {
+            input = alloc.heapBuffer(len).writeBytes(content, content.readerIndex(), len);
+            deflater.setInput(input.array(), input.arrayOffset() + input.readerIndex(), len);
+        }
+        ByteBuf out = alloc.heapBuffer(len / 2 + 64);
+        try {
+            while (true) {
+                int writable = out.writableBytes();
+                int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), writable,
+                        Deflater.SYNC_FLUSH);
+                out.writerIndex(out.writerIndex() + n);
+                if (n == writable) {
+                    out.ensureWritable(out.capacity());
+                } else if (deflater.needsInput()) {
+                    // All input has been compressed and flushed. (After a change of compression level, the first
+                    // call may return without consuming any input.)
+                    break;
+                }
+            }
+            int end = out.writerIndex();
+            if (endOfMessage && out.readableBytes() >= 4 && out.getInt(end - 4) == SYNC_FLUSH_TAIL) {
+                out.writerIndex(end - 4);
+            }
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            // The Deflater has consumed all of the input
+            if (input != null) {
+                input.release();
+            }
+        }
+    }
+}
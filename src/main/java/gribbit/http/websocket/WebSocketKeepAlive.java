@@ -0,0 +1,189 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import gribbit.http.logging.Log;
+import gribbit.http.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Server-side WebSocket keepalive. Sends a ping to any WebSocket that has not received a frame for pingInterval,
+ * and closes any WebSocket that has not received a frame (including a pong) for idleTimeout.
+ * 
+ * Connections are spread round-robin across a fixed number of buckets, and a single task on a shared
+ * HashedWheelTimer sweeps one bucket per tick, so that each connection is checked once per pingInterval. There is
+ * no scheduled task per connection, and the cost of a tick is proportional to the size of one bucket, so this
+ * scales to very large numbers of mostly-idle connections.
+ */
+public class WebSocketKeepAlive implements Closeable {
+    private final long pingIntervalNanos;
+    private final long idleTimeoutNanos;
+    private final long tickNanos;
+    private final HashedWheelTimer timer;
+
+    private static final int NUM_BUCKETS = 64;
+
+    private final Set<Connection>[] buckets;
+    private final AtomicInteger nextBucket = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private long bucketsSwept;
+    private volatile boolean closed;
+
+    /** The keepalive state of one WebSocket connection. */
+    public static class Connection {
+        private final Channel channel;
+        private final int bucket;
+        private volatile long lastReadNanos;
+
+        private Connection(Channel channel, int bucket) {
+            this.channel = channel;
+            this.bucket = bucket;
+            this.lastReadNanos = System.nanoTime();
+        }
+
+        /** Record that a frame has been received from the peer. */
+        public void touch() {
+            lastReadNanos = System.nanoTime();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * @param pingIntervalMillis
+     *            How long a WebSocket may be idle before it is pinged.
+     * @param idleTimeoutMillis
+     *            How long a WebSocket may be idle before it is closed. Should be a few times pingIntervalMillis, to
+     *            allow for the round trip of at least one ping.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public WebSocketKeepAlive(long pingIntervalMillis, long idleTimeoutMillis) {
+        this.pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), pingIntervalNanos / NUM_BUCKETS);
+        this.buckets = new Set[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets[i] = ConcurrentHashMap.newKeySet();
+        }
+        this.timer = new HashedWheelTimer(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, WebSocketKeepAlive.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, tickNanos, TimeUnit.NANOSECONDS, NUM_BUCKETS);
+        timer.newTimeout(sweepTask, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Start keeping a WebSocket connection alive. */
+    public Connection register(Channel channel) {
+        Connection connection = new Connection(channel, (nextBucket.getAndIncrement() & 0x7fffffff) % NUM_BUCKETS);
+        buckets[connection.bucket].add(connection);
+        return connection;
+    }
+
+    /** Stop keeping a WebSocket connection alive, once it has been closed. */
+    public void unregister(Connection connection) {
+        buckets[connection.bucket].remove(connection);
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Sweep the buckets that are due, then reschedule. Timeouts fire up to a tick late, so the number of buckets
+     * swept is based on elapsed time rather than on the number of times the task has run.
+     */
+    private final TimerTask sweepTask = new TimerTask() {
+        @Override
+        public void run(Timeout timeout) {
+            if (closed) {
+                return;
+            }
+            long bucketsDue = (System.nanoTime() - startNanos) / tickNanos;
+            // Sweep each bucket at most once per run, even if the timer thread fell a whole cycle behind
+            bucketsSwept = Math.max(bucketsSwept, bucketsDue - NUM_BUCKETS);
+            for (; bucketsSwept < bucketsDue; bucketsSwept++) {
+                try {
+                    sweep(buckets[(int) (bucketsSwept % NUM_BUCKETS)]);
+                } catch (Exception e) {
+                    Log.exception("Exception in WebSocket keepalive sweep", e);
+                }
+            }
+            if (!closed) {
+                timer.newTimeout(this, tickNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    };
+
+    private void sweep(Set<Connection> bucket) {
+        long now = System.nanoTime();
+        for (Connection connection : bucket) {
+            Channel channel = connection.channel;
+            if (!channel.isActive()) {
+                // Closed without being unregistered
+                bucket.remove(connection);
+                continue;
+            }
+            long idleNanos = now - connection.lastReadNanos;
+            if (idleNanos >= idleTimeoutNanos) {
+                // Peer has not answered pings -- assume it is dead
+                bucket.remove(connection);
+                Metrics.webSocketIdleClosed();
+                if (Log.isLoggable(Level.FINE)) {
+                    Log.fine("Closing idle WebSocket " + channel.remoteAddress());
+                }
+                channel.close();
+            } else if (idleNanos >= pingIntervalNanos && channel.isWritable()) {
+                // Channel.writeAndFlush() hands off to the channel's event loop, so this is safe on the timer thread
+                channel.writeAndFlush(new PingWebSocketFrame());
+                Metrics.webSocketPingSent();
+            }
+        }
+    }
+
+    /** Stop the timer. Connections are not closed. */
+    @Override
+    public void close() {
+        closed = true;
+        timer.stop();
+        for (Set<Connection> bucket : buckets) {
+            bucket.clear();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Reassembles fragmented WebSocket messages. The content of each fragment is retained and added as a component of
+ * a CompositeByteBuf, so the message is not copied. One instance is used per connection, and only allocated once
+ * the connection receives its first fragmented message.
+ */
+public class WebSocketMessageAggregator {
+    private final int maxMessageBytes;
+
+    /** The content of the message received so far, or null if not inside a fragmented message. */
+    private CompositeByteBuf content;
+    private boolean binary;
+    private int rsv;
+
+    public WebSocketMessageAggregator(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /** Returns true if the first fragment of a message has been received, but not the last. */
+    public boolean isAggregating() {
+        return content != null;
+    }
+
+    /**
+     * Add a text, binary or continuation frame. The frame is not released.
+     * 
+     * @return The frame itself if it is a whole message, a new frame containing the whole message if it is the
+     *         last fragment of a fragmented message (which the caller must release), or null if more fragments are
+     *         needed.
+     * @throws CorruptedFrameException
+     *             if a continuation frame arrives outside a fragmented message, or a new message starts inside one.
+     * @throws TooLongFrameException
+     *             if the message is longer than maxMessageBytes.
+     */
+    public WebSocketFrame add(ChannelHandlerContext ctx, WebSocketFrame frame) throws CorruptedFrameException,
+            TooLongFrameException {
+        if (!(frame instanceof ContinuationWebSocketFrame)) {
+            if (content != null) {
+                throw new CorruptedFrameException("New message started before fragmented message was complete");
+            }
+            if (frame.isFinalFragment()) {
+                return frame;
+            }
+            // First fragment of a fragmented message
+            content = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+            binary = frame instanceof BinaryWebSocketFrame;
+            rsv = frame.rsv();
+        } else if (content == null) {
+            throw new CorruptedFrameException("Continuation frame received outside a fragmented message");
+        }
+
+        ByteBuf fragment = frame.content();
+        int fragmentBytes = fragment.readableBytes();
+        if (content.readableBytes() + (long) fragmentBytes > maxMessageBytes) {
+            release();
+            throw new TooLongFrameException("WebSocket message is longer than " + maxMessageBytes + " bytes");
+        }
+        if (fragmentBytes > 0) {
+            content.addComponent(fragment.retain());
+            content.writerIndex(content.writerIndex() + fragmentBytes);
+        }
+
+        if (!frame.isFinalFragment()) {
+            return null;
+        }
+        CompositeByteBuf messageContent = content;
+        content = null;
+        return binary ? new BinaryWebSocketFrame(true, rsv, messageContent) : new TextWebSocketFrame(true, rsv,
+                messageContent);
+    }
+
+    /** Release any partially received message. */
+    public void release() {
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i, LatencyHistogram.bucketIndex(i));
+            assertEquals(i, LatencyHistogram.bucketUpperBound(i));
+        }
+        assertEquals(0, LatencyHistogram.bucketIndex(-5));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        // Each bucket starts just after the previous one ends
+        for (int i = 1; i < LatencyHistogram.NUM_BUCKETS; i++) {
+            long lower = LatencyHistogram.bucketUpperBound(i - 1) + 1;
+            long upper = LatencyHistogram.bucketUpperBound(i);
+            assertTrue("bucket " + i, upper >= lower);
+            assertEquals("lower bound of bucket " + i, i, LatencyHistogram.bucketIndex(lower));
+            assertEquals("upper bound of bucket " + i, i, LatencyHistogram.bucketIndex(upper));
+        }
+    }
+
+    @Test
+    public void relativeErrorIsAtMostOneSixteenth() {
+        for (long value = 16; value < (1L << 37); value = value * 3 / 2 + 1) {
+            long upper = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+            assertTrue("value " + value, upper >= value && upper - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void powersOfTwoStartABucket() {
+        for (int exponent = 4; exponent <= 36; exponent++) {
+            long value = 1L << exponent;
+            int idx = LatencyHistogram.bucketIndex(value);
+            assertEquals(value - 1, LatencyHistogram.bucketUpperBound(idx - 1));
+            assertEquals(value + (value >> 4) - 1, LatencyHistogram.bucketUpperBound(idx));
+        }
+    }
+
+    @Test
+    public void valuesBeyondTheRangeGoInTheLastBucket() {
+        int last = LatencyHistogram.NUM_BUCKETS - 1;
+        assertEquals(last, LatencyHistogram.bucketIndex((1L << 37) - 1));
+        assertEquals(last, LatencyHistogram.bucketIndex(1L << 37));
+        assertEquals(last, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAndCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getValueAtPercentile(50.0));
+        for (int i = 1; i <= 100; i++) {
+            histogram.recordValue(i * 1000L);
+        }
+        assertEquals(100L, histogram.getTotalCount());
+        assertEquals(5050000L, histogram.getSumMicros());
+        long p50 = histogram.getValueAtPercentile(50.0);
+        assertTrue("p50 " + p50, p50 >= 50000L && p50 <= 50000L + 50000L / 16);
+        long p99 = histogram.getValueAtPercentile(99.0);
+        assertTrue("p99 " + p99, p99 >= 99000L && p99 <= 99000L + 99000L / 16);
+        assertEquals(histogram.getValueAtPercentile(100.0), histogram.getValueAtPercentile(200.0));
+        assertEquals(0L, histogram.getCountAtOrBelow(999L));
+        assertEquals(100L, histogram.getCountAtOrBelow(200000L));
+
+        LatencyHistogram total = new LatencyHistogram();
+        histogram.addTo(total);
+        histogram.addTo(total);
+        assertEquals(200L, total.getTotalCount());
+        assertEquals(p50, total.getValueAtPercentile(50.0));
+    }
+}
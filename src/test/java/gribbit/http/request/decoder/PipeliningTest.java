@@ -0,0 +1,169 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.request.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import gribbit.http.request.Request;
+import gribbit.http.request.handler.HttpRequestHandler;
+import gribbit.http.response.ContentPublisher;
+import gribbit.http.response.Response;
+import gribbit.http.response.StreamingResponse;
+import gribbit.http.response.TextResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class PipeliningTest {
+    /** A publisher whose content is pushed by the test. */
+    private static class TestPublisher implements ContentPublisher {
+        Subscriber subscriber;
+        boolean cancelled;
+
+        @Override
+        public void subscribe(Subscriber subscriber) {
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    private final TestPublisher publisher = new TestPublisher();
+
+    /** Streams the publisher's content for "/stream", and responds with the URL otherwise. */
+    private final HttpRequestHandler handler = new HttpRequestHandler() {
+        @Override
+        public Response handle(Request request) {
+            if (request.getURL().startsWith("/stream")) {
+                return new StreamingResponse(request, publisher, "text/plain");
+            }
+            return new TextResponse(request, "url " + request.getURL());
+        }
+    };
+
+    private EmbeddedChannel newChannel() {
+        return new EmbeddedChannel(new HttpServerCodec(), LazyHttpHandlers.INSTANCE, new HttpRequestDecoder(
+                new RequestDecoderConfig()).addHttpRequestHandler(handler));
+    }
+
+    private static void write(EmbeddedChannel channel, String requests) {
+        channel.writeInbound(Unpooled.copiedBuffer(requests, StandardCharsets.ISO_8859_1));
+        channel.runPendingTasks();
+    }
+
+    private static String read(EmbeddedChannel channel) {
+        channel.runPendingTasks();
+        StringBuilder response = new StringBuilder();
+        for (Object msg; (msg = channel.readOutbound()) != null;) {
+            ByteBuf buf = (ByteBuf) msg;
+            response.append(buf.toString(StandardCharsets.ISO_8859_1));
+            buf.release();
+        }
+        return response.toString();
+    }
+
+    private static String get(String path) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    private static int count(String str, String substr) {
+        int count = 0;
+        for (int i = str.indexOf(substr); i >= 0; i = str.indexOf(substr, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void pipelinedRequestsWaitForTheStreamToComplete() {
+        EmbeddedChannel channel = newChannel();
+        write(channel, get("/stream") + get("/a") + get("/b"));
+        assertNotNull(publisher.subscriber);
+
+        String response = read(channel);
+        assertEquals(response, 1, count(response, "HTTP/1.1 200 "));
+        assertFalse(response, response.contains("url /a"));
+
+        // The subscriber writes the content from the event loop
+        publisher.subscriber.onNext(Unpooled.copiedBuffer("streamed", StandardCharsets.US_ASCII));
+        response += read(channel);
+        assertTrue(response, response.endsWith("8\r\nstreamed\r\n"));
+        assertEquals(response, 1, count(response, "HTTP/1.1 200 "));
+
+        publisher.subscriber.onComplete();
+        response += read(channel);
+        int endOfStream = response.indexOf("\r\n0\r\n\r\n");
+        assertTrue(response, endOfStream > 0);
+        int a = response.indexOf("url /a"), b = response.indexOf("url /b");
+        assertTrue(response, endOfStream < a && a < b);
+        assertEquals(response, 3, count(response, "HTTP/1.1 200 "));
+        assertTrue(channel.isOpen());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void queuedRequestsAreReleasedOnClose() {
+        EmbeddedChannel channel = newChannel();
+        write(channel, get("/stream") + "POST /a HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n\r\nx=1");
+        String response = read(channel);
+        assertEquals(response, 1, count(response, "HTTP/1.1 200 "));
+        channel.close();
+        channel.runPendingTasks();
+        assertTrue(publisher.cancelled);
+        read(channel);
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void requestsAfterACompletedStreamAreNotHeld() {
+        EmbeddedChannel channel = newChannel();
+        write(channel, get("/stream"));
+        publisher.subscriber.onComplete();
+        String response = read(channel);
+        assertTrue(response, response.endsWith("\r\n0\r\n\r\n"));
+        write(channel, get("/a"));
+        response = read(channel);
+        assertTrue(response, response.startsWith("HTTP/1.1 200 ") && response.endsWith("url /a"));
+        assertFalse(channel.finish());
+    }
+}
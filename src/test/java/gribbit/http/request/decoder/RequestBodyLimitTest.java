@@ -0,0 +1,167 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.request.decoder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gribbit.http.request.Request;
+import gribbit.http.request.handler.HttpRequestHandler;
+import gribbit.http.response.Response;
+import gribbit.http.response.TextResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class RequestBodyLimitTest {
+    private static final int MAX_BODY_BYTES = 1000;
+
+    /** Responds with the length of the "a" POST param. */
+    private static final HttpRequestHandler ECHO_LENGTH = new HttpRequestHandler() {
+        @Override
+        public Response handle(Request request) {
+            String a = request.getPostParam("a");
+            return new TextResponse(request, "length " + (a == null ? -1 : a.length()));
+        }
+    };
+
+    private static EmbeddedChannel newChannel() {
+        RequestDecoderConfig config = new RequestDecoderConfig();
+        config.maxRequestBodyBytes = MAX_BODY_BYTES;
+        return new EmbeddedChannel(new HttpServerCodec(), LazyHttpHandlers.INSTANCE, new HttpRequestDecoder(config)
+                .addHttpRequestHandler(ECHO_LENGTH));
+    }
+
+    /** Write each part of a request to the channel, and return everything written back. */
+    private static String exchange(EmbeddedChannel channel, byte[]... parts) {
+        for (byte[] part : parts) {
+            if (channel.isOpen()) {
+                channel.writeInbound(Unpooled.wrappedBuffer(part));
+            }
+        }
+        channel.runPendingTasks();
+        StringBuilder response = new StringBuilder();
+        for (Object msg; (msg = channel.readOutbound()) != null;) {
+            ByteBuf buf = (ByteBuf) msg;
+            response.append(buf.toString(StandardCharsets.ISO_8859_1));
+            buf.release();
+        }
+        channel.finish();
+        return response.toString();
+    }
+
+    private static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] formBody(int valueLength) {
+        char[] value = new char[valueLength];
+        Arrays.fill(value, 'x');
+        return ascii("a=" + new String(value));
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] postHeaders(String extraHeaders) {
+        return ascii("POST /form HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n" + extraHeaders + "\r\n");
+    }
+
+    private static void assertRejected(EmbeddedChannel channel, String response) {
+        assertTrue(response, response.startsWith("HTTP/1.1 413 "));
+        assertFalse("connection should be closed", channel.isOpen());
+    }
+
+    @Test
+    public void bodyWithinLimitIsHandled() {
+        byte[] body = formBody(MAX_BODY_BYTES - 2);
+        EmbeddedChannel channel = newChannel();
+        String response = exchange(channel, postHeaders("Content-Length: " + body.length + "\r\n"), body);
+        assertTrue(response, response.startsWith("HTTP/1.1 200 "));
+        assertTrue(response, response.endsWith("length " + (MAX_BODY_BYTES - 2)));
+    }
+
+    @Test
+    public void contentLengthOverLimitIsRejectedBeforeTheBody() {
+        EmbeddedChannel channel = newChannel();
+        String response = exchange(channel, postHeaders("Content-Length: " + (MAX_BODY_BYTES + 1) + "\r\n"));
+        assertRejected(channel, response);
+    }
+
+    @Test
+    public void expectContinueIsNotSentForBodyOverLimit() {
+        EmbeddedChannel channel = newChannel();
+        String response = exchange(channel, postHeaders("Content-Length: " + (MAX_BODY_BYTES + 1)
+                + "\r\nExpect: 100-continue\r\n"));
+        assertRejected(channel, response);
+    }
+
+    @Test
+    public void chunkedBodyOverLimitIsRejected() {
+        byte[] body = formBody(MAX_BODY_BYTES);
+        int half = body.length / 2;
+        EmbeddedChannel channel = newChannel();
+        String response = exchange(channel, postHeaders("Transfer-Encoding: chunked\r\n"), //
+                ascii(Integer.toHexString(half) + "\r\n"), Arrays.copyOfRange(body, 0, half), ascii("\r\n"), //
+                ascii(Integer.toHexString(body.length - half) + "\r\n"), Arrays.copyOfRange(body, half,
+                        body.length), ascii("\r\n0\r\n\r\n"));
+        assertRejected(channel, response);
+    }
+
+    @Test
+    public void smallCompressedBodyIsHandled() throws IOException {
+        byte[] body = gzip(formBody(500));
+        EmbeddedChannel channel = newChannel();
+        String response = exchange(channel, postHeaders("Content-Encoding: gzip\r\nContent-Length: " + body.length
+                + "\r\n"), body);
+        assertTrue(response, response.endsWith("length 500"));
+    }
+
+    @Test
+    public void compressedBodyIsLimitedAfterDecompression() throws IOException {
+        // Compresses to well under the limit, but expands to 100 times it
+        byte[] body = gzip(formBody(MAX_BODY_BYTES * 100));
+        assertTrue(body.length < MAX_BODY_BYTES);
+        EmbeddedChannel channel = newChannel();
+        String response = exchange(channel, postHeaders("Content-Encoding: gzip\r\nContent-Length: " + body.length
+                + "\r\n"), body);
+        assertRejected(channel, response);
+    }
+}
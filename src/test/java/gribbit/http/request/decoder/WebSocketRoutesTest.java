@@ -0,0 +1,143 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.request.decoder;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaderNames.UPGRADE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import gribbit.http.request.handler.WebSocketHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import org.junit.Test;
+
+public class WebSocketRoutesTest {
+    private static class TestHandler implements WebSocketHandler {
+        private final String urlPrefix;
+
+        TestHandler(String urlPrefix) {
+            this.urlPrefix = urlPrefix;
+        }
+
+        @Override
+        public void handleTextFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+        }
+
+        @Override
+        public void handleBinaryFrame(ChannelHandlerContext ctx, BinaryWebSocketFrame frame) {
+        }
+
+        @Override
+        public boolean isWebSocketUpgradeURL(String url) {
+            return urlPrefix != null && url.startsWith(urlPrefix);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void assertInvalid(String path) {
+        try {
+            WebSocketRoutes.normalizePath(path);
+            fail("Expected IllegalArgumentException for " + path);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void pathsAreNormalizedLikeRequestURLs() {
+        assertEquals("/ws", WebSocketRoutes.normalizePath("/ws"));
+        assertEquals("/ws", WebSocketRoutes.normalizePath("/ws/"));
+        assertEquals("/a/b", WebSocketRoutes.normalizePath("/a//b"));
+        assertEquals("/a/b", WebSocketRoutes.normalizePath("/a/./c/../b/"));
+        assertEquals("/", WebSocketRoutes.normalizePath("/"));
+    }
+
+    @Test
+    public void invalidPathsAreRejected() {
+        assertInvalid("/ws?x=1");
+        assertInvalid("/ws?");
+        assertInvalid("ws");
+    }
+
+    @Test
+    public void routesAreLookedUpByNormalizedPath() {
+        WebSocketRoutes routes = new WebSocketRoutes(65536);
+        TestHandler handler = new TestHandler(null);
+        routes.addRoute("/chat/", handler);
+        assertSame(handler, routes.getRoute("/chat", "/chat?room=1").handler);
+        assertNull(routes.getRoute("/chat/", "/chat/"));
+        assertNull(routes.getRoute("/other", "/other"));
+    }
+
+    @Test
+    public void duplicateRoutesAreRejected() {
+        WebSocketRoutes routes = new WebSocketRoutes(65536);
+        routes.addRoute("/ws", new TestHandler(null));
+        try {
+            routes.addRoute("//ws/", new TestHandler(null));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void urlMatchingHandlersAreAskedWhenNoPathMatches() {
+        WebSocketRoutes routes = new WebSocketRoutes(65536);
+        TestHandler pathHandler = new TestHandler("/");
+        TestHandler urlHandler = new TestHandler("/dyn/");
+        routes.addRoute("/ws", pathHandler);
+        routes.addHandler(urlHandler);
+        assertSame(pathHandler, routes.getRoute("/ws", "/ws").handler);
+        assertSame(urlHandler, routes.getRoute("/dyn/x", "/dyn/x?y").handler);
+        assertNull(routes.getRoute("/ws2", "/ws2"));
+    }
+
+    @Test
+    public void upgradeRequiresBothHeaders() {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        assertFalse(WebSocketRoutes.isUpgradeRequest(headers));
+        headers.add(UPGRADE, "WebSocket");
+        assertFalse(WebSocketRoutes.isUpgradeRequest(headers));
+        headers.add(CONNECTION, "keep-alive, Upgrade");
+        assertTrue(WebSocketRoutes.isUpgradeRequest(headers));
+        headers.set(UPGRADE, "h2c");
+        assertFalse(WebSocketRoutes.isUpgradeRequest(headers));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.response;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class JsonWriterTest {
+    private static byte[] bytes(JsonWriter writer) {
+        ByteBuf buf = writer.finish();
+        try {
+            return ByteBufUtil.getBytes(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static String write(JsonWriter writer) {
+        return new String(bytes(writer), StandardCharsets.UTF_8);
+    }
+
+    /** Write a string into a buffer that starts out too small, so that it has to grow. */
+    private static String stringValue(String value) {
+        return write(new JsonWriter(UnpooledByteBufAllocator.DEFAULT, 1).value(value));
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void escapesQuotesBackslashesAndControlCharacters() {
+        assertEquals("\"\"", stringValue(""));
+        assertEquals("\"plain\"", stringValue("plain"));
+        assertEquals("\"a\\\"b\\\\c\"", stringValue("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\\b\\f\"", stringValue("\n\r\t\b\f"));
+        assertEquals("\"\\u0000\\u001f\\u000b\"", stringValue("\u0000\u001f\u000b"));
+        // Only the characters that JSON requires to be escaped are escaped
+        assertEquals("\"/\u007f\"", stringValue("/\u007f"));
+    }
+
+    @Test
+    public void manyEscapesGrowTheBuffer() {
+        StringBuilder str = new StringBuilder(), expected = new StringBuilder("\"");
+        for (int i = 0; i < 1000; i++) {
+            str.append('\u0001').append('\u00e9');
+            expected.append("\\u0001\u00e9");
+        }
+        assertEquals(expected.append('"').toString(), stringValue(str.toString()));
+    }
+
+    @Test
+    public void encodesUTF8() {
+        String str = "\u00e9\u0661\u20ac\uffff\ud83d\ude00x";
+        assertArrayEquals(("\"" + str + "\"").getBytes(StandardCharsets.UTF_8),
+                bytes(new JsonWriter(UnpooledByteBufAllocator.DEFAULT, 1).value(str)));
+    }
+
+    @Test
+    public void unpairedSurrogatesAreReplaced() {
+        assertEquals("\"?\"", stringValue("\ud83d"));
+        assertEquals("\"?\"", stringValue("\ude00"));
+        assertEquals("\"?x\"", stringValue("\ud83dx"));
+        assertEquals("\"??\"", stringValue("\ude00\ud83d"));
+        assertEquals("\"\ud83d\ude00?\"", stringValue("\ud83d\ude00\ude00"));
+    }
+
+    @Test
+    public void namesArePreEncoded() {
+        assertArrayEquals("\"id\":".getBytes(StandardCharsets.UTF_8), new JsonName("id").encoded);
+        assertArrayEquals("\"a\\\"\u00e9\":".getBytes(StandardCharsets.UTF_8), JsonWriter.encodeName("a\"\u00e9"));
+    }
+
+    @Test
+    public void commasAreInserted() {
+        JsonName id = new JsonName("id");
+        JsonWriter writer = new JsonWriter(UnpooledByteBufAllocator.DEFAULT, 1);
+        writer.beginArray();
+        writer.beginObject().field(id, 1).field(new JsonName("x"), -2.5).name("s").nullValue().endObject();
+        writer.value(Long.MIN_VALUE).value(true).value(3.0).beginArray().endArray();
+        writer.endArray();
+        assertEquals("[{\"id\":1,\"x\":-2.5,\"s\":null},-9223372036854775808,true,3,[]]", write(writer));
+    }
+
+    @Test
+    public void unbalancedDocumentsAreRejected() {
+        JsonWriter writer = new JsonWriter(UnpooledByteBufAllocator.DEFAULT, 1).beginObject();
+        try {
+            writer.finish();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import gribbit.http.response.exception.BadRequestException;
+import gribbit.http.response.exception.ResponseException;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class RequestURLTest {
+    private static String normalize(String url) throws ResponseException {
+        return new RequestURL(url).getNormalizedPath();
+    }
+
+    @Test
+    public void normalizedPathIsReturnedAsIs() throws ResponseException {
+        String url = "/a/b-c/d.e_f";
+        assertSame(url, normalize(url));
+        assertEquals("/", normalize(""));
+        assertEquals("/", normalize("/"));
+        assertEquals("/a/b", normalize("/a/b?x=1"));
+    }
+
+    @Test
+    public void emptyAndDotSegmentsAreRemoved() throws ResponseException {
+        assertEquals("/a/b", normalize("//a//b/"));
+        assertEquals("/a/b", normalize("/a/./b/."));
+        assertEquals("/c", normalize("/a/b/../../c"));
+        assertEquals("/a", normalize("/a/b/.."));
+        assertEquals("/", normalize("/a/.."));
+        // Escaped dots are dot segments too
+        assertEquals("/b", normalize("/a/%2e%2E/b"));
+        // Dots within a segment are not
+        assertEquals("/a/.../b..", normalize("/a/.../b.."));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void navigatingAboveRootIsRejected() throws ResponseException {
+        normalize("/a/../..");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void relativeURLIsRejected() throws ResponseException {
+        normalize("a/b");
+    }
+
+    @Test
+    public void segmentsAreReEscapedConsistently() throws ResponseException {
+        // Unreserved chars are unescaped, and everything else is escaped with lowercase hex digits
+        assertEquals("/a/b%20c", normalize("/%61/b c"));
+        assertEquals("/a%2fb", normalize("/a%2Fb"));
+        assertEquals("/%c3%a9", normalize("/%C3%A9"));
+    }
+
+    @Test
+    public void malformedEscapesInPathAreDropped() throws ResponseException {
+        // An invalid escape is dropped along with its two chars, a truncated one only drops the '%'
+        assertEquals("/ab", normalize("/a%zzb"));
+        assertEquals("/a/b4", normalize("/a%/b%4"));
+        assertEquals("/a", normalize("/a/%"));
+    }
+
+    @Test
+    public void queryParamsAreDecodedLazily() throws ResponseException {
+        RequestURL url = new RequestURL("/a?x=1&y=a+b&x=2&z=%C3%A9");
+        assertTrue(url.hasQuery());
+        assertEquals(Arrays.asList("1", "2"), url.getQueryParams().get("x"));
+        assertEquals(Collections.singletonList("a b"), url.getQueryParams().get("y"));
+        assertEquals(Collections.singletonList("\u00e9"), url.getQueryParams().get("z"));
+
+        assertFalse(new RequestURL("/a?").hasQuery());
+        assertTrue(new RequestURL("/a").getQueryParams().isEmpty());
+    }
+
+    private enum Mode {
+        FAST, SLOW
+    }
+
+    @Test
+    public void typedQueryParamsAreParsedFromTheURL() throws ResponseException {
+        RequestURL url = new RequestURL("/a?n=-42&big=9000000000&flag=Yes&mode=slow&n=7&empty=&bare");
+        // The first param with the name is used
+        assertEquals(-42, url.getQueryParamInt("n", 0));
+        assertEquals(9000000000L, url.getQueryParamLong("big", 0L));
+        assertTrue(url.getQueryParamBoolean("flag", false));
+        assertEquals(Mode.SLOW, url.getQueryParamEnum("mode", Mode.class, Mode.FAST));
+    }
+
+    @Test
+    public void missingOrUnparseableQueryParamsGiveTheDefault() throws ResponseException {
+        RequestURL url = new RequestURL("/a?big=9000000000&x=12x&empty=&bare&mode=medium");
+        assertEquals(-1, url.getQueryParamInt("missing", -1));
+        assertEquals(-1, url.getQueryParamInt("big", -1));
+        assertEquals(-1, url.getQueryParamInt("x", -1));
+        assertEquals(-1, url.getQueryParamInt("empty", -1));
+        assertEquals(-1L, url.getQueryParamLong("bare", -1L));
+        assertTrue(url.getQueryParamBoolean("x", true));
+        assertEquals(Mode.FAST, url.getQueryParamEnum("mode", Mode.class, Mode.FAST));
+        assertEquals(-1, new RequestURL("/a").getQueryParamInt("n", -1));
+    }
+
+    @Test
+    public void escapedQueryParamsAreDecodedBeforeParsing() throws ResponseException {
+        RequestURL url = new RequestURL("/a?%6E=%35&m%6fde=%53LOW&flag=%74rue&sp=+1");
+        assertEquals(5, url.getQueryParamInt("n", -1));
+        assertEquals(Mode.SLOW, url.getQueryParamEnum("mode", Mode.class, Mode.FAST));
+        assertTrue(url.getQueryParamBoolean("flag", false));
+        // '+' decodes to a space, which is not part of a number
+        assertEquals(-1, url.getQueryParamInt("sp", -1));
+    }
+
+    @Test
+    public void malformedEscapesInQueryParamsGiveTheDefault() throws ResponseException {
+        assertEquals(-1, new RequestURL("/a?n=%zz").getQueryParamInt("n", -1));
+        assertEquals(-1L, new RequestURL("/a?n=%").getQueryParamLong("n", -1L));
+        assertEquals(-1L, new RequestURL("/a?n=%3").getQueryParamLong("n", -1L));
+        assertFalse(new RequestURL("/a?n=%zz").getQueryParamBoolean("n", false));
+        // A malformed key does not match, and does not stop the search for a later param with the name
+        assertEquals(7, new RequestURL("/a?n%=3&n=7").getQueryParamInt("n", -1));
+        assertEquals(5, new RequestURL("/a?%zz=1&n=5").getQueryParamInt("n", -1));
+    }
+}
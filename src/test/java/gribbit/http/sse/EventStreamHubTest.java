@@ -0,0 +1,133 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.sse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class EventStreamHubTest {
+    private EventStreamHub hub;
+
+    @After
+    public void closeHub() {
+        hub.close();
+    }
+
+    /** Read everything written to the stream so far. */
+    private static String read(EmbeddedChannel channel) {
+        channel.runPendingTasks();
+        StringBuilder events = new StringBuilder();
+        for (Object msg; (msg = channel.readOutbound()) != null;) {
+            HttpContent content = (HttpContent) msg;
+            events.append(content.content().toString(StandardCharsets.UTF_8));
+            content.release();
+        }
+        return events.toString();
+    }
+
+    private static EmbeddedChannel subscribe(EventStreamHub hub, String lastEventId, String... topicNames) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        hub.subscribe(channel, topicNames, lastEventId);
+        channel.runPendingTasks();
+        return channel;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void eventsAreEncodedOnePerDataLine() {
+        hub = new EventStreamHub(0, 0L);
+        EmbeddedChannel channel = subscribe(hub, null, "t");
+        long id1 = hub.publish("t", "one");
+        long id2 = hub.publish("t", "update", "a\r\nb\rc\n\u00e9");
+        assertEquals("id: " + id1 + "\ndata: one\n\n" //
+                + "id: " + id2 + "\nevent: update\ndata: a\ndata: b\ndata: c\ndata: \u00e9\n\n", read(channel));
+        try {
+            hub.publish("t", "bad\ntype", "x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void withoutReplayTopicsAreKeptOnlyWhileSubscribed() {
+        hub = new EventStreamHub(0, 0L);
+        long id1 = hub.publish("t", "nobody is listening");
+        assertEquals(0, hub.getTopicCount());
+
+        EmbeddedChannel channel1 = subscribe(hub, null, "t", "u");
+        EmbeddedChannel channel2 = subscribe(hub, null, "t");
+        assertEquals(2, hub.getTopicCount());
+        assertEquals(2, hub.getSubscriberCount("t"));
+        long id2 = hub.publish("t", "x");
+        assertTrue(id2 > id1);
+        assertEquals(read(channel1), read(channel2));
+
+        channel1.close();
+        assertEquals(1, hub.getTopicCount());
+        channel2.close();
+        assertEquals(0, hub.getTopicCount());
+        assertEquals(0, hub.getSubscriberCount("t"));
+    }
+
+    @Test
+    public void withReplayMissedEventsAreSentFirst() {
+        hub = new EventStreamHub(2, 0L);
+        hub.publish("t", "1");
+        long id2 = hub.publish("t", "2");
+        long id3 = hub.publish("t", "3");
+        assertEquals(1, hub.getTopicCount());
+
+        // The first event has fallen out of the ring
+        EmbeddedChannel channel = subscribe(hub, "0", "t");
+        long id4 = hub.publish("t", "4");
+        assertEquals("id: " + id2 + "\ndata: 2\n\nid: " + id3 + "\ndata: 3\n\nid: " + id4 + "\ndata: 4\n\n",
+                read(channel));
+
+        // Without a Last-Event-ID, only new events are sent
+        EmbeddedChannel newChannel = subscribe(hub, null, "t");
+        assertNull(newChannel.readOutbound());
+
+        // The topic is kept for replay after the last subscriber has gone
+        channel.close();
+        newChannel.close();
+        assertEquals(1, hub.getTopicCount());
+        hub.removeTopic("t");
+        assertEquals(0, hub.getTopicCount());
+    }
+}
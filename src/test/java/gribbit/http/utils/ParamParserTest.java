@@ -0,0 +1,98 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ParamParserTest {
+    private static long parseLong(String str) {
+        return ParamParser.parseLong(str, 0, str.length(), -1L);
+    }
+
+    private static int parseInt(String str) {
+        return ParamParser.parseInt(str, 0, str.length(), -1);
+    }
+
+    @Test
+    public void parsesLongsUpToTheirLimits() {
+        assertEquals(0L, parseLong("0"));
+        assertEquals(123L, parseLong("+123"));
+        assertEquals(-123L, parseLong("-123"));
+        assertEquals(Long.MAX_VALUE, parseLong("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, parseLong("-9223372036854775808"));
+        assertEquals(-1L, parseLong("9223372036854775808"));
+        assertEquals(-1L, parseLong("-9223372036854775809"));
+        assertEquals(-1L, parseLong("99999999999999999999"));
+    }
+
+    @Test
+    public void parsesIntsUpToTheirLimits() {
+        assertEquals(Integer.MAX_VALUE, parseInt("2147483647"));
+        assertEquals(Integer.MIN_VALUE, parseInt("-2147483648"));
+        assertEquals(-1, parseInt("2147483648"));
+        assertEquals(-1, parseInt("-9223372036854775808"));
+    }
+
+    @Test
+    public void rejectsMalformedNumbers() {
+        for (String str : new String[] { "", "-", "+", "1.0", "1e3", " 1", "1 ", "0x10", "--1", "\u0661" }) {
+            assertEquals(str, -1L, parseLong(str));
+        }
+    }
+
+    @Test
+    public void parsesARangeOfTheCharSequence() {
+        String str = "n=42&m=on";
+        assertEquals(42, ParamParser.parseInt(str, 2, 4, -1));
+        assertTrue(ParamParser.parseBoolean(str, 7, 9, false));
+        assertEquals(TimeUnit.SECONDS, ParamParser.parseEnum(TimeUnit.class, "xSeconds", 1, 8, null));
+    }
+
+    @Test
+    public void parsesBooleans() {
+        for (String str : new String[] { "true", "TRUE", "1", "on", "Yes" }) {
+            assertTrue(str, ParamParser.parseBoolean(str, 0, str.length(), false));
+        }
+        for (String str : new String[] { "false", "0", "OFF", "no" }) {
+            assertFalse(str, ParamParser.parseBoolean(str, 0, str.length(), true));
+        }
+        assertTrue(ParamParser.parseBoolean("maybe", 0, 5, true));
+        assertFalse(ParamParser.parseBoolean("", 0, 0, false));
+    }
+
+    @Test
+    public void parsesEnumsIgnoringCase() {
+        assertEquals(TimeUnit.MILLISECONDS, ParamParser.parseEnum(TimeUnit.class, "milliseconds", 0, 12, null));
+        assertNull(ParamParser.parseEnum(TimeUnit.class, "millis", 0, 6, null));
+    }
+}
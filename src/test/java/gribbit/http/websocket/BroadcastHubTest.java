@@ -0,0 +1,115 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import org.junit.Test;
+
+public class BroadcastHubTest {
+    private final BroadcastHub hub = new BroadcastHub();
+
+    private static String readText(EmbeddedChannel channel) {
+        channel.runPendingTasks();
+        TextWebSocketFrame frame = (TextWebSocketFrame) channel.readOutbound();
+        if (frame == null) {
+            return null;
+        }
+        String text = frame.text();
+        frame.release();
+        return text;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void messagesReachEverySubscriber() {
+        // Each EmbeddedChannel has its own event loop, so each is in its own shard
+        EmbeddedChannel channel1 = new EmbeddedChannel(), channel2 = new EmbeddedChannel();
+        hub.subscribe("t", channel1);
+        hub.subscribe("t", channel2);
+        hub.subscribe("t", channel2);
+        assertEquals(2, hub.getSubscriberCount("t"));
+        hub.publishText("t", "hello \u00e9");
+        hub.publishText("other", "not subscribed");
+        assertEquals("hello \u00e9", readText(channel1));
+        assertEquals("hello \u00e9", readText(channel2));
+        assertNull(readText(channel1));
+        assertNull(readText(channel2));
+        assertFalse(channel1.finish());
+        assertFalse(channel2.finish());
+    }
+
+    @Test
+    public void topicIsDiscardedWithItsLastSubscriber() {
+        EmbeddedChannel channel1 = new EmbeddedChannel(), channel2 = new EmbeddedChannel();
+        hub.subscribe("t", channel1);
+        hub.subscribe("t", channel2);
+        hub.unsubscribe("t", channel1);
+        assertEquals(1, hub.getTopicCount());
+        channel2.close();
+        assertEquals(0, hub.getSubscriberCount("t"));
+        assertEquals(0, hub.getTopicCount());
+
+        // Publishing to a topic with no subscribers does not create it
+        hub.publishText("t", "dropped");
+        assertEquals(0, hub.getTopicCount());
+        assertNull(readText(channel1));
+
+        // Subscribing again creates a new topic
+        hub.subscribe("t", channel1);
+        hub.publishText("t", "again");
+        assertEquals("again", readText(channel1));
+        assertFalse(channel1.finish());
+    }
+
+    @Test
+    public void closedChannelLeavesNoTopic() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.close();
+        hub.subscribe("t", channel);
+        assertEquals(0, hub.getTopicCount());
+    }
+
+    @Test
+    public void removedTopicIsNotResurrectedBySubscribers() {
+        EmbeddedChannel channel1 = new EmbeddedChannel(), channel2 = new EmbeddedChannel();
+        hub.subscribe("t", channel1);
+        hub.removeTopic("t");
+        assertEquals(0, hub.getTopicCount());
+        hub.subscribe("t", channel2);
+        hub.publishText("t", "new topic");
+        assertNull(readText(channel1));
+        assertEquals("new topic", readText(channel2));
+        channel2.close();
+        assertEquals(0, hub.getTopicCount());
+        assertFalse(channel1.finish());
+    }
+}
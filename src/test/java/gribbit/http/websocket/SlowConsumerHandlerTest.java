@@ -0,0 +1,190 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import org.junit.Test;
+
+public class SlowConsumerHandlerTest {
+    /** Frames are larger than the high water mark, so one unflushed frame makes the channel unwritable. */
+    private static final int FRAME_SIZE = 64;
+
+    @SuppressWarnings("deprecation")
+    private static EmbeddedChannel newChannel(SlowConsumerPolicy policy) {
+        EmbeddedChannel channel = new EmbeddedChannel(new SlowConsumerHandler(policy));
+        channel.config().setWriteBufferLowWaterMark(FRAME_SIZE / 4);
+        channel.config().setWriteBufferHighWaterMark(FRAME_SIZE / 2);
+        return channel;
+    }
+
+    private static BinaryWebSocketFrame frame(int id) {
+        return new BinaryWebSocketFrame(Unpooled.buffer(FRAME_SIZE).writeZero(FRAME_SIZE - 1).writeByte(id));
+    }
+
+    private static int id(Object frame) {
+        WebSocketFrame webSocketFrame = (WebSocketFrame) frame;
+        int id = webSocketFrame.content().getByte(FRAME_SIZE - 1);
+        webSocketFrame.release();
+        return id;
+    }
+
+    /** Write a frame without flushing it, which leaves the channel unwritable. */
+    private static void fill(EmbeddedChannel channel) {
+        channel.write(frame(0));
+        assertFalse(channel.isWritable());
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void bufferWritesEverything() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.BUFFER);
+        fill(channel);
+        channel.write(frame(1));
+        channel.flush();
+        assertEquals(0, id(channel.readOutbound()));
+        assertEquals(1, id(channel.readOutbound()));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void dropDiscardsFramesWhileUnwritable() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.DROP);
+        fill(channel);
+        WebSocketFrame dropped = frame(1);
+        ChannelFuture future = channel.write(dropped);
+        assertTrue(future.isSuccess());
+        assertEquals(0, dropped.refCnt());
+        channel.flush();
+        assertTrue(channel.isWritable());
+        channel.writeAndFlush(frame(2));
+        assertEquals(0, id(channel.readOutbound()));
+        assertEquals(2, id(channel.readOutbound()));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void coalesceLatestWritesTheLatestFrameOnceWritable() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.COALESCE_LATEST);
+        fill(channel);
+        WebSocketFrame superseded = frame(1);
+        ChannelFuture supersededFuture = channel.write(superseded);
+        ChannelFuture latestFuture = channel.write(frame(2));
+        assertTrue(supersededFuture.isSuccess());
+        assertEquals(0, superseded.refCnt());
+        assertFalse(latestFuture.isDone());
+
+        // Flushing the first frame makes the channel writable again, which writes the coalesced frame
+        channel.flush();
+        assertTrue(latestFuture.isSuccess());
+        assertEquals(0, id(channel.readOutbound()));
+        assertEquals(2, id(channel.readOutbound()));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void coalescedFrameIsReleasedOnClose() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.COALESCE_LATEST);
+        fill(channel);
+        WebSocketFrame coalesced = frame(1);
+        channel.write(coalesced);
+        channel.close();
+        assertEquals(0, coalesced.refCnt());
+        channel.finish();
+        channel.releaseOutbound();
+    }
+
+    @Test
+    public void disconnectClosesTheChannel() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.DISCONNECT);
+        fill(channel);
+        WebSocketFrame dropped = frame(1);
+        channel.write(dropped);
+        assertEquals(0, dropped.refCnt());
+        assertFalse(channel.isOpen());
+        channel.finish();
+        channel.releaseOutbound();
+    }
+
+    @Test
+    public void controlFramesAreAlwaysWritten() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.DROP);
+        fill(channel);
+        PingWebSocketFrame ping = new PingWebSocketFrame();
+        channel.writeAndFlush(ping);
+        assertEquals(0, id(channel.readOutbound()));
+        assertSame(ping, channel.readOutbound());
+        ping.release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void fragmentedMessagesAreWrittenOrDroppedWhole() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.DROP);
+
+        // The first fragment was written, so the rest are written even though the channel becomes unwritable
+        channel.write(new BinaryWebSocketFrame(false, 0, Unpooled.buffer(FRAME_SIZE).writeZero(FRAME_SIZE)));
+        assertFalse(channel.isWritable());
+        channel.write(new ContinuationWebSocketFrame(true, 0, Unpooled.buffer(1).writeByte(1)));
+        channel.flush();
+        assertEquals(FRAME_SIZE, ((WebSocketFrame) channel.readOutbound()).content().readableBytes());
+        assertTrue(channel.releaseOutbound());
+
+        // The first fragment is dropped, so the rest are dropped too, even once the channel is writable again
+        fill(channel);
+        channel.write(new BinaryWebSocketFrame(false, 0, Unpooled.buffer(1).writeByte(1)));
+        channel.flush();
+        assertTrue(channel.isWritable());
+        ContinuationWebSocketFrame continuation = new ContinuationWebSocketFrame(true, 0, Unpooled.buffer(1)
+                .writeByte(2));
+        channel.writeAndFlush(continuation);
+        assertEquals(0, continuation.refCnt());
+        assertEquals(0, id(channel.readOutbound()));
+        assertNull(channel.readOutbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void installationIsVisibleOnTheChannel() {
+        EmbeddedChannel channel = newChannel(SlowConsumerPolicy.DROP);
+        assertTrue(SlowConsumerHandler.isInstalled(channel));
+        channel.pipeline().remove(SlowConsumerHandler.class);
+        assertFalse(SlowConsumerHandler.isInstalled(channel));
+        assertFalse(channel.finish());
+    }
+}
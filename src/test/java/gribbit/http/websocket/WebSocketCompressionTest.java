@@ -0,0 +1,330 @@
+/**
+ * This file is part of the Gribbit Web Framework.
+ * 
+ *     https://github.com/lukehutch/gribbit
+ * 
+ * @author Luke Hutchison
+ * 
+ * --
+ * 
+ * @license Apache 2.0 
+ * 
+ * Copyright 2015 Luke Hutchison
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gribbit.http.websocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gribbit.http.request.handler.WebSocketHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class WebSocketCompressionTest {
+    private static final WebSocketCompressionSettings SETTINGS = new WebSocketCompressionSettings(6, false, false,
+            15, 0);
+
+    private static String negotiate(WebSocketCompressionSettings settings, String offers) {
+        WebSocketCompression compression = WebSocketCompression.negotiate(settings, offers);
+        return compression == null ? null : compression.getResponseHeader();
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void compressionIsOptIn() {
+        WebSocketHandler handler = new WebSocketHandler() {
+            @Override
+            public void handleTextFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+            }
+
+            @Override
+            public void handleBinaryFrame(ChannelHandlerContext ctx, BinaryWebSocketFrame frame) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertNull(handler.getCompressionSettings());
+        assertNull(negotiate(null, "permessage-deflate"));
+        assertNull(negotiate(SETTINGS, null));
+    }
+
+    @Test
+    public void acceptsTheFirstAcceptableOffer() {
+        assertEquals("permessage-deflate", negotiate(SETTINGS, "permessage-deflate"));
+        assertEquals("permessage-deflate", negotiate(SETTINGS, "x-webkit-deflate-frame, permessage-deflate"));
+        assertEquals("permessage-deflate; server_no_context_takeover", negotiate(SETTINGS,
+                "permessage-deflate; server_max_window_bits=10, permessage-deflate; server_no_context_takeover"));
+        assertEquals("permessage-deflate", negotiate(SETTINGS, "Permessage-Deflate; server_max_window_bits=\"15\""));
+    }
+
+    @Test
+    public void declinesOffersThatCannotBeHonored() {
+        // java.util.zip can only compress with a 15-bit window
+        assertNull(negotiate(SETTINGS, "permessage-deflate; server_max_window_bits=10"));
+        assertNull(negotiate(SETTINGS, "permessage-deflate; server_max_window_bits"));
+        assertNull(negotiate(SETTINGS, "permessage-deflate; client_max_window_bits=16"));
+        assertNull(negotiate(SETTINGS, "permessage-deflate; client_max_window_bits; client_max_window_bits"));
+        assertNull(negotiate(SETTINGS, "permessage-deflate; unknown_param"));
+        assertNull(negotiate(SETTINGS, "x-webkit-deflate-frame"));
+    }
+
+    @Test
+    public void responseReflectsTheSettings() {
+        WebSocketCompressionSettings settings = new WebSocketCompressionSettings(1, true, true, 10, 0);
+        assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+                negotiate(settings, "permessage-deflate"));
+        assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover; "
+                + "client_max_window_bits=10", negotiate(settings, "permessage-deflate; client_max_window_bits"));
+        assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover; "
+                + "client_max_window_bits=9", negotiate(settings, "permessage-deflate; client_max_window_bits=9"));
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    private static final byte[] SYNC_FLUSH_TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    private static byte[] message(int len) {
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = (byte) ("0123456789abcdef".charAt(i * 7 % 16));
+        }
+        return bytes;
+    }
+
+    private static byte[] toBytes(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static boolean endsWithTail(byte[] bytes) {
+        int len = bytes.length;
+        return len >= 4 && bytes[len - 4] == 0 && bytes[len - 3] == 0 && bytes[len - 2] == (byte) 0xff
+                && bytes[len - 1] == (byte) 0xff;
+    }
+
+    private static byte[] inflate(byte[] compressed) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            for (int n; (n = inflater.inflate(buf)) > 0;) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] withTail(byte[] compressed) {
+        byte[] bytes = new byte[compressed.length + 4];
+        System.arraycopy(compressed, 0, bytes, 0, compressed.length);
+        System.arraycopy(SYNC_FLUSH_TAIL, 0, bytes, compressed.length, 4);
+        return bytes;
+    }
+
+    @Test
+    public void tailIsStrippedOnlyAtTheEndOfAMessage() throws DataFormatException {
+        byte[] original = message(5000);
+        for (ByteBuf content : new ByteBuf[] { Unpooled.wrappedBuffer(original),
+                Unpooled.directBuffer().writeBytes(original) }) {
+            Deflater deflater = new Deflater(6, true);
+            try {
+                ByteBuf fragment = WebSocketDeflateEncoder.deflate(deflater, content, false,
+                        UnpooledByteBufAllocator.DEFAULT);
+                assertTrue(endsWithTail(toBytes(fragment)));
+                fragment.release();
+
+                deflater.reset();
+                ByteBuf whole = WebSocketDeflateEncoder.deflate(deflater, content, true,
+                        UnpooledByteBufAllocator.DEFAULT);
+                byte[] compressed = toBytes(whole);
+                whole.release();
+                assertFalse(endsWithTail(compressed));
+                assertTrue(compressed.length < original.length);
+                assertArrayEquals(original, inflate(withTail(compressed)));
+                // The content is not consumed or released
+                assertEquals(original.length, content.readableBytes());
+            } finally {
+                deflater.end();
+                content.release();
+            }
+        }
+    }
+
+    @Test
+    public void sharedMessageIsCompressedIntoADirectBuffer() throws DataFormatException {
+        byte[] original = message(2000);
+        ByteBuf content = Unpooled.wrappedBuffer(original);
+        ByteBuf compressed = WebSocketCompression.compressMessage(content, 9);
+        try {
+            assertTrue(compressed.isDirect());
+            assertEquals(1, content.refCnt());
+            assertArrayEquals(original, inflate(withTail(toBytes(compressed))));
+        } finally {
+            compressed.release();
+            content.release();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    private static TextWebSocketFrame text(String text, boolean finalFragment) {
+        return new TextWebSocketFrame(finalFragment, 0, Unpooled.copiedBuffer(text, StandardCharsets.UTF_8));
+    }
+
+    private static ContinuationWebSocketFrame continuation(String text, boolean finalFragment) {
+        return new ContinuationWebSocketFrame(finalFragment, 0, Unpooled.copiedBuffer(text, StandardCharsets.UTF_8));
+    }
+
+    private static EmbeddedChannel newEncoder(boolean noContextTakeover, int minCompressBytes) {
+        return new EmbeddedChannel(new WebSocketDeflateEncoder(6, noContextTakeover, minCompressBytes));
+    }
+
+    private static List<WebSocketFrame> encode(EmbeddedChannel encoder, WebSocketFrame frame) {
+        encoder.writeOutbound(frame);
+        List<WebSocketFrame> frames = new ArrayList<>();
+        for (Object msg; (msg = encoder.readOutbound()) != null;) {
+            frames.add((WebSocketFrame) msg);
+        }
+        return frames;
+    }
+
+    /** Decode the frames of one message, and return the text. Releases the frames. */
+    private static String decode(EmbeddedChannel decoder, List<WebSocketFrame> frames) {
+        StringBuilder text = new StringBuilder();
+        for (WebSocketFrame frame : frames) {
+            decoder.writeInbound(frame);
+            WebSocketFrame decoded = (WebSocketFrame) decoder.readInbound();
+            assertEquals(0, decoded.rsv());
+            text.append(decoded.content().toString(StandardCharsets.UTF_8));
+            decoded.release();
+        }
+        return text.toString();
+    }
+
+    private static String repeat(String str, int times) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            buf.append(str);
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void shortMessagesAreNotCompressed() {
+        EmbeddedChannel encoder = newEncoder(false, 100);
+        List<WebSocketFrame> frames = encode(encoder, text("short", true));
+        assertEquals(0, frames.get(0).rsv());
+        assertEquals("short", frames.get(0).content().toString(StandardCharsets.UTF_8));
+        frames.get(0).release();
+        assertFalse(encoder.finish());
+    }
+
+    @Test
+    public void contextTakeoverCompressesAcrossMessages() {
+        EmbeddedChannel encoder = newEncoder(false, 0);
+        EmbeddedChannel decoder = new EmbeddedChannel(new WebSocketDeflateDecoder(65536));
+        String message = repeat("context takeover ", 20) + "0123456789";
+        List<WebSocketFrame> first = encode(encoder, text(message, true));
+        List<WebSocketFrame> second = encode(encoder, text(message, true));
+        assertEquals(0x4, first.get(0).rsv());
+        // The second message refers back to the first
+        assertTrue(second.get(0).content().readableBytes() < first.get(0).content().readableBytes());
+        assertEquals(message, decode(decoder, first));
+        assertEquals(message, decode(decoder, second));
+        encoder.finish();
+        decoder.finish();
+    }
+
+    @Test
+    public void messagesWithoutContextTakeoverDecodeIndependently() {
+        EmbeddedChannel encoder = newEncoder(true, 0);
+        String message = repeat("no context takeover ", 20);
+        List<WebSocketFrame> first = encode(encoder, text(message, true));
+        List<WebSocketFrame> second = encode(encoder, text(message, true));
+        assertEquals(first.get(0).content(), second.get(0).content());
+        // Each message can be decoded without the ones before it
+        assertEquals(message, decode(new EmbeddedChannel(new WebSocketDeflateDecoder(65536)), first));
+        assertEquals(message, decode(new EmbeddedChannel(new WebSocketDeflateDecoder(65536)), second));
+        encoder.finish();
+    }
+
+    @Test
+    public void fragmentedMessagesAreNotCorruptedByOtherConnections() {
+        // Both connections compress on this thread, so whole messages share the thread's Deflater, and the
+        // fragmented message must not
+        EmbeddedChannel encoder1 = newEncoder(true, 0);
+        EmbeddedChannel encoder2 = newEncoder(true, 0);
+        String part1 = repeat("first fragment ", 10), part2 = repeat("second fragment ", 10);
+        String other = repeat("another connection ", 10);
+
+        List<WebSocketFrame> fragmented = new ArrayList<>();
+        fragmented.addAll(encode(encoder1, text(part1, false)));
+        List<WebSocketFrame> interleaved = encode(encoder2, text(other, true));
+        fragmented.addAll(encode(encoder1, continuation(part2, true)));
+        assertEquals(0x4, fragmented.get(0).rsv());
+        assertEquals(0, fragmented.get(1).rsv());
+
+        assertEquals(part1 + part2, decode(new EmbeddedChannel(new WebSocketDeflateDecoder(65536)), fragmented));
+        assertEquals(other, decode(new EmbeddedChannel(new WebSocketDeflateDecoder(65536)), interleaved));
+
+        // The next message on the first connection is compressed on its own again
+        List<WebSocketFrame> next = encode(encoder1, text(other, true));
+        assertEquals(other, decode(new EmbeddedChannel(new WebSocketDeflateDecoder(65536)), next));
+        encoder1.finish();
+        encoder2.finish();
+    }
+
+    @Test
+    public void preCompressedFramesArePassedThrough() {
+        EmbeddedChannel encoder = newEncoder(true, 0);
+        ByteBuf compressed = WebSocketCompression.compressMessage(Unpooled.copiedBuffer(repeat("broadcast ", 10),
+                StandardCharsets.UTF_8), 6);
+        WebSocketFrame frame = WebSocketCompression.newCompressedFrame(compressed, false);
+        List<WebSocketFrame> frames = encode(encoder, frame);
+        assertEquals(1, frames.size());
+        assertEquals(frame, frames.get(0));
+        assertNotEquals(0, frames.get(0).rsv());
+        assertEquals(repeat("broadcast ", 10), decode(new EmbeddedChannel(new WebSocketDeflateDecoder(65536)),
+                frames));
+        encoder.finish();
+    }
+}